@@ -0,0 +1,72 @@
+package edu.uccs.mark.lgca1.benchmarks;
+
+import edu.uccs.mark.lgca1.Collider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of Collider.collide over a batch of random inbound states, with random and with deterministic
+ * choices.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CollisionBenchmark {
+
+    private static final int BATCH = 4096;
+
+    @Param({"0.1", "0.3", "0.6"})
+    double density;
+
+    private Collider collider;
+    private Collider deterministic;
+    private byte[] states;
+
+    @Setup
+    public void setUp(){
+        collider = new Collider(42);
+        deterministic = collider.deterministic();
+        states = new byte[BATCH];
+        Random r = new Random(42);
+        for(int i = 0; i < BATCH; i++){
+            states[i] = Lattices.randomState(r, density);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int collideSeeded(){
+        int acc = 0;
+        for(int i = 0; i < BATCH; i++){
+            acc += collider.collide(states[i], 7, i, i >> 6);
+        }
+        return acc;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int collideDeterministic(){
+        int acc = 0;
+        for(int i = 0; i < BATCH; i++){
+            acc += deterministic.collide(states[i], 7, i, i >> 6);
+        }
+        return acc;
+    }
+
+}
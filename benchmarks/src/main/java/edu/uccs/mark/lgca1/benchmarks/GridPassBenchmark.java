@@ -0,0 +1,76 @@
+package edu.uccs.mark.lgca1.benchmarks;
+
+import edu.uccs.mark.lgca1.CellEvaluator;
+import edu.uccs.mark.lgca1.Collider;
+import edu.uccs.mark.lgca1.Grid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of a single pass over a whole grid for each of the hot paths of a timestep:
+ * streaming alone (Grid.inboundState), a full evaluate, and the update in both of its modes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Thread)
+public class GridPassBenchmark {
+
+    @Param({"64", "256", "1024", "2048"})
+    int size;
+
+    @Param({"0.3"})
+    double density;
+
+    private Grid grid;
+    private CellEvaluator swapEvaluator;
+    private CellEvaluator perCellEvaluator;
+
+    @Setup
+    public void setUp(){
+        grid = Lattices.randomGrid(size, density, 42);
+        Collider collider = new Collider(42);
+        swapEvaluator = new CellEvaluator(grid, collider, 0, size, 0, size);
+        perCellEvaluator = new CellEvaluator(grid, collider, 0, size, 0, size, CellEvaluator.UpdateMode.PER_CELL);
+    }
+
+    @Benchmark
+    public int inboundState(){
+        int acc = 0;
+        for(int y = 0; y < size; y++){
+            for(int x = 0; x < size; x++){
+                acc += grid.inboundState(x, y);
+            }
+        }
+        return acc;
+    }
+
+    @Benchmark
+    public void evaluate(){
+        swapEvaluator.evaluate();
+    }
+
+    @Benchmark
+    public void updateSwap(){
+        swapEvaluator.update();
+    }
+
+    @Benchmark
+    public void updatePerCell(){
+        perCellEvaluator.update();
+    }
+
+}
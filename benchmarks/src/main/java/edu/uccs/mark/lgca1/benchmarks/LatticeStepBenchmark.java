@@ -0,0 +1,76 @@
+package edu.uccs.mark.lgca1.benchmarks;
+
+import edu.uccs.mark.lgca1.Collider;
+import edu.uccs.mark.lgca1.EngineType;
+import edu.uccs.mark.lgca1.LatticeEngine;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of whole timesteps, reported as cell-updates per second in the cellUpdates counter.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class LatticeStepBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Lattice {
+
+        @Param({"64", "256", "1024", "2048", "4096", "8192"})
+        int size;
+
+        @Param({"0.1", "0.3", "0.6"})
+        double density;
+
+        @Param({"1", "2", "4", "8"})
+        int threads;
+
+        @Param({"BYTE", "BIT_SLICED", "SPARSE"})
+        EngineType engine;
+
+        LatticeEngine latticeEngine;
+
+        @Setup(Level.Trial)
+        public void setUp(){
+            latticeEngine = engine.create(Lattices.randomGrid(size, density, 42), new Collider(42), threads);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown(){
+            latticeEngine.shutdown();
+        }
+    }
+
+    /**
+     * Counts the cells updated, so that JMH reports cell-updates per second next to steps per second.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long cellUpdates;
+    }
+
+    @Benchmark
+    public void step(Lattice lattice, Counters counters){
+        lattice.latticeEngine.step(1);
+        counters.cellUpdates += (long)lattice.size * lattice.size;
+    }
+
+}
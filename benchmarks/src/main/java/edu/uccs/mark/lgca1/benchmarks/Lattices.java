@@ -0,0 +1,42 @@
+package edu.uccs.mark.lgca1.benchmarks;
+
+import edu.uccs.mark.lgca1.Grid;
+import edu.uccs.mark.lgca1.State;
+
+import java.util.Random;
+
+/**
+ * Builds the lattices the benchmarks run on.
+ */
+final class Lattices {
+
+    private Lattices(){
+    }
+
+    /**
+     * A square grid where each direction of each cell is occupied with the given probability.
+     * @param size
+     * @param density
+     * @param seed
+     * @return
+     */
+    static Grid randomGrid(int size, double density, long seed){
+        Grid g = new Grid(size, size);
+        Random r = new Random(seed);
+        for(int y = 0; y < size; y++){
+            for(int x = 0; x < size; x++){
+                g.setStateNow(x, y, randomState(r, density));
+            }
+        }
+        return g;
+    }
+
+    static byte randomState(Random r, double density){
+        byte s = State.NULLSTATE;
+        for(byte mask:State.SMASKS){
+            if(r.nextDouble() < density) s |= mask;
+        }
+        return s;
+    }
+
+}
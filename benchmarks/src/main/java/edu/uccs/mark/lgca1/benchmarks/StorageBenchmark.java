@@ -0,0 +1,64 @@
+package edu.uccs.mark.lgca1.benchmarks;
+
+import edu.uccs.mark.lgca1.CellEvaluator;
+import edu.uccs.mark.lgca1.Collider;
+import edu.uccs.mark.lgca1.Grid;
+import edu.uccs.mark.lgca1.LatticeStorage;
+import edu.uccs.mark.lgca1.OffHeapGrid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of a whole timestep, evaluate and swap, with the planes on the heap (Grid) and off it (OffHeapGrid).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "-XX:MaxDirectMemorySize=4g"})
+@State(Scope.Thread)
+public class StorageBenchmark {
+
+    @Param({"256", "1024", "4096", "8192"})
+    int size;
+
+    @Param({"0.1", "0.3"})
+    double density;
+
+    @Param({"HEAP", "OFF_HEAP"})
+    String storage;
+
+    private LatticeStorage lattice;
+    private CellEvaluator evaluator;
+
+    @Setup
+    public void setUp(){
+        lattice = storage.equals("HEAP") ? new Grid(size, size) : new OffHeapGrid(size, size);
+        Random r = new Random(42);
+        for(int y = 0; y < size; y++){
+            for(int x = 0; x < size; x++){
+                lattice.setStateNow(x, y, Lattices.randomState(r, density));
+            }
+        }
+        evaluator = new CellEvaluator(lattice, new Collider(42), 0, size, 0, size);
+    }
+
+    @Benchmark
+    public void step(){
+        evaluator.evaluate();
+        evaluator.update();
+    }
+
+}
@@ -0,0 +1,218 @@
+package edu.uccs.mark.lgca1;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static edu.uccs.mark.lgca1.State.S1MASK;
+import static edu.uccs.mark.lgca1.State.S2MASK;
+import static edu.uccs.mark.lgca1.State.S3MASK;
+import static edu.uccs.mark.lgca1.State.S4MASK;
+import static edu.uccs.mark.lgca1.State.S5MASK;
+import static edu.uccs.mark.lgca1.State.S6MASK;
+
+/**
+ * Steps the grid's byte planes with the JDK Vector API, a whole vector of cells at a time.
+ *
+ * Streaming is a gather of six masked bytes per cell (see Grid.inboundState()), which for a run of cells of
+ * one row is six unaligned vector loads from the now plane, six ANDs and five ORs.  The neighbor offsets only
+ * depend on the row's parity, so they are picked once per row.
+ *
+ * The collision is a table lookup with the inbound states as indexes: selectFrom() over the 64 entry table of
+ * each state's first outcome, split into as many vectors as the species needs.  A second table flags the
+ * states with several possible outcomes.  Those cells, if there are any in the vector, are collided one by one
+ * by the Collider with the same reproducible choice the Cell Evaluators make, so for a given seed this engine
+ * produces exactly the same history as the byte engine.  The end of a row that does not fill a vector is done
+ * one cell at a time.
+ *
+ * This class is only compiled by the vector profile (see pom.xml) and needs the jdk.incubator.vector module at
+ * run time.  EngineType.VECTOR creates it when it can and falls back to the byte engine otherwise.
+ * The engine is single threaded.  Boundaries and obstacles are supported like in the byte engine.
+ */
+public class VectorEngine implements LatticeEngine {
+
+    /**
+     * The preferred species, unless it has more than 64 lanes, so a mask always fits in a long.
+     */
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED.length() <= 64
+            ? ByteVector.SPECIES_PREFERRED : ByteVector.SPECIES_512;
+    private static final int LANES = SPECIES.length();
+
+    private Grid grid;
+    private Collider collider;
+
+    /**
+     * The first outcome of every state and whether it has several, in vectors of LANES entries.
+     */
+    private ByteVector[] firstOutcome;
+    private ByteVector[] hasChoice;
+
+    /**
+     * Scratch for the inbound states of one vector.
+     */
+    private byte[] inbound = new byte[LANES];
+
+    public VectorEngine(Grid grid, Collider collider){
+        this.grid = grid;
+        this.collider = collider;
+
+        int chunks = Math.max(1, State.ALL_POSSIBLE_STATES.length / LANES);
+        byte[] first = new byte[chunks * LANES];
+        byte[] choice = new byte[chunks * LANES];
+        for(byte s:State.ALL_POSSIBLE_STATES){
+            byte[] poss = collider.getCollisionPosibilities(s);
+            first[s] = poss[0];
+            choice[s] = (byte)((poss.length > 1) ? 1 : 0);
+        }
+        firstOutcome = new ByteVector[chunks];
+        hasChoice = new ByteVector[chunks];
+        for(int k = 0; k < chunks; k++){
+            firstOutcome[k] = ByteVector.fromArray(SPECIES, first, k * LANES);
+            hasChoice[k] = ByteVector.fromArray(SPECIES, choice, k * LANES);
+        }
+    }
+
+    /**
+     * Whether the Vector API is worth using on this machine: it has at least 128 bit vectors.
+     * @return
+     */
+    public static boolean isSupported(){
+        return ByteVector.SPECIES_PREFERRED.vectorBitSize() >= 128;
+    }
+
+    /**
+     * Number of cells stepped per vector.
+     * @return
+     */
+    public static int lanes(){
+        return LANES;
+    }
+
+    @Override
+    public Grid getGrid(){
+        return grid;
+    }
+
+    @Override
+    public void shutdown(){
+    }
+
+    @Override
+    public void step(int steps){
+        //in case cells next to the sides were changed since the last step
+        grid.fillHalo();
+        for(int t = 0; t < steps; t++){
+            long timestep = grid.getTimestep();
+            for(int y = 0; y < grid.getyHeight(); y++){
+                stepRow(y, timestep);
+            }
+            grid.getBoundaries().applyObstacles(grid, 0, grid.getxWidth(), 0, grid.getyHeight());
+            grid.swap();
+        }
+    }
+
+    private void stepRow(int y, long timestep){
+        byte[] now = grid.getNowPlane();
+        byte[] next = grid.getNextPlane();
+        int width = grid.getxWidth();
+        int stride = grid.getStride();
+        int row = grid.index(0, y);
+        //directions 2 and 6 come from the left of the rows below and above on even rows, from straight
+        //below and above on odd rows; directions 3 and 5 from one cell to the right of those
+        int shift = ((y & 1) == 0) ? -1 : 0;
+
+        int x = 0;
+        for(; x + LANES <= width; x += LANES){
+            int i = row + x;
+            int below = i - stride + shift;
+            int above = i + stride + shift;
+            ByteVector in = ByteVector.fromArray(SPECIES, now, i - 1).and(S1MASK)
+                    .or(ByteVector.fromArray(SPECIES, now, below).and(S2MASK))
+                    .or(ByteVector.fromArray(SPECIES, now, below + 1).and(S3MASK))
+                    .or(ByteVector.fromArray(SPECIES, now, i + 1).and(S4MASK))
+                    .or(ByteVector.fromArray(SPECIES, now, above + 1).and(S5MASK))
+                    .or(ByteVector.fromArray(SPECIES, now, above).and(S6MASK));
+            lookup(in, firstOutcome).intoArray(next, i);
+
+            long random = lookup(in, hasChoice).compare(VectorOperators.NE, (byte)0).toLong();
+            if(random != 0L){
+                in.intoArray(inbound, 0);
+                while(random != 0L){
+                    int lane = Long.numberOfTrailingZeros(random);
+                    random &= random - 1;
+                    next[i + lane] = collider.collide(inbound[lane], timestep, x + lane, y);
+                }
+            }
+        }
+
+        int[] offsets = grid.neighborOffsets(y);
+        for(; x < width; x++){
+            next[row + x] = collider.collide(grid.inboundState(row + x, offsets), timestep, x, y);
+        }
+    }
+
+    /**
+     * Looks every lane of the indexes up in a 64 entry table split into vectors.
+     */
+    private static ByteVector lookup(ByteVector indexes, ByteVector[] table){
+        if(table.length == 1){
+            return indexes.selectFrom(table[0]);
+        }
+        ByteVector local = indexes.and((byte)(LANES - 1));
+        ByteVector result = local.selectFrom(table[0]);
+        for(int k = 1; k < table.length; k++){
+            VectorMask<Byte> inChunk = indexes.compare(VectorOperators.GE, (byte)(k * LANES));
+            result = result.blend(local.selectFrom(table[k]), inChunk);
+        }
+        return result;
+    }
+
+    /**
+     * Compares the vector engine with the byte engine on a randomly filled grid.
+     * Arguments are the grid size (default 2048), the number of timesteps (default 20) and the fill
+     * density (default 0.2).  Run with --add-modules jdk.incubator.vector.
+     * @param args
+     */
+    public static void main(String[] args){
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        double density = args.length > 2 ? Double.parseDouble(args[2]) : 0.2;
+
+        Collider c = new Collider(42);
+        Grid scalar = new Grid(size, size);
+        Grid vector = new Grid(size, size);
+        Random r = new Random(42);
+        for(int y = 0; y < size; y++){
+            for(int x = 0; x < size; x++){
+                byte s = 0;
+                for(byte mask:State.SMASKS){
+                    if(r.nextDouble() < density) s |= mask;
+                }
+                scalar.setStateNow(x, y, s);
+                vector.setStateNow(x, y, s);
+            }
+        }
+
+        LatticeEngine scalarEngine = EngineType.BYTE.create(scalar, c, 1);
+        LatticeEngine vectorEngine = new VectorEngine(vector, c);
+        //warm up
+        scalarEngine.step(2);
+        vectorEngine.step(2);
+        long t0 = System.nanoTime();
+        scalarEngine.step(steps);
+        long t1 = System.nanoTime();
+        vectorEngine.step(steps);
+        long t2 = System.nanoTime();
+        scalarEngine.shutdown();
+
+        boolean same = Arrays.equals(scalar.getNowPlane(), vector.getNowPlane());
+        System.out.println(same ? "Vector and byte engines match" : "Vector and byte engines DIFFER");
+        System.out.println(String.format("%d lanes: byte %.1f ms/step, vector %.1f ms/step",
+                LANES, (t1 - t0) / 1e6 / steps, (t2 - t1) / 1e6 / steps));
+    }
+
+}
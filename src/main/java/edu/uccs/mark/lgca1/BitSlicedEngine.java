@@ -0,0 +1,358 @@
+package edu.uccs.mark.lgca1;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Steps the lattice with one bit plane per direction, so that 64 cells are streamed and collided at once.
+ *
+ * Plane d holds bit d of every cell (the occupation number of direction d+1), one row after the other.
+ * Each row takes wordsPerRow longs; bit b of word w of a row is cell x = 64w + b.
+ * Streaming is then a matter of shifting words by one bit for the neighbors to the left and right, and of
+ * reading the row above or below for the other four directions.  The row parity decides which of the two
+ * (see Grid's class comment).
+ *
+ * The collision rules are those of the Collider.  Most states have a single possible outcome, themselves,
+ * so only the other states are compiled: for each of them a minterm over the 6
+ * planes selects the cells in that state, and a random selector plane picks which of the outcomes those cells
+ * are XORed into.  Selectors for a choice between three outcomes are drawn from pairs of random bits with
+ * rejection, four rounds deep, so they are uniform to within 1/256.
+ *
+ * The walls are open, like the Grid's null halo: particles streaming out of the lattice are lost.
+ * Grids with other boundaries or with obstacles are not supported, and neither are models with rest
+ * particles or alternating chirality.
+ */
+public class BitSlicedEngine implements LatticeEngine {
+
+    private static final int DIRECTIONS = 6;
+
+    /**
+     * Number of rejection rounds used to draw a choice between three outcomes.
+     */
+    private static final int TRIT_ROUNDS = 4;
+
+    private Grid grid;
+    private Collider collider;
+
+    private int width;
+    private int height;
+    private int wordsPerRow;
+    private long lastWordMask;
+
+    /**
+     * Like the Grid, every plane is padded by a halo of zero words: one word at each end of a row and one row
+     * above and below.  Word w of row y is at (y+1)*stride + w+1.
+     */
+    private int stride;
+
+    private long[][] now;
+    private long[][] next;
+    private long timestep;
+
+    /**
+     * Compiled collision rules.
+     * Compiled state k is selected by the minterm low[stateLow[k]] AND high[stateHigh[k]], where low[] holds
+     * the 8 minterms over inbound planes 0-2 and high[] the 8 minterms over planes 3-5.
+     * Each of its outcomes other than itself is a rule: rule r applies to the cells in state ruleState[r] for
+     * which selectors[ruleSelector[r]] is set.  Flip f XORs the cells hit by rule flipRule[f] into plane
+     * flipPlane[f].
+     */
+    private int[] stateLow;
+    private int[] stateHigh;
+    private int[] ruleState;
+    private int[] ruleSelector;
+    private int[] flipRule;
+    private int[] flipPlane;
+
+    /**
+     * Scratch words reused by every word of the lattice.
+     * selectors[0..1] are the one-hot choice between two outcomes, selectors[2..4] between three, and
+     * selectors[5] is set for every cell, for the states with a single outcome other than themselves.
+     */
+    private long[] in = new long[DIRECTIONS];
+    private long[] low = new long[8];
+    private long[] high = new long[8];
+    private long[] minterms;
+    private long[] hits;
+    private long[] delta = new long[DIRECTIONS];
+    private long[] selectors = new long[]{0, 0, 0, 0, 0, -1L};
+
+    /**
+     * Loads the grid's now plane into bit planes.
+     * @param grid
+     * @param collider
+     */
+    public BitSlicedEngine(Grid grid, Collider collider){
+        if(!grid.getBoundaries().allSidesOpen() || grid.getBoundaries().hasObstacles()){
+            throw new UnsupportedOperationException("The bit sliced engine only supports open boundaries without obstacles");
+        }
+        CollisionModel model = collider.getModel();
+        if(model.getRestParticles() != 0 || model.getChirality() == CollisionModel.Chirality.ALTERNATING){
+            throw new UnsupportedOperationException("The bit sliced engine does not support the " + model
+                    + " model's rest particles or alternating chirality");
+        }
+        this.grid = grid;
+        this.collider = collider;
+        this.width = grid.getxWidth();
+        this.height = grid.getyHeight();
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.stride = wordsPerRow + 2;
+        this.lastWordMask = ((width & 63) == 0) ? -1L : (1L << (width & 63)) - 1;
+
+        now = new long[DIRECTIONS][stride * (height + 2)];
+        next = new long[DIRECTIONS][stride * (height + 2)];
+        compileRules();
+        load();
+    }
+
+    /**
+     * Turns the Collider's possible outcomes into the rule arrays.
+     */
+    private void compileRules(){
+        List<Integer> states = new ArrayList<>();
+        List<int[]> rules = new ArrayList<>();
+        for(byte s:State.ALL_POSSIBLE_STATES){
+            byte[] poss = collider.getCollisionPosibilities(s);
+            if(poss.length > 3){
+                throw new IllegalStateException("State " + s + " has " + poss.length
+                        + " possible outcomes; the bit sliced engine handles at most 3");
+            }
+            if(poss.length == 1 && poss[0] == s){
+                continue;
+            }
+            for(int j = 0; j < poss.length; j++){
+                if(poss[j] != s){
+                    int selector = (poss.length == 1) ? 5 : (poss.length == 2) ? j : 2 + j;
+                    rules.add(new int[]{states.size(), selector, s ^ poss[j]});
+                }
+            }
+            states.add((int)s);
+        }
+
+        stateLow = new int[states.size()];
+        stateHigh = new int[states.size()];
+        for(int k = 0; k < states.size(); k++){
+            stateLow[k] = states.get(k) & 7;
+            stateHigh[k] = states.get(k) >> 3;
+        }
+        ruleState = new int[rules.size()];
+        ruleSelector = new int[rules.size()];
+        List<int[]> flips = new ArrayList<>();
+        for(int r = 0; r < rules.size(); r++){
+            ruleState[r] = rules.get(r)[0];
+            ruleSelector[r] = rules.get(r)[1];
+            for(int d = 0; d < DIRECTIONS; d++){
+                if(((rules.get(r)[2] >> d) & 1) != 0){
+                    flips.add(new int[]{r, d});
+                }
+            }
+        }
+        flipRule = new int[flips.size()];
+        flipPlane = new int[flips.size()];
+        for(int f = 0; f < flips.size(); f++){
+            flipRule[f] = flips.get(f)[0];
+            flipPlane[f] = flips.get(f)[1];
+        }
+        hits = new long[rules.size()];
+        minterms = new long[states.size()];
+    }
+
+    /**
+     * Copies the grid's now plane into the bit planes.
+     */
+    private void load(){
+        for(long[] plane:now){
+            java.util.Arrays.fill(plane, 0L);
+        }
+        byte[] cells = grid.getNowPlane();
+        for(int y = 0; y < height; y++){
+            int i = grid.index(0, y);
+            for(int x = 0; x < width; x++){
+                int s = cells[i + x];
+                int w = (y + 1) * stride + (x >>> 6) + 1;
+                for(int d = 0; d < DIRECTIONS; d++){
+                    now[d][w] |= ((long)((s >> d) & 1)) << (x & 63);
+                }
+            }
+        }
+        timestep = grid.getTimestep();
+    }
+
+    /**
+     * Copies the bit planes back into the grid's now plane.
+     */
+    private void store(){
+        byte[] cells = grid.getNowPlane();
+        for(int y = 0; y < height; y++){
+            int i = grid.index(0, y);
+            for(int x = 0; x < width; x++){
+                int w = (y + 1) * stride + (x >>> 6) + 1;
+                int s = 0;
+                for(int d = 0; d < DIRECTIONS; d++){
+                    s |= (int)((now[d][w] >>> (x & 63)) & 1) << d;
+                }
+                cells[i + x] = (byte)s;
+            }
+        }
+        grid.setTimestep(timestep);
+    }
+
+    @Override
+    public Grid getGrid(){
+        store();
+        return grid;
+    }
+
+    @Override
+    public void shutdown(){
+    }
+
+    public long getTimestep(){
+        return timestep;
+    }
+
+    /**
+     * Totals of the bit planes, without going through the grid.
+     * @return
+     */
+    public LatticeTotals totals(){
+        long[] counts = new long[DIRECTIONS];
+        for(int d = 0; d < DIRECTIONS; d++){
+            for(long w:now[d]){
+                counts[d] += Long.bitCount(w);
+            }
+        }
+        return LatticeTotals.fromDirectionCounts(counts);
+    }
+
+    @Override
+    public void step(int steps){
+        for(int t = 0; t < steps; t++){
+            for(int y = 0; y < height; y++){
+                stepRow(y);
+            }
+            long[][] tmp = now;
+            now = next;
+            next = tmp;
+            timestep++;
+        }
+    }
+
+    private void stepRow(int y){
+        int row = (y + 1) * stride;
+        //on even rows directions 2 and 6 come from the left of the rows below and above and 3 and 5 come
+        //straight from them; on odd rows 2 and 6 come straight from them and 3 and 5 from the right
+        int leftShift = ((y & 1) == 0) ? 1 : 0;
+        int rightShift = 1 - leftShift;
+        long[] n0 = now[0], n1 = now[1], n2 = now[2], n3 = now[3], n4 = now[4], n5 = now[5];
+
+        for(int w = 1; w <= wordsPerRow; w++){
+            long mask = (w == wordsPerRow) ? lastWordMask : -1L;
+            int i = row + w;
+            int below = i - stride;
+            int above = i + stride;
+
+            //direction 1 comes from neighbor 4, direction 4 from neighbor 1
+            in[0] = ((n0[i] << 1) | (n0[i - 1] >>> 63)) & mask;
+            in[3] = ((n3[i] >>> 1) | (n3[i + 1] << 63)) & mask;
+            //direction 2 comes from neighbor 5, direction 3 from neighbor 6 (the row below)
+            in[1] = shiftLeft(n1, below, leftShift) & mask;
+            in[2] = shiftRight(n2, below, rightShift) & mask;
+            //direction 5 comes from neighbor 2, direction 6 from neighbor 3 (the row above)
+            in[4] = shiftRight(n4, above, rightShift) & mask;
+            in[5] = shiftLeft(n5, above, leftShift) & mask;
+
+            long any = collideMinterms();
+            if(any == 0L){
+                for(int d = 0; d < DIRECTIONS; d++){
+                    next[d][i] = in[d];
+                }
+                continue;
+            }
+
+            randomSelectors(i);
+            for(int d = 0; d < DIRECTIONS; d++){
+                delta[d] = 0L;
+            }
+            for(int r = 0; r < hits.length; r++){
+                hits[r] = minterms[ruleState[r]] & selectors[ruleSelector[r]];
+            }
+            for(int f = 0; f < flipRule.length; f++){
+                delta[flipPlane[f]] |= hits[flipRule[f]];
+            }
+            for(int d = 0; d < DIRECTIONS; d++){
+                next[d][i] = in[d] ^ delta[d];
+            }
+        }
+    }
+
+    /**
+     * Word i shifted so that bit x holds cell x-1 when shift is 1, or word i itself when shift is 0.
+     */
+    private static long shiftLeft(long[] plane, int i, int shift){
+        return (plane[i] << shift) | ((plane[i - 1] >>> 63) & -shift);
+    }
+
+    /**
+     * Word i shifted so that bit x holds cell x+1 when shift is 1, or word i itself when shift is 0.
+     */
+    private static long shiftRight(long[] plane, int i, int shift){
+        return (plane[i] >>> shift) | ((plane[i + 1] << 63) & -shift);
+    }
+
+    /**
+     * Computes the minterm of every compiled state over the inbound words.
+     * @return the OR of all of the minterms, i.e. the cells that need a random choice
+     */
+    private long collideMinterms(){
+        minterms3(in[0], in[1], in[2], low);
+        minterms3(in[3], in[4], in[5], high);
+        long any = 0L;
+        for(int k = 0; k < minterms.length; k++){
+            long m = low[stateLow[k]] & high[stateHigh[k]];
+            minterms[k] = m;
+            any |= m;
+        }
+        return any;
+    }
+
+    /**
+     * Fills m[v] with the cells whose bits (a, b, c) spell v = a + 2b + 4c.
+     */
+    private static void minterms3(long a, long b, long c, long[] m){
+        long na = ~a, nb = ~b, nc = ~c;
+        long ab0 = na & nb, ab1 = a & nb, ab2 = na & b, ab3 = a & b;
+        m[0] = ab0 & nc;
+        m[1] = ab1 & nc;
+        m[2] = ab2 & nc;
+        m[3] = ab3 & nc;
+        m[4] = ab0 & c;
+        m[5] = ab1 & c;
+        m[6] = ab2 & c;
+        m[7] = ab3 & c;
+    }
+
+    /**
+     * Fills the one-hot selector words for choices between two and three outcomes for one word.
+     */
+    private void randomSelectors(int index){
+        long base = Collider.mix(collider.getSeed() ^ Collider.mix(timestep * 0x9E3779B97F4A7C15L + index));
+        selectors[0] = ~base;
+        selectors[1] = base;
+
+        long undecided = -1L;
+        long s0 = 0L, s1 = 0L, s2 = 0L;
+        for(int k = 0; k < TRIT_ROUNDS; k++){
+            long a = Collider.mix(base + 2 * k + 1);
+            long b = Collider.mix(base + 2 * k + 2);
+            s0 |= undecided & ~a & ~b;
+            s1 |= undecided & ~a & b;
+            s2 |= undecided & a & ~b;
+            undecided &= a & b;
+        }
+        selectors[2] = s0 | undecided;
+        selectors[3] = s1;
+        selectors[4] = s2;
+    }
+
+}
@@ -0,0 +1,425 @@
+package edu.uccs.mark.lgca1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The boundary conditions of a grid: a BoundaryType for each of its four sides, plus any solid obstacle cells
+ * inside it.
+ *
+ * The boundaries are applied by filling the grid's halo once per timestep (see Grid.swap()), so the cells next
+ * to a side stream from the halo exactly like any other cell and the interior loops have no boundary checks.
+ *   OPEN        the halo is emptied.
+ *   PERIODIC    the halo is a copy of the cells on the opposite side.
+ *   OUTFLOW     the halo is filled at random with the density of the cell next to it, with no preferred
+ *               direction, so particles leave freely without the density changing towards the side.
+ *               Copying the cell next to it instead would feed its particles straight back in.
+ *   INFLOW      the halo is filled at random with the inflow density, independently for each direction.
+ *   BOUNCE_BACK for every particle about to move from a cell into the halo, the halo cell is given a particle
+ *               moving the opposite way, which streams straight back into the cell.
+ * The left and right sides are filled first, for the grid's rows, then the bottom and top halo rows, which
+ * include the corners.  When the bottom and top are periodic, the corners are really part of the left and right
+ * halos, so the bounce back links of BOUNCE_BACK left and right sides into the corners are done last.
+ *
+ * Solid obstacle cells bounce back every particle that streams into them: their next state is their inbound
+ * state with every direction reversed.  The Cell Evaluators apply this to the solid cells they own after
+ * evaluating, going through the list of solid cells rather than testing every cell.
+ */
+public class Boundaries {
+
+    public static final int LEFT = 0;
+    public static final int RIGHT = 1;
+    public static final int BOTTOM = 2;
+    public static final int TOP = 3;
+
+    /**
+     * Each state with all of its directions reversed and its rest particles left as they are.
+     * Index it with state & 0xFF.
+     */
+    static final byte[] REVERSED = new byte[256];
+
+    static{
+        for(int s = 0; s < REVERSED.length; s++){
+            int moving = s & 0x3F;
+            REVERSED[s] = (byte)((((moving << 3) | (moving >> 3)) & 0x3F) | (s & State.REST_MASK));
+        }
+    }
+
+    private int width;
+    private int height;
+    private int stride;
+    private BoundaryType[] sides;
+
+    private double inflowDensity = 0.0;
+    private long inflowSeed = 0L;
+    private int inflowThreshold = 0;
+
+    /**
+     * The row of a larger lattice that row 0 of the grid is, and the height of that lattice when its rows
+     * wrap around, or 0, so that the random halo cells are those of the larger lattice.
+     */
+    private int rowOffset = 0;
+    private int rowPeriod = 0;
+
+    /**
+     * The column of a larger lattice that column 0 of the grid is, and that lattice's stride, or 0 when it is
+     * the grid's.
+     */
+    private int columnOffset = 0;
+    private int latticeStride = 0;
+
+    private TreeSet<Integer> solids = new TreeSet<>();
+    private volatile int[] solidCells = new int[0];
+
+    /**
+     * Bounce back links, for the left and right sides (0), the bottom and top sides (1) and the corners of the
+     * left and right sides when the bottom and top are periodic (2), in the order they are applied.
+     * Link k ORs bit linkFrom[k] of cell linkSource[k] into bit linkTo[k] of halo cell linkHalo[k].
+     */
+    private static final int LINK_GROUPS = 3;
+    private int[][] linkHalo = new int[LINK_GROUPS][];
+    private int[][] linkSource = new int[LINK_GROUPS][];
+    private int[][] linkFrom = new int[LINK_GROUPS][];
+    private int[][] linkTo = new int[LINK_GROUPS][];
+
+    /**
+     * Boundaries for a grid of the given size.
+     * @param grid
+     * @param left
+     * @param right
+     * @param bottom
+     * @param top
+     */
+    public Boundaries(Grid grid, BoundaryType left, BoundaryType right, BoundaryType bottom, BoundaryType top){
+        this.width = grid.getxWidth();
+        this.height = grid.getyHeight();
+        this.stride = grid.getStride();
+        this.sides = new BoundaryType[]{left, right, bottom, top};
+
+        if((left == BoundaryType.PERIODIC) != (right == BoundaryType.PERIODIC)
+                || (bottom == BoundaryType.PERIODIC) != (top == BoundaryType.PERIODIC)){
+            throw new IllegalArgumentException("Periodic boundaries must come in opposite pairs");
+        }
+        if(bottom == BoundaryType.PERIODIC && (height & 1) != 0){
+            throw new IllegalArgumentException("Periodic bottom and top need an even height to keep the hexagonal rows aligned");
+        }
+        buildLinks(grid);
+    }
+
+    /**
+     * Open boundaries on all sides, which is what a grid starts with.
+     * @param grid
+     * @return
+     */
+    public static Boundaries open(Grid grid){
+        return new Boundaries(grid, BoundaryType.OPEN, BoundaryType.OPEN, BoundaryType.OPEN, BoundaryType.OPEN);
+    }
+
+    /**
+     * Makes the random OUTFLOW and INFLOW halo cells those of a larger lattice the grid holds rows of, so
+     * that they match the larger lattice's own halo.
+     * @param rowOffset the row of the larger lattice that row 0 of the grid is
+     * @param rowPeriod the height of the larger lattice when its rows wrap around, or 0
+     */
+    void setRowOffset(int rowOffset, int rowPeriod){
+        this.rowOffset = rowOffset;
+        this.rowPeriod = rowPeriod;
+    }
+
+    /**
+     * Same as setRowOffset(), for a grid holding columns of a larger lattice.  The columns can not wrap
+     * around: the random halo cells are those of a lattice without periodic left and right sides.
+     * @param columnOffset the column of the larger lattice that column 0 of the grid is
+     * @param latticeWidth the width of the larger lattice
+     */
+    void setColumnOffset(int columnOffset, int latticeWidth){
+        this.columnOffset = columnOffset;
+        this.latticeStride = latticeWidth + 2;
+    }
+
+    public BoundaryType getSide(int side){
+        return sides[side];
+    }
+
+    /**
+     * Sets the density of the INFLOW sides: the probability of each direction of a halo cell being occupied.
+     * @param density
+     * @param seed
+     * @return this
+     */
+    public Boundaries setInflow(double density, long seed){
+        this.inflowDensity = density;
+        this.inflowSeed = seed;
+        this.inflowThreshold = (int)Math.round(density * 1024);
+        return this;
+    }
+
+    public double getInflowDensity() {
+        return inflowDensity;
+    }
+
+    public long getInflowSeed() {
+        return inflowSeed;
+    }
+
+    /**
+     * True if all of the sides are open, i.e. the halo is always empty.
+     * @return
+     */
+    public boolean allSidesOpen(){
+        for(BoundaryType b:sides){
+            if(b != BoundaryType.OPEN) return false;
+        }
+        return true;
+    }
+
+    public boolean hasObstacles(){
+        return !solids.isEmpty();
+    }
+
+    /**
+     * Makes the cell a solid obstacle.
+     * @param x
+     * @param y
+     */
+    public void addSolid(int x, int y){
+        if(x < 0 || y < 0 || x >= width || y >= height){
+            throw new IllegalArgumentException("Obstacle cell (" + x + "," + y + ") is outside of the grid");
+        }
+        solids.add((y + 1) * stride + (x + 1));
+        solidCells = null;
+    }
+
+    /**
+     * Makes every cell within the given radius of (cx, cy) a solid obstacle, e.g. a cylinder in a channel.
+     * Distances take the half cell shift of odd rows into account.
+     * @param cx
+     * @param cy
+     * @param radius
+     */
+    public void addDisk(double cx, double cy, double radius){
+        for(int y = Math.max(0, (int)Math.floor(cy - radius)); y <= Math.min(height - 1, (int)Math.ceil(cy + radius)); y++){
+            double rowShift = ((y & 1) == 0) ? 0.0 : 0.5;
+            double dy = (y - cy) * Math.sqrt(3) / 2;
+            for(int x = 0; x < width; x++){
+                double dx = x + rowShift - cx;
+                if(dx * dx + dy * dy <= radius * radius){
+                    addSolid(x, y);
+                }
+            }
+        }
+    }
+
+    /**
+     * The plane indexes of the solid cells, in increasing order.
+     * @return
+     */
+    public int[] getSolidCells(){
+        int[] cells = solidCells;
+        if(cells == null){
+            //filled before it is published, since the evaluators of a step may all get here at once
+            cells = new int[solids.size()];
+            int i = 0;
+            for(Integer c:solids){
+                cells[i++] = c;
+            }
+            solidCells = cells;
+        }
+        return cells;
+    }
+
+    /**
+     * Finds the bounce back links of the BOUNCE_BACK sides: every pair of a cell next to the side and a
+     * direction taking it into the side's halo.
+     */
+    private void buildLinks(Grid grid){
+        List<List<int[]>> links = new ArrayList<>();
+        for(int group = 0; group < LINK_GROUPS; group++){
+            links.add(new ArrayList<int[]>());
+        }
+        boolean periodicY = sides[BOTTOM] == BoundaryType.PERIODIC;
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++){
+                if(x > 0 && y > 0 && x < width - 1 && y < height - 1){
+                    continue;
+                }
+                for(int d = 1; d <= 6; d++){
+                    int n = grid.neighbor(d, x, y);
+                    int nx = n % stride - 1;
+                    int ny = n / stride - 1;
+                    boolean outX = nx < 0 || nx >= width;
+                    boolean outY = ny < 0 || ny >= height;
+                    int side;
+                    int group;
+                    if(outY && !(outX && periodicY)){
+                        side = (ny < 0) ? BOTTOM : TOP;
+                        group = 1;
+                    }
+                    else if(outX){
+                        side = (nx < 0) ? LEFT : RIGHT;
+                        group = outY ? 2 : 0;
+                    }
+                    else continue;
+                    if(sides[side] == BoundaryType.BOUNCE_BACK){
+                        int reverse = (d > 3) ? d - 3 : d + 3;
+                        links.get(group).add(new int[]{n, grid.index(x, y), d - 1, reverse - 1});
+                    }
+                }
+            }
+        }
+        for(int group = 0; group < LINK_GROUPS; group++){
+            List<int[]> l = links.get(group);
+            linkHalo[group] = new int[l.size()];
+            linkSource[group] = new int[l.size()];
+            linkFrom[group] = new int[l.size()];
+            linkTo[group] = new int[l.size()];
+            for(int k = 0; k < l.size(); k++){
+                linkHalo[group][k] = l.get(k)[0];
+                linkSource[group][k] = l.get(k)[1];
+                linkFrom[group][k] = l.get(k)[2];
+                linkTo[group][k] = l.get(k)[3];
+            }
+        }
+    }
+
+    /**
+     * Fills the halo of the grid's now plane for its current timestep.
+     * @param grid
+     */
+    public void fillHalo(Grid grid){
+        byte[] now = grid.getNowPlane();
+        long timestep = grid.getTimestep();
+
+        //left and right, for the grid's rows
+        for(int y = 0; y < height; y++){
+            int row = (y + 1) * stride;
+            now[row] = sideValue(sides[LEFT], now, row, row + width, row + 1, timestep);
+            now[row + width + 1] = sideValue(sides[RIGHT], now, row + width + 1, row + 1, row + width, timestep);
+        }
+        bounceBack(now, 0);
+
+        //bottom and top, whole rows including the corners
+        int bottom = 0;
+        int top = (height + 1) * stride;
+        fillRow(sides[BOTTOM], now, bottom, height * stride, stride, timestep);
+        fillRow(sides[TOP], now, top, stride, height * stride, timestep);
+        bounceBack(now, 1);
+        bounceBack(now, 2);
+    }
+
+    /**
+     * The value of halo cell i for one of the left and right sides, given the cell on the opposite side
+     * (opposite) and the cell next to it (adjacent).
+     */
+    private byte sideValue(BoundaryType type, byte[] now, int i, int opposite, int adjacent, long timestep){
+        switch(type){
+            case PERIODIC: return now[opposite];
+            case OUTFLOW: return randomState(i, timestep, outflowThreshold(now[adjacent]));
+            case INFLOW: return randomState(i, timestep, inflowThreshold);
+            //bounce back cells are filled by their links
+            default: return State.NULLSTATE;
+        }
+    }
+
+    /**
+     * Fills the halo row starting at index start, for one of the bottom and top sides, given the start of the
+     * row on the opposite side and of the row next to it.
+     */
+    private void fillRow(BoundaryType type, byte[] now, int start, int opposite, int adjacent, long timestep){
+        switch(type){
+            case PERIODIC:
+                System.arraycopy(now, opposite, now, start, stride);
+                break;
+            case OUTFLOW:
+                for(int i = start; i < start + stride; i++){
+                    now[i] = randomState(i, timestep, outflowThreshold(now[adjacent + i - start]));
+                }
+                break;
+            case INFLOW:
+                for(int i = start; i < start + stride; i++){
+                    now[i] = randomState(i, timestep, inflowThreshold);
+                }
+                break;
+            default:
+                Arrays.fill(now, start, start + stride, State.NULLSTATE);
+        }
+    }
+
+    /**
+     * Fills the halo cells of one group of bounce back links with the reflected particles.
+     */
+    private void bounceBack(byte[] now, int group){
+        int[] halo = linkHalo[group];
+        int[] source = linkSource[group];
+        int[] from = linkFrom[group];
+        int[] to = linkTo[group];
+        for(int k = 0; k < halo.length; k++){
+            now[halo[k]] = State.NULLSTATE;
+        }
+        for(int k = 0; k < halo.length; k++){
+            now[halo[k]] |= ((now[source[k]] >> from[k]) & 1) << to[k];
+        }
+    }
+
+    /**
+     * The threshold for an outflow halo cell: each direction is occupied as often as the directions of the cell
+     * next to it are on average.
+     */
+    private static int outflowThreshold(byte adjacent){
+        return (ObservableAccumulator.MASS[adjacent & 0x3F] << 10) / 6;
+    }
+
+    /**
+     * A random state for a halo cell, which only depends on the inflow seed, the cell and the timestep.
+     * Each direction is occupied with probability threshold / 1024.
+     */
+    private byte randomState(int i, long timestep, int threshold){
+        if(rowOffset != 0 || rowPeriod != 0 || latticeStride != 0){
+            int y = i / stride - 1 + rowOffset;
+            if(rowPeriod != 0){
+                y = Math.floorMod(y, rowPeriod);
+            }
+            i = (y + 1) * ((latticeStride == 0) ? stride : latticeStride) + i % stride + columnOffset;
+        }
+        long h = Collider.mix(inflowSeed ^ Collider.mix(timestep * 0x9E3779B97F4A7C15L + i));
+        int s = 0;
+        for(int d = 0; d < 6; d++){
+            if(((h >>> (10 * d)) & 0x3FF) < threshold){
+                s |= 1 << d;
+            }
+        }
+        return (byte)s;
+    }
+
+    /**
+     * Bounces back the particles streaming into the solid cells among the given cells: sets the next state of
+     * each solid cell to its inbound state reversed.  Called by the Cell Evaluator owning the cells.
+     * @param grid
+     * @param startX
+     * @param endX
+     * @param startY
+     * @param endY
+     */
+    public void applyObstacles(Grid grid, int startX, int endX, int startY, int endY){
+        int[] cells = getSolidCells();
+        if(cells.length == 0){
+            return;
+        }
+        int from = Arrays.binarySearch(cells, (startY + 1) * stride);
+        if(from < 0) from = -from - 1;
+        int end = (endY + 1) * stride;
+        byte[] next = grid.getNextPlane();
+        for(int k = from; k < cells.length && cells[k] < end; k++){
+            int c = cells[k];
+            int x = c % stride - 1;
+            if(x < startX || x >= endX){
+                continue;
+            }
+            int y = c / stride - 1;
+            next[c] = REVERSED[grid.inboundState(c, grid.neighborOffsets(y)) & 0xFF];
+        }
+    }
+
+}
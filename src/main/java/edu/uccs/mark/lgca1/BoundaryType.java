@@ -0,0 +1,33 @@
+package edu.uccs.mark.lgca1;
+
+/**
+ * What happens to particles at one side of the grid.
+ */
+public enum BoundaryType {
+
+    /**
+     * Particles leaving the grid are lost and none come in.
+     */
+    OPEN,
+
+    /**
+     * The grid wraps around to the opposite side, which must be periodic too.
+     */
+    PERIODIC,
+
+    /**
+     * A no-slip wall: particles hitting it come back the way they came.
+     */
+    BOUNCE_BACK,
+
+    /**
+     * A source: particles come in from outside with a constant density.
+     */
+    INFLOW,
+
+    /**
+     * A sink: particles leave freely, and the outside looks like the cells next to it (zero gradient).
+     */
+    OUTFLOW
+
+}
@@ -1,5 +1,13 @@
 package edu.uccs.mark.lgca1;
 
+import static edu.uccs.mark.lgca1.State.REST_MASK;
+import static edu.uccs.mark.lgca1.State.S1MASK;
+import static edu.uccs.mark.lgca1.State.S2MASK;
+import static edu.uccs.mark.lgca1.State.S3MASK;
+import static edu.uccs.mark.lgca1.State.S4MASK;
+import static edu.uccs.mark.lgca1.State.S5MASK;
+import static edu.uccs.mark.lgca1.State.S6MASK;
+
 /**
  * This class has the responsibility of traversing the grid and evaluating each cell 1 by 1.
  * It is given a domain of responsibility, and only manages that domain.
@@ -8,20 +16,129 @@ package edu.uccs.mark.lgca1;
  * Once the evaluation has finished for a given timestep, then the Cell Evaluator will
  * update all the cells--change the updated incomingState to the existing incomingState, in preparation
  * for the next timestep.
+ *
+ * By default the update swaps the grid's now and next planes, which is done once for the whole grid.
+ * When several Cell Evaluators share a grid, the swap must be done once by whoever coordinates them,
+ * after all of them have finished evaluating, rather than by calling update() on each.
+ *
+ * The lattice is usually a Grid, whose planes are evaluated in place.  Any other LatticeStorage, such as an
+ * OffHeapGrid, is evaluated by the same row loops on rows copied in and out of it.
  */
 public class CellEvaluator {
 
+    /**
+     * How the evaluated states become the current states at the end of a timestep.
+     */
+    public enum UpdateMode {
+        /**
+         * Swap the grid's planes in one step.  The old plane is overwritten by the next evaluate().
+         */
+        SWAP,
+        /**
+         * Legacy mode: copy each cell's next state to its current state and clear the next state.
+         * Only meant for a single evaluator covering the whole grid, since each update() moves the
+         * grid's timestep on.
+         */
+        PER_CELL
+    }
+
+    /**
+     * Width of the column blocks evaluate() walks the domain in.  Three rows of a block in the now plane and
+     * one in the next plane take 16KB, which fits the L1 data cache.
+     */
+    static final int BLOCK_WIDTH = 4096;
+
+    /**
+     * State.REST_MASK as an int, without the sign extension that would make the inbound state negative.
+     */
+    private static final int REST_BITS = REST_MASK & 0xFF;
+
+    private LatticeStorage storage;
+
+    /**
+     * The storage when it is a Grid, whose planes are read and written in place; null otherwise.
+     */
     private Grid grid;
     private Collider collider;
+    private UpdateMode updateMode;
+
+    /**
+     * Whether the collider's model has rest particles to stream.
+     */
+    private boolean restParticles;
 
     private int startX;
     private int endX;
     private int startY;
     private int endY;
 
+    /**
+     * Where the evaluated rows are added up for the macroscopic observables, or null.
+     */
+    private ObservableAccumulator.Shard observables;
+
+    /**
+     * Row of the whole lattice that row 0 of the grid is, when the grid is one slab of a larger lattice.
+     */
+    private int rowOffset = 0;
+
+    /**
+     * The height of the whole lattice when its rows wrap around, so that row y of the grid is row
+     * (y + rowOffset) mod rowPeriod of it; 0 when they do not.
+     */
+    private int rowPeriod = 0;
+
+    /**
+     * Column of the whole lattice that column 0 of the grid is, and the width of the whole lattice when its
+     * columns wrap around, or 0, when the grid is one tile of a larger lattice.
+     */
+    private int columnOffset = 0;
+    private int columnPeriod = 0;
+
+    /**
+     * Scratch for storage other than a Grid: the rows below, at and above the row being evaluated, and the
+     * evaluated row, each laid out like a padded row.
+     */
+    private byte[] rows;
+    private byte[] evaluated;
+
     public CellEvaluator(Grid grid, Collider collider, int startX, int endX, int startY, int endY){
-        this.grid = grid;
+        this(grid, collider, startX, endX, startY, endY, UpdateMode.SWAP);
+    }
+
+    public CellEvaluator(Grid grid, Collider collider, int startX, int endX, int startY, int endY,
+                         UpdateMode updateMode){
+        this((LatticeStorage)grid, collider, startX, endX, startY, endY, updateMode);
+    }
+
+    /**
+     * Evaluates a domain of any lattice storage.  Storage other than a Grid has open boundaries, is copied in
+     * and out a row at a time, and can only be updated by swapping.
+     * @param storage
+     * @param collider
+     * @param startX
+     * @param endX
+     * @param startY
+     * @param endY
+     */
+    public CellEvaluator(LatticeStorage storage, Collider collider, int startX, int endX, int startY, int endY){
+        this(storage, collider, startX, endX, startY, endY, UpdateMode.SWAP);
+    }
+
+    private CellEvaluator(LatticeStorage storage, Collider collider, int startX, int endX, int startY, int endY,
+                          UpdateMode updateMode){
+        this.storage = storage;
+        if(storage instanceof Grid){
+            this.grid = (Grid)storage;
+        }
+        else{
+            int stride = storage.getxWidth() + 2;
+            rows = new byte[3 * stride];
+            evaluated = new byte[stride];
+        }
         this.collider = collider;
+        this.updateMode = updateMode;
+        this.restParticles = collider.getModel().getRestParticles() != 0;
 
         this.startX = startX;
         this.endX = endX;
@@ -29,26 +146,238 @@ public class CellEvaluator {
         this.endY = endY;
     }
 
+    /**
+     * Makes evaluate() add every row it evaluates to the given shard.
+     * @param observables the shard, or null to stop accumulating
+     */
+    public void setObservables(ObservableAccumulator.Shard observables){
+        this.observables = observables;
+    }
+
+    /**
+     * Makes the random collision choices those of a larger lattice the grid is a slab of, so that the slab
+     * evolves exactly like the same rows of the whole lattice.
+     * @param rowOffset the row of the whole lattice that row 0 of the grid is; it must be even, so that rows
+     *                  keep their parity
+     */
+    public void setRowOffset(int rowOffset){
+        if((rowOffset & 1) != 0){
+            throw new IllegalArgumentException("The row offset must be even, was " + rowOffset);
+        }
+        this.rowOffset = rowOffset;
+    }
+
+    /**
+     * Makes the rows of the whole lattice wrap around, for a grid holding rows of a lattice with periodic
+     * bottom and top boundaries that run past its top or bottom row.
+     * @param rowPeriod the height of the whole lattice, which is even, or 0 for rows that do not wrap
+     */
+    void setRowPeriod(int rowPeriod){
+        this.rowPeriod = rowPeriod;
+    }
+
+    /**
+     * Makes the random collision choices those of a larger lattice the grid holds columns of, which wrap
+     * around when its left and right boundaries are periodic.
+     * @param columnOffset the column of the whole lattice that column 0 of the grid is
+     * @param columnPeriod the width of the whole lattice when its columns wrap around, or 0
+     */
+    void setColumnOffset(int columnOffset, int columnPeriod){
+        this.columnOffset = columnOffset;
+        this.columnPeriod = columnPeriod;
+    }
+
+    /**
+     * Streams and collides every cell of the domain into the grid's next plane.
+     *
+     * The domain is walked in column blocks of BLOCK_WIDTH cells, and each block row by row, so that the three
+     * rows a row streams from stay in the L1 cache however wide the grid is.  Each row is done by a fused
+     * loop that gathers the inbound state straight from the now plane, collides it and writes it to the next
+     * plane.  Even and odd rows have their own loop with the neighbor offsets written out, so there is no
+     * parity test in the loop and the JIT can unroll it, and so do models with and without rest particles.
+     * The bounce back from the obstacles of a row, and the adding up of its observables, are done right after
+     * the row, while it is still in the L1 cache, rather than in a second pass over the block.
+     */
     public void evaluate(){
-        for(int x = startX; x < endX; x++){
+        if(grid == null){
+            evaluateStorage();
+            return;
+        }
+        long timestep = grid.getTimestep();
+        Boundaries boundaries = grid.getBoundaries();
+        byte[] now = grid.getNowPlane();
+        byte[] next = grid.getNextPlane();
+        int stride = grid.getStride();
+        for(int blockX = startX; blockX < endX; blockX += BLOCK_WIDTH){
+            int blockEnd = Math.min(blockX + BLOCK_WIDTH, endX);
             for(int y = startY; y < endY; y++){
-                //get the current incomingState of the surrounding neighbors
-                byte inBoundState = grid.inboundState(x,y);
-                //use collider to determine the new incomingState and set it
-                byte nextState = collider.collide(inBoundState);
-                //update the next incomingState
-                grid.setStateNext(x,y,nextState);
+                int row = grid.index(0, y);
+                evaluateRow(now, row, next, row, stride, blockX, blockEnd, timestep, y);
+                //bounce back from the obstacles in the row, if there are any
+                boundaries.applyObstacles(grid, blockX, blockEnd, y, y + 1);
+                if(observables != null){
+                    observables.addRow(y, next, grid.index(blockX, y), blockX, blockEnd);
+                }
             }
         }
     }
 
+    /**
+     * Evaluates the domain of storage other than a Grid.  The three rows a row streams from are copied into
+     * scratch laid out like a plane, so the row loops are the same as for a Grid, and the evaluated row is
+     * copied back out.
+     */
+    private void evaluateStorage(){
+        long timestep = storage.getTimestep();
+        int stride = storage.getxWidth() + 2;
+        for(int y = startY; y < endY; y++){
+            storage.readNowRow(y - 1, rows, 0);
+            storage.readNowRow(y, rows, stride);
+            storage.readNowRow(y + 1, rows, 2 * stride);
+            evaluateRow(rows, stride + 1, evaluated, 1, stride, startX, endX, timestep, y);
+            storage.writeNextRow(y, evaluated, startX, endX);
+            if(observables != null){
+                observables.addRow(y, evaluated, startX + 1, startX, endX);
+            }
+        }
+    }
+
+    /**
+     * Evaluates cells x0 to x1-1 of row y, in runs of cells whose columns of the whole lattice do not wrap
+     * around.
+     */
+    private void evaluateRow(byte[] now, int nowRow, byte[] next, int nextRow, int stride, int x0, int x1,
+                             long timestep, int y){
+        int globalY = (rowPeriod == 0) ? y + rowOffset : Math.floorMod(y + rowOffset, rowPeriod);
+        if(columnPeriod == 0){
+            evaluateRun(now, nowRow, next, nextRow, stride, x0, x1, timestep, y, columnOffset, globalY);
+            return;
+        }
+        for(int x = x0; x < x1; ){
+            int globalX = Math.floorMod(x + columnOffset, columnPeriod);
+            int end = Math.min(x1, x + columnPeriod - globalX);
+            evaluateRun(now, nowRow, next, nextRow, stride, x, end, timestep, y, globalX - x, globalY);
+            x = end;
+        }
+    }
+
+    /**
+     * Evaluates cells x0 to x1-1 of row y, which are columns x0 + xOffset to x1-1 + xOffset of the whole
+     * lattice, with the loop for its parity, and for whether the model has rest particles.  Models without
+     * them do not pay for streaming them.
+     */
+    private void evaluateRun(byte[] now, int nowRow, byte[] next, int nextRow, int stride, int x0, int x1,
+                             long timestep, int y, int xOffset, int globalY){
+        if(restParticles){
+            if((y & 1) == 0){
+                evaluateEvenRestRow(now, nowRow, next, nextRow, stride, x0, x1, timestep, xOffset, globalY);
+            }
+            else{
+                evaluateOddRestRow(now, nowRow, next, nextRow, stride, x0, x1, timestep, xOffset, globalY);
+            }
+        }
+        else if((y & 1) == 0){
+            evaluateEvenRow(now, nowRow, next, nextRow, stride, x0, x1, timestep, xOffset, globalY);
+        }
+        else{
+            evaluateOddRow(now, nowRow, next, nextRow, stride, x0, x1, timestep, xOffset, globalY);
+        }
+    }
+
+    /**
+     * Evaluates cells x0 to x1-1 of an even row, where cell x is now[nowRow + x] and next[nextRow + x].
+     * Directions 1-6 come from the cells at offsets -1, -stride-1, -stride, +1, +stride, +stride-1
+     * (see Grid.inboundState()).
+     */
+    private void evaluateEvenRow(byte[] now, int nowRow, byte[] next, int nextRow, int stride, int x0, int x1,
+                                 long timestep, int xOffset, int globalY){
+        for(int x = x0; x < x1; x++){
+            int i = nowRow + x;
+            int below = i - stride;
+            int above = i + stride;
+            int in = (now[i - 1] & S1MASK)
+                    | (now[below - 1] & S2MASK)
+                    | (now[below] & S3MASK)
+                    | (now[i + 1] & S4MASK)
+                    | (now[above] & S5MASK)
+                    | (now[above - 1] & S6MASK);
+            next[nextRow + x] = collider.collide(in, timestep, x + xOffset, globalY);
+        }
+    }
+
+    /**
+     * Evaluates cells x0 to x1-1 of an odd row, where cell x is now[nowRow + x] and next[nextRow + x].
+     * Directions 1-6 come from the cells at offsets -1, -stride, -stride+1, +1, +stride+1, +stride.
+     */
+    private void evaluateOddRow(byte[] now, int nowRow, byte[] next, int nextRow, int stride, int x0, int x1,
+                                long timestep, int xOffset, int globalY){
+        for(int x = x0; x < x1; x++){
+            int i = nowRow + x;
+            int below = i - stride;
+            int above = i + stride;
+            int in = (now[i - 1] & S1MASK)
+                    | (now[below] & S2MASK)
+                    | (now[below + 1] & S3MASK)
+                    | (now[i + 1] & S4MASK)
+                    | (now[above + 1] & S5MASK)
+                    | (now[above] & S6MASK);
+            next[nextRow + x] = collider.collide(in, timestep, x + xOffset, globalY);
+        }
+    }
+
+    /**
+     * Same as evaluateEvenRow(), for models with rest particles, which stay where they are.
+     */
+    private void evaluateEvenRestRow(byte[] now, int nowRow, byte[] next, int nextRow, int stride, int x0, int x1,
+                                     long timestep, int xOffset, int globalY){
+        for(int x = x0; x < x1; x++){
+            int i = nowRow + x;
+            int below = i - stride;
+            int above = i + stride;
+            int in = (now[i - 1] & S1MASK)
+                    | (now[below - 1] & S2MASK)
+                    | (now[below] & S3MASK)
+                    | (now[i + 1] & S4MASK)
+                    | (now[above] & S5MASK)
+                    | (now[above - 1] & S6MASK)
+                    | (now[i] & REST_BITS);
+            next[nextRow + x] = collider.collide(in, timestep, x + xOffset, globalY);
+        }
+    }
+
+    /**
+     * Same as evaluateOddRow(), for models with rest particles, which stay where they are.
+     */
+    private void evaluateOddRestRow(byte[] now, int nowRow, byte[] next, int nextRow, int stride, int x0, int x1,
+                                    long timestep, int xOffset, int globalY){
+        for(int x = x0; x < x1; x++){
+            int i = nowRow + x;
+            int below = i - stride;
+            int above = i + stride;
+            int in = (now[i - 1] & S1MASK)
+                    | (now[below] & S2MASK)
+                    | (now[below + 1] & S3MASK)
+                    | (now[i + 1] & S4MASK)
+                    | (now[above + 1] & S5MASK)
+                    | (now[above] & S6MASK)
+                    | (now[i] & REST_BITS);
+            next[nextRow + x] = collider.collide(in, timestep, x + xOffset, globalY);
+        }
+    }
+
     public void update(){
-        for(int x = startX; x < endX; x++){
-            for(int y = startY; y < endY; y++){
+        if(updateMode == UpdateMode.SWAP){
+            storage.swap();
+            return;
+        }
+        for(int y = startY; y < endY; y++){
+            for(int x = startX; x < endX; x++){
                 //update each cell's current incomingState to it's calculated new incomingState
                 grid.updateState(x,y);
             }
         }
+        grid.advanceTimestep();
+        grid.fillHalo();
     }
 
 }
@@ -0,0 +1,272 @@
+package edu.uccs.mark.lgca1;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Saves and restores the full state of a simulation in a binary checkpoint file.
+ *
+ * The file is a fixed size header followed by the grid's now plane, halo included, exactly as it is laid out
+ * in memory, and then the plane indexes of the solid obstacle cells.  The plane and the obstacles are each
+ * written and read with a single bulk copy into or out of a memory mapped buffer.
+ *
+ * Header (big endian):
+ *   int    magic "LGCA"
+ *   int    format version
+ *   int    width
+ *   int    height
+ *   long   timestep
+ *   long   collider seed
+ *   int[4] BoundaryType ordinal of each side (left, right, bottom, top)
+ *   double inflow density
+ *   long   inflow seed
+ *   int    number of solid obstacle cells
+ *   int    CollisionModel.RuleSet ordinal
+ *   int    number of rest particles
+ *   int    conserved quantities, bit q set for CollisionModel.Quantity ordinal q
+ *   int    CollisionModel.Chirality ordinal
+ *   int    collider flags, bit 0 set when it is deterministic (see Collider.deterministic())
+ *   padding up to HEADER_SIZE bytes
+ *
+ * Version 1 files have a 64 byte header that ends after the sides, which are always open, and no obstacles.
+ * Version 1 and 2 files were written with the original collision model, and version 1 to 3 files with
+ * random collisions.
+ *
+ * Since the collider's random choice only depends on its seed, the timestep and the cell, the seed is all
+ * of the random state there is, and a restored simulation carries on bit for bit as if it had never stopped.
+ */
+public class Checkpoint {
+
+    public static final int MAGIC = 0x4C474341; // "LGCA"
+    public static final int VERSION = 4;
+    public static final int HEADER_SIZE = 128;
+
+    private static final int VERSION_1_HEADER_SIZE = 64;
+
+    private static final int DETERMINISTIC = 1;
+
+    private Grid grid;
+    private Collider collider;
+
+    private Checkpoint(Grid grid, Collider collider){
+        this.grid = grid;
+        this.collider = collider;
+    }
+
+    /**
+     * The restored grid, at the timestep it was saved at.
+     * @return
+     */
+    public Grid getGrid() {
+        return grid;
+    }
+
+    /**
+     * A collider with the saved seed and collision model, deterministic if the saved one was.
+     * @return
+     */
+    public Collider getCollider() {
+        return collider;
+    }
+
+    /**
+     * Writes the grid's now plane and the collider's seed, model and mode to the file.
+     * The file is written under a temporary name and then moved into place, so a crash in the middle of a
+     * write never leaves a half written checkpoint behind.
+     * @param file
+     * @param grid
+     * @param collider
+     * @throws IOException
+     */
+    public static void write(Path file, Grid grid, Collider collider) throws IOException {
+        Boundaries b = grid.getBoundaries();
+        write(file, grid.getxWidth(), grid.getyHeight(), grid.getTimestep(), collider, sides(b), b.getInflowDensity(),
+                b.getInflowSeed(), b.getSolidCells(), grid.getNowPlane());
+    }
+
+    /**
+     * The type of each side of the boundaries, in the order of the header.
+     * @param boundaries
+     * @return
+     */
+    static BoundaryType[] sides(Boundaries boundaries){
+        BoundaryType[] sides = new BoundaryType[4];
+        for(int side = 0; side < 4; side++){
+            sides[side] = boundaries.getSide(side);
+        }
+        return sides;
+    }
+
+    /**
+     * Writes a plane laid out like a Grid's, with the given dimensions, timestep, collider and boundaries.
+     * The boundaries are passed as plain values, so that a copy taken while the grid is stepped can be written
+     * on another thread.
+     * @param file
+     * @param width
+     * @param height
+     * @param timestep
+     * @param collider
+     * @param sides the type of each side, in the order of the header
+     * @param inflowDensity
+     * @param inflowSeed
+     * @param solids the plane indexes of the solid cells, sorted
+     * @param plane
+     * @throws IOException
+     */
+    static void write(Path file, int width, int height, long timestep, Collider collider, BoundaryType[] sides,
+                      double inflowDensity, long inflowSeed, int[] solids, byte[] plane) throws IOException {
+        CollisionModel model = collider.getModel();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long)plane.length + 4L * solids.length);
+            buf.putInt(MAGIC);
+            buf.putInt(VERSION);
+            buf.putInt(width);
+            buf.putInt(height);
+            buf.putLong(timestep);
+            buf.putLong(collider.getSeed());
+            for(int side = 0; side < 4; side++){
+                buf.putInt(sides[side].ordinal());
+            }
+            buf.putDouble(inflowDensity);
+            buf.putLong(inflowSeed);
+            buf.putInt(solids.length);
+            buf.putInt(model.getRuleSet().ordinal());
+            buf.putInt(model.getRestParticles());
+            int conserved = 0;
+            for(CollisionModel.Quantity q:model.getConserved()){
+                conserved |= 1 << q.ordinal();
+            }
+            buf.putInt(conserved);
+            buf.putInt(model.getChirality().ordinal());
+            buf.putInt(collider.isDeterministic() ? DETERMINISTIC : 0);
+            //cast for Java 8, where position() is only declared on Buffer
+            ((Buffer)buf).position(HEADER_SIZE);
+            buf.put(plane);
+            buf.asIntBuffer().put(solids);
+            buf.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps a checkpoint file and rebuilds the grid and collider from it.
+     * @param file
+     * @return
+     * @throws IOException if the file can not be read or is not a checkpoint of a version this code knows
+     */
+    public static Checkpoint read(Path file) throws IOException {
+        try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)){
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            //the magic and the version first, since the size of the rest of the header depends on the version
+            if(ch.size() < 8 || buf.getInt() != MAGIC){
+                throw new IOException(file + " is not a lattice checkpoint");
+            }
+            int version = buf.getInt();
+            if(version < 1 || version > VERSION){
+                throw new IOException(file + " has checkpoint version " + version + ", expected " + VERSION);
+            }
+            if(ch.size() < ((version == 1) ? VERSION_1_HEADER_SIZE : HEADER_SIZE)){
+                throw new IOException(file + " is truncated");
+            }
+            int width = buf.getInt();
+            int height = buf.getInt();
+            long timestep = buf.getLong();
+            long seed = buf.getLong();
+            BoundaryType[] sides = new BoundaryType[4];
+            for(int side = 0; side < 4; side++){
+                int type = buf.getInt();
+                if(type < 0 || type >= BoundaryType.values().length){
+                    throw new IOException(file + " has unknown boundary type " + type);
+                }
+                sides[side] = BoundaryType.values()[type];
+            }
+            double inflowDensity = 0.0;
+            long inflowSeed = 0L;
+            int solidCount = 0;
+            int headerSize = VERSION_1_HEADER_SIZE;
+            if(version >= 2){
+                inflowDensity = buf.getDouble();
+                inflowSeed = buf.getLong();
+                solidCount = buf.getInt();
+                headerSize = HEADER_SIZE;
+            }
+            CollisionModel model = CollisionModel.ORIGINAL;
+            if(version >= 3){
+                model = readModel(file, buf);
+            }
+            int flags = 0;
+            if(version >= 4){
+                flags = buf.getInt();
+            }
+
+            Grid grid = new Grid(width, height);
+            byte[] plane = grid.getNowPlane();
+            if(ch.size() != headerSize + (long)plane.length + 4L * solidCount){
+                throw new IOException(file + " is truncated");
+            }
+            ((Buffer)buf).position(headerSize);
+            buf.get(plane);
+            int[] solids = new int[solidCount];
+            buf.asIntBuffer().get(solids);
+            grid.setTimestep(timestep);
+
+            Boundaries boundaries = new Boundaries(grid, sides[Boundaries.LEFT], sides[Boundaries.RIGHT],
+                    sides[Boundaries.BOTTOM], sides[Boundaries.TOP]);
+            boundaries.setInflow(inflowDensity, inflowSeed);
+            int stride = grid.getStride();
+            for(int c:solids){
+                boundaries.addSolid(c % stride - 1, c / stride - 1);
+            }
+            grid.setBoundaries(boundaries);
+            Collider collider = new Collider(seed, model);
+            return new Checkpoint(grid, ((flags & DETERMINISTIC) != 0) ? collider.deterministic() : collider);
+        }
+    }
+
+    /**
+     * Reads the collision model fields of the header, naming the model after the preset it matches.
+     */
+    private static CollisionModel readModel(Path file, MappedByteBuffer buf) throws IOException {
+        int ruleSet = buf.getInt();
+        int rest = buf.getInt();
+        int conserved = buf.getInt();
+        int chirality = buf.getInt();
+        if(ruleSet < 0 || ruleSet >= CollisionModel.RuleSet.values().length
+                || chirality < 0 || chirality >= CollisionModel.Chirality.values().length){
+            throw new IOException(file + " has an unknown collision model");
+        }
+        Set<CollisionModel.Quantity> quantities = EnumSet.noneOf(CollisionModel.Quantity.class);
+        for(CollisionModel.Quantity q:CollisionModel.Quantity.values()){
+            if((conserved & (1 << q.ordinal())) != 0){
+                quantities.add(q);
+            }
+        }
+        try{
+            CollisionModel model = new CollisionModel("custom", CollisionModel.RuleSet.values()[ruleSet], rest,
+                    quantities, CollisionModel.Chirality.values()[chirality]);
+            for(CollisionModel preset:new CollisionModel[]{CollisionModel.ORIGINAL, CollisionModel.FHP_I,
+                    CollisionModel.FHP_II, CollisionModel.FHP_III}){
+                if(preset.withChirality(model.getChirality()).equals(model)){
+                    return (preset.getChirality() == model.getChirality()) ? preset
+                            : preset.withChirality(model.getChirality());
+                }
+            }
+            return model;
+        }
+        catch(IllegalArgumentException e){
+            throw new IOException(file + " has an invalid collision model", e);
+        }
+    }
+
+}
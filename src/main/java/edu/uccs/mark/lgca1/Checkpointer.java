@@ -0,0 +1,164 @@
+package edu.uccs.mark.lgca1;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes checkpoints every N timesteps on a background thread.
+ *
+ * Taking a checkpoint copies the grid's now plane into a snapshot buffer, which is a single array copy,
+ * and the grid's boundaries, and hands them to the writer thread.  The stepping loop carries on while the
+ * file is written.  If the previous checkpoint is still being written when the next one is due, the new one
+ * is skipped rather than making the stepping loop wait.
+ */
+public class Checkpointer {
+
+    private Path directory;
+    private int interval;
+
+    private ExecutorService writer;
+    private Future<?> pending;
+    private byte[] snapshot;
+    private volatile IOException failure;
+    private volatile int written = 0;
+    private int skipped = 0;
+
+    /**
+     * @param directory where the checkpoint files go
+     * @param interval number of timesteps between checkpoints
+     * @throws IllegalArgumentException if the interval is not positive
+     */
+    public Checkpointer(Path directory, int interval){
+        if(interval < 1){
+            throw new IllegalArgumentException("The checkpoint interval must be positive");
+        }
+        this.directory = directory;
+        this.interval = interval;
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "checkpoint-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * The file the checkpoint for the given timestep is written to.
+     * @param timestep
+     * @return
+     */
+    public Path fileFor(long timestep){
+        return directory.resolve(String.format("checkpoint-%012d.lgca", timestep));
+    }
+
+    /**
+     * Steps the engine, taking a checkpoint every interval timesteps.
+     * @param engine
+     * @param collider
+     * @param steps
+     * @throws IOException if a checkpoint failed to be written
+     */
+    public void run(LatticeEngine engine, Collider collider, int steps) throws IOException {
+        int done = 0;
+        while(done < steps){
+            long timestep = engine.getGrid().getTimestep();
+            int n = (int)Math.min(steps - done, interval - (timestep % interval));
+            engine.step(n);
+            done += n;
+            Grid g = engine.getGrid();
+            if(g.getTimestep() % interval == 0){
+                checkpoint(g, collider);
+            }
+        }
+    }
+
+    /**
+     * Takes a checkpoint of the grid now, to be written in the background.
+     * @param grid
+     * @param collider
+     * @return false if it was skipped because the previous checkpoint is still being written
+     * @throws IOException if the previous checkpoint failed to be written
+     */
+    public boolean checkpoint(Grid grid, final Collider collider) throws IOException {
+        rethrowFailure();
+        if(pending != null && !pending.isDone()){
+            skipped++;
+            return false;
+        }
+
+        byte[] plane = grid.getNowPlane();
+        if(snapshot == null || snapshot.length != plane.length){
+            snapshot = new byte[plane.length];
+        }
+        System.arraycopy(plane, 0, snapshot, 0, plane.length);
+        //the boundaries are copied here too, since the grid's can change while the file is written
+        Boundaries b = grid.getBoundaries();
+        final BoundaryType[] sides = Checkpoint.sides(b);
+        final double inflowDensity = b.getInflowDensity();
+        final long inflowSeed = b.getInflowSeed();
+        final int[] solids = b.getSolidCells().clone();
+
+        final Path file = fileFor(grid.getTimestep());
+        final int width = grid.getxWidth();
+        final int height = grid.getyHeight();
+        final long timestep = grid.getTimestep();
+        final byte[] buffer = snapshot;
+        pending = writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    Checkpoint.write(file, width, height, timestep, collider, sides, inflowDensity, inflowSeed, solids,
+                            buffer);
+                    written++;
+                }
+                catch(IOException e){
+                    failure = e;
+                }
+            }
+        });
+        return true;
+    }
+
+    private void rethrowFailure() throws IOException {
+        IOException e = failure;
+        if(e != null){
+            failure = null;
+            throw e;
+        }
+    }
+
+    /**
+     * The number of checkpoint files finished so far, which does not count those still being written.
+     * @return
+     */
+    public int getWritten() {
+        return written;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Waits for the last checkpoint to be written and stops the writer thread.
+     * @throws IOException if the last checkpoint failed to be written
+     */
+    public void close() throws IOException {
+        writer.shutdown();
+        try{
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        rethrowFailure();
+    }
+
+}
@@ -1,9 +1,8 @@
 package edu.uccs.mark.lgca1;
 
-import java.util.ArrayList;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 
-import static edu.uccs.mark.lgca1.State.ALL_POSSIBLE_STATES;
 import static edu.uccs.mark.lgca1.State.SMASKS;
 
 /**
@@ -17,81 +16,158 @@ import static edu.uccs.mark.lgca1.State.SMASKS;
  *
  * Most collisions will result in a singe possible trajectory.
  * Some of them will have multiple trajectory possibilities, and one will be chosen at random.
+ * Which states collide into which comes from a CollisionModel; the default is the original model, where a
+ * state may become any state of the same mass and momentum.
+ *
+ * The random choice is made by a counter based generator: the choice for a cell is a hash of the
+ * collider's seed, the timestep and the cell's coordinates.  It has no mutable state, so any number of
+ * threads can collide at once without contention, and a given seed produces the same history no matter
+ * how the grid is split between threads.
  */
 public class Collider {
 
     /**
-     * Holds a single entry of an incoming incomingState and it's possible trajectories
+     * x and y momentum of a particle moving in each of the 6 directions (see calculateMomentum()).
      */
-    private static class StateMapEntry {
-        byte incomingState;
-        byte[] resultingState;
-    }
+    static final int xm[] = new int[]{100, 50, -50, -100, -50, 50};
+    static final int ym[] = new int[]{0, 87, 87, 0, -87, -87};
 
     /**
-     * Holds a mapping of all possible states with their possible collisions.
+     * The model whose collisions this collider applies.
      */
-    private StateMapEntry[] collisions = new StateMapEntry[64];
+    private final CollisionModel model;
 
     /**
-     * Random number generator
+     * All of the possible outcomes of every state, packed one state after the other.
      */
-    private Random rand = new Random();
+    private final byte[] outcomes;
 
     /**
-     * Uses the list of all possible states to populate the collision map
-     * comparing each one with the entire list using conservation of momentum.
+     * One entry per state: bits 0-7 hold the state's first possible outcome, bits 8-15 the number of
+     * possible outcomes, bits 16-30 the offset of the outcomes in outcomes and bit 31 is
+     * CollisionRuleCompiler.ALTERNATE.
+     * When there is one outcome, the collision is a single load from this table.
      */
-    public void preCalculateCollisions(){
-        for(int i = 0; i < ALL_POSSIBLE_STATES.length; i++){
-            collisions[i] = new StateMapEntry();
-            collisions[i].incomingState = ALL_POSSIBLE_STATES[i];
-            collisions[i].resultingState = calculateAllPossibleOutboundStates(ALL_POSSIBLE_STATES[i], ALL_POSSIBLE_STATES);
-            //collisions[i].print();
-        }
+    private final int[] collisions;
+
+    /**
+     * Number of columns of choices.  It is a multiple of every state's number of outcomes.
+     */
+    private final int choiceWidth;
+
+    /**
+     * choiceWidth entries per state: entry r of state s is outcome (r mod number of outcomes) of s.
+     * A uniform pick of a column is a uniform pick of an outcome.
+     */
+    private final byte[] choices;
+
+    /**
+     * Seed of the counter based random choice
+     */
+    private final long seed;
+
+    /**
+     * Whether the random collisions always take their first outcome (see deterministic()).
+     */
+    private final boolean deterministic;
+
+    /**
+     * Creates a collider with a seed taken from the system clock.
+     */
+    public Collider(){
+        this(System.nanoTime());
+    }
+
+    public Collider(long seed){
+        this(seed, CollisionModel.ORIGINAL);
     }
 
     /**
-     * Determines all possible outbound states given an inbound state using conservation of momentum.
-     *
-     * @param state
-     * @param allPossible
-     * @return
+     * Creates a collider applying the collisions of the given model.  The model's tables are compiled the
+     * first time it is used and shared by every collider of the model after that.
+     * @param seed
+     * @param model
+     * @throws IllegalStateException if a collision of the model does not conserve its conserved quantities
      */
-    private byte[] calculateAllPossibleOutboundStates(byte state, byte[] allPossible){
-        int stateNumParticles = calcNumParticlesInState(state);
-        int[] stateMomentum = calculateMomentum(state);
-        ArrayList<Byte> possibleStates = new ArrayList<>();
-        for(byte poss:allPossible){
-            int possNumPart = calcNumParticlesInState(poss);
-            if(possNumPart==stateNumParticles){
-                int[] possMomentum = calculateMomentum(poss);
-                if(compareMomenta(possMomentum, stateMomentum)){
-                    possibleStates.add(poss);
+    public Collider(long seed, CollisionModel model){
+        this(seed, model, false);
+    }
+
+    private Collider(long seed, CollisionModel model, boolean deterministic){
+        this.seed = seed;
+        this.model = model;
+        this.deterministic = deterministic;
+        CollisionRuleCompiler.Table table = CollisionRuleCompiler.compile(model);
+        outcomes = table.outcomes;
+        choiceWidth = table.choiceWidth;
+        choices = table.choices;
+        if(deterministic){
+            //make every random collision a single outcome one, so collide() never gets to the random choice
+            collisions = table.collisions.clone();
+            for(int s = 0; s < collisions.length; s++){
+                if(collisions[s] >= 0 && (collisions[s] & 0xFF00) != 0x0100){
+                    collisions[s] = (collisions[s] & ~0xFF00) | 0x0100;
                 }
             }
         }
-        byte[] ret = new byte[possibleStates.size()];
-        int i = 0;
-        for(Byte b:possibleStates){
-            ret[i++] = b.byteValue();
+        else{
+            collisions = table.collisions;
         }
-        return ret;
     }
 
     /**
-     * Quick utility method to test equality of momentum vectors.
-     * @param a
-     * @param b
+     * A collider of the same seed and model whose random collisions always take the first of their
+     * outcomes, so that a cell's next state only depends on its inbound state, and with ALTERNATING chirality
+     * on the parity of the timestep.  Collisions with a single outcome are unchanged.  The lattice then evolves
+     * the same way wherever it is and whatever the seed, which is what MemoizedEngine needs.
      * @return
      */
-    private boolean compareMomenta(int[] a, int[] b){
-        return ((a[0] == b[0]) &&
-                (a[1]) == b[1]) ;
+    public Collider deterministic(){
+        return deterministic ? this : new Collider(seed, model, true);
     }
 
-    private static final int xm[] = new int[]{100, 50, -50, -100, -50, 50};
-    private static final int ym[] = new int[]{0, 87, 87, 0, -87, -87};
+    /**
+     * Whether no collision is chosen at random, because of deterministic() or because the model has a single
+     * outcome, or a LEFT, RIGHT or ALTERNATING one, for every state.
+     * @return
+     */
+    public boolean isDeterministic(){
+        for(int entry:collisions){
+            if(entry >= 0 && (entry & 0xFF00) != 0x0100){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether some collision alternates with the parity of the timestep.
+     * @return
+     */
+    boolean alternates(){
+        for(int entry:collisions){
+            if(entry < 0){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getSeed(){
+        return seed;
+    }
+
+    public CollisionModel getModel(){
+        return model;
+    }
+
+    /**
+     * The collisions are now calculated once, when the class is loaded, so there is nothing left to do here.
+     * @deprecated no longer needs to be called
+     */
+    @Deprecated
+    public void preCalculateCollisions(){
+    }
 
     /**
      * Calculates the total momentum of the given state in order to compare it to possible states.
@@ -111,7 +187,7 @@ public class Collider {
      * @param state
      * @return
      */
-    private int[] calculateMomentum(byte state){
+    static int[] calculateMomentum(byte state){
         //pull out each particle.
 
         //each particle has an x and y momentum based on its direction
@@ -161,7 +237,7 @@ public class Collider {
      * @param state
      * @return
      */
-    private int calcNumParticlesInState(byte state){
+    static int calcNumParticlesInState(byte state){
         //use bitwise operators to determine the number of particles in the incomingState
         int count = 0;
         for(int n = 0; n < SMASKS.length; n++){
@@ -178,20 +254,90 @@ public class Collider {
      *
      * @param inBoundState
      * @return
+     * @deprecated draws from an unseeded ThreadLocalRandom, so runs can not be reproduced; use
+     * collide(inBoundState, timestep, x, y)
      */
+    @Deprecated
     public byte collide(byte inBoundState){
-        byte[] poss = collisions[(int)inBoundState].resultingState;
-        if(poss.length==1){
-            return poss[0];
+        int s = inBoundState & 0xFF;
+        int entry = collisions[s];
+        if((entry & 0xFF00) == 0x0100){
+            return (byte)entry;
+        }
+        else{
+            //there is no timestep to alternate with, so alternating collisions are drawn at random here
+            return choices[s * choiceWidth + ThreadLocalRandom.current().nextInt(choiceWidth)];
+        }
+    }
+
+    /**
+     * Same as collide(inBoundState), but the random choice is reproducible: it only depends on the
+     * collider's seed, the timestep and the coordinates of the cell.
+     *
+     * @param inBoundState
+     * @param timestep
+     * @param x
+     * @param y
+     * @return
+     */
+    public byte collide(byte inBoundState, long timestep, int x, int y){
+        return collide(inBoundState & 0xFF, timestep, x, y);
+    }
+
+    /**
+     * Same as collide(inBoundState, timestep, x, y), for a state the caller has already put in [0, 256), as
+     * the engines' streaming loops do.
+     *
+     * @param s
+     * @param timestep
+     * @param x
+     * @param y
+     * @return
+     */
+    byte collide(int s, long timestep, int x, int y){
+        int entry = collisions[s];
+        if((entry & 0xFF00) == 0x0100){
+            return (byte)entry;
+        }
+        else if(entry < 0){
+            //ALTERNATE: the left rotation on even timesteps, the right one on odd ones
+            return outcomes[((entry >>> 16) & 0x7FFF) + (int)(timestep & 1)];
         }
         else{
-            int ndx = rand.nextInt(poss.length - 1);
-            return poss[ndx];
+            return choices[s * choiceWidth + choose(choiceWidth, timestep, x, y)];
         }
     }
 
+    /**
+     * Picks a number in [0, n) for the given cell and timestep.
+     *
+     * @param n
+     * @param timestep
+     * @param x
+     * @param y
+     * @return
+     */
+    int choose(int n, long timestep, int x, int y){
+        long h = mix(seed ^ mix(timestep * 0x9E3779B97F4A7C15L + (((long)y << 32) | (x & 0xFFFFFFFFL))));
+        //scale the top 32 bits into [0, n), which has no measurable bias for small n
+        return (int)(((h >>> 32) * n) >>> 32);
+    }
+
+    /**
+     * The SplitMix64 finalizer, which turns a counter into a well mixed 64 bit value.
+     * @param z
+     * @return
+     */
+    static long mix(long z){
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
     public byte[] getCollisionPosibilities(byte inBoundState){
-        return collisions[(int)inBoundState].resultingState;
+        int entry = collisions[inBoundState & 0xFF];
+        int offset = (entry >>> 16) & 0x7FFF;
+        return Arrays.copyOfRange(outcomes, offset, offset + ((entry >>> 8) & 0xFF));
     }
 
 
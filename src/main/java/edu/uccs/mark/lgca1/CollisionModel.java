@@ -0,0 +1,186 @@
+package edu.uccs.mark.lgca1;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The definition of a lattice gas model's collisions, which CollisionRuleCompiler turns into the Collider's
+ * lookup tables.
+ *
+ * A cell has the 6 moving directions of the hexagonal lattice in bits 0-5 and up to 2 rest particles in bits
+ * 6 and 7 (see State.REST_MASK), so a model has 64, 128 or 256 states.  The rule set says which states each
+ * state may collide into, and every one of those must conserve the model's conserved quantities.
+ * The chirality policy applies to the states whose only outcomes are the state itself rotated 60 degrees to
+ * the left and to the right, like a head-on pair: it says which of the two rotations is taken.
+ */
+public class CollisionModel {
+
+    /**
+     * Quantities a collision can conserve.  Rest particles have mass but no momentum or energy.
+     */
+    public enum Quantity {
+        MASS,
+        MOMENTUM,
+        /**
+         * The number of moving particles.
+         */
+        ENERGY
+    }
+
+    /**
+     * Which states a state may collide into.
+     */
+    public enum RuleSet {
+        /**
+         * Any state with the same conserved quantities, itself included.  This is the Collider's original
+         * rule.
+         */
+        EQUIVALENT,
+        /**
+         * FHP-I: head-on pairs rotate 60 degrees either way, and symmetric triples rotate 60 degrees.  Nothing
+         * else collides.
+         */
+        FHP_I,
+        /**
+         * FHP-II: the FHP-I collisions with or without a spectator rest particle, plus a rest particle and a
+         * moving particle turning into the two moving particles 60 degrees either side of it, and back.
+         */
+        FHP_II,
+        /**
+         * Any other state with the same conserved quantities, when there is one.  With a rest particle this
+         * is the collision saturated FHP-III.
+         */
+        SATURATED
+    }
+
+    /**
+     * How a state whose only outcomes are its left and right rotations picks one.
+     */
+    public enum Chirality {
+        /**
+         * At random, from the Collider's reproducible choice.
+         */
+        RANDOM,
+        /**
+         * Left on even timesteps, right on odd ones.
+         */
+        ALTERNATING,
+        LEFT,
+        RIGHT
+    }
+
+    /**
+     * The Collider's original model: 6 bits, any state of the same mass and momentum.
+     */
+    public static final CollisionModel ORIGINAL = new CollisionModel("ORIGINAL", RuleSet.EQUIVALENT, 0,
+            EnumSet.of(Quantity.MASS, Quantity.MOMENTUM), Chirality.RANDOM);
+
+    public static final CollisionModel FHP_I = new CollisionModel("FHP_I", RuleSet.FHP_I, 0,
+            EnumSet.of(Quantity.MASS, Quantity.MOMENTUM, Quantity.ENERGY), Chirality.RANDOM);
+
+    public static final CollisionModel FHP_II = new CollisionModel("FHP_II", RuleSet.FHP_II, 1,
+            EnumSet.of(Quantity.MASS, Quantity.MOMENTUM), Chirality.RANDOM);
+
+    public static final CollisionModel FHP_III = new CollisionModel("FHP_III", RuleSet.SATURATED, 1,
+            EnumSet.of(Quantity.MASS, Quantity.MOMENTUM), Chirality.RANDOM);
+
+    private static final CollisionModel[] PRESETS = new CollisionModel[]{ORIGINAL, FHP_I, FHP_II, FHP_III};
+
+    private final String name;
+    private final RuleSet ruleSet;
+    private final int restParticles;
+    private final Set<Quantity> conserved;
+    private final Chirality chirality;
+
+    /**
+     * @param name
+     * @param ruleSet
+     * @param restParticles number of rest particles a cell can hold, 0 to 2
+     * @param conserved the quantities every collision must conserve
+     * @param chirality
+     */
+    public CollisionModel(String name, RuleSet ruleSet, int restParticles, Set<Quantity> conserved,
+                          Chirality chirality){
+        if(restParticles < 0 || restParticles > 2){
+            throw new IllegalArgumentException("A cell can hold 0 to 2 rest particles, not " + restParticles);
+        }
+        if((ruleSet == RuleSet.FHP_I && restParticles != 0) || (ruleSet == RuleSet.FHP_II && restParticles != 1)){
+            throw new IllegalArgumentException(ruleSet + " does not have " + restParticles + " rest particles");
+        }
+        this.name = name;
+        this.ruleSet = ruleSet;
+        this.restParticles = restParticles;
+        this.conserved = conserved.isEmpty() ? EnumSet.noneOf(Quantity.class) : EnumSet.copyOf(conserved);
+        this.chirality = chirality;
+    }
+
+    /**
+     * The preset with the given name: ORIGINAL, FHP_I, FHP_II or FHP_III.
+     * @param name
+     * @return
+     */
+    public static CollisionModel preset(String name){
+        for(CollisionModel m:PRESETS){
+            if(m.name.equals(name)){
+                return m;
+            }
+        }
+        throw new IllegalArgumentException("No collision model named " + name);
+    }
+
+    /**
+     * The same model with another chirality policy.
+     * @param chirality
+     * @return
+     */
+    public CollisionModel withChirality(Chirality chirality){
+        return new CollisionModel(name + "/" + chirality, ruleSet, restParticles, conserved, chirality);
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public RuleSet getRuleSet(){
+        return ruleSet;
+    }
+
+    public int getRestParticles(){
+        return restParticles;
+    }
+
+    public Set<Quantity> getConserved(){
+        return EnumSet.copyOf(conserved);
+    }
+
+    public Chirality getChirality(){
+        return chirality;
+    }
+
+    /**
+     * Number of states of a cell: 64, 128 or 256.
+     * @return
+     */
+    public int getStateCount(){
+        return State.ALL_POSSIBLE_STATES.length << restParticles;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(!(o instanceof CollisionModel)) return false;
+        CollisionModel m = (CollisionModel)o;
+        return ruleSet == m.ruleSet && restParticles == m.restParticles && conserved.equals(m.conserved)
+                && chirality == m.chirality;
+    }
+
+    @Override
+    public int hashCode(){
+        return ((ruleSet.hashCode() * 31 + restParticles) * 31 + conserved.hashCode()) * 31 + chirality.hashCode();
+    }
+
+    @Override
+    public String toString(){
+        return name;
+    }
+
+}
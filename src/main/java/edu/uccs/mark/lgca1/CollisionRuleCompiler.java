@@ -0,0 +1,341 @@
+package edu.uccs.mark.lgca1;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns a CollisionModel into the primitive lookup tables the Collider's hot path uses, and checks that every
+ * collision conserves the model's conserved quantities.
+ *
+ * The quantities are computed exactly, in integer lattice units: the x momentum of direction d is
+ * 2cos(d pi/3) and the y momentum 2sin(d pi/3)/sqrt(3), so no two different momenta can compare equal.
+ * The outcomes of each state are listed in increasing order, except for ALTERNATING chirality, where the
+ * left rotation comes first.
+ *
+ * Compiled tables are cached per model, so every Collider of a model shares the same arrays.
+ */
+public class CollisionRuleCompiler {
+
+    /**
+     * Flag of a collision entry whose two outcomes alternate with the timestep instead of being drawn.
+     */
+    static final int ALTERNATE = 1 << 31;
+
+    /**
+     * Largest number of columns of the choice table.  It is the least common multiple of the numbers of
+     * outcomes, which stays small for the hexagonal lattice.
+     */
+    private static final int MAX_CHOICE_WIDTH = 1 << 12;
+
+    private static final int[] MOMENTUM_X = new int[]{2, 1, -1, -2, -1, 1};
+    private static final int[] MOMENTUM_Y = new int[]{0, 1, 1, 0, -1, -1};
+
+    private static final ConcurrentHashMap<CollisionModel, Table> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * The compiled collisions of a model.
+     *
+     * outcomes holds the possible outcomes of every state, one state after the other.  collisions has one
+     * entry per state: bits 0-7 hold its first outcome, bits 8-15 its number of outcomes, bits 16-30 the
+     * offset of its outcomes in outcomes, and bit 31 is ALTERNATE.  choices has choiceWidth entries per
+     * state, entry r being outcome (r mod number of outcomes), so a uniform column is a uniform outcome.
+     */
+    static final class Table {
+        final CollisionModel model;
+        final byte[] outcomes;
+        final int[] collisions;
+        final int choiceWidth;
+        final byte[] choices;
+
+        Table(CollisionModel model, byte[] outcomes, int[] collisions, int choiceWidth, byte[] choices){
+            this.model = model;
+            this.outcomes = outcomes;
+            this.collisions = collisions;
+            this.choiceWidth = choiceWidth;
+            this.choices = choices;
+        }
+    }
+
+    private CollisionRuleCompiler(){
+    }
+
+    /**
+     * Compiles the model, or returns its tables if it was compiled before.
+     * @param model
+     * @return
+     * @throws IllegalStateException if a collision of the model does not conserve its conserved quantities
+     */
+    static Table compile(CollisionModel model){
+        Table t = CACHE.get(model);
+        if(t == null){
+            t = build(model);
+            Table previous = CACHE.putIfAbsent(model, t);
+            if(previous != null){
+                t = previous;
+            }
+        }
+        return t;
+    }
+
+    private static Table build(CollisionModel model){
+        int states = model.getStateCount();
+        int[][] poss = new int[states][];
+        for(int s = 0; s < states; s++){
+            poss[s] = outcomes(model, s);
+        }
+        validate(model, poss);
+
+        int total = 0;
+        int width = 1;
+        for(int[] p:poss){
+            total += p.length;
+            width = lcm(width, p.length);
+        }
+        if(width > MAX_CHOICE_WIDTH){
+            throw new IllegalStateException(model + " needs a choice table " + width + " columns wide");
+        }
+        if(total >= 1 << 15){
+            throw new IllegalStateException(model + " has too many outcomes to index");
+        }
+
+        byte[] outcomes = new byte[total];
+        int[] collisions = new int[states];
+        byte[] choices = new byte[states * width];
+        int offset = 0;
+        for(int s = 0; s < states; s++){
+            int[] p = poss[s];
+            for(int j = 0; j < p.length; j++){
+                outcomes[offset + j] = (byte)p[j];
+            }
+            collisions[s] = (offset << 16) | (p.length << 8) | p[0];
+            if(model.getChirality() == CollisionModel.Chirality.ALTERNATING && isChiral(s, p)){
+                collisions[s] |= ALTERNATE;
+            }
+            for(int r = 0; r < width; r++){
+                choices[s * width + r] = (byte)p[r % p.length];
+            }
+            offset += p.length;
+        }
+        return new Table(model, outcomes, collisions, width, choices);
+    }
+
+    /**
+     * The states the given state may collide into, before the chirality policy is applied.
+     */
+    private static int[] ruleOutcomes(CollisionModel model, int s){
+        int moving = s & 0x3F;
+        int rest = s & ~0x3F;
+        switch(model.getRuleSet()){
+            case EQUIVALENT:
+            case SATURATED: {
+                List<Integer> same = new ArrayList<>();
+                for(int t = 0; t < model.getStateCount(); t++){
+                    if(conservesAll(model, s, t)){
+                        same.add(t);
+                    }
+                }
+                if(model.getRuleSet() == CollisionModel.RuleSet.SATURATED && same.size() > 1){
+                    same.remove(Integer.valueOf(s));
+                }
+                int[] r = new int[same.size()];
+                for(int i = 0; i < r.length; i++){
+                    r[i] = same.get(i);
+                }
+                return r;
+            }
+            case FHP_II:
+                if(rest != 0 && Integer.bitCount(moving) == 1){
+                    //a rest particle and a moving one become the two moving 60 degrees either side of it
+                    return new int[]{rotate(moving, 1) | rotate(moving, 5)};
+                }
+                for(int d = 0; d < 6; d++){
+                    if(rest == 0 && moving == (rotate(1 << d, 1) | rotate(1 << d, 5))){
+                        return new int[]{State.R1MASK | (1 << d)};
+                    }
+                }
+                //and otherwise collide like FHP-I, with the rest particle as a spectator
+                return fhpIOutcomes(s);
+            case FHP_I:
+                return fhpIOutcomes(s);
+            default:
+                throw new IllegalStateException("Unknown rule set " + model.getRuleSet());
+        }
+    }
+
+    /**
+     * The outcomes of the FHP-I rules, head-on pairs and symmetric triples, which leave the rest bits alone.
+     */
+    private static int[] fhpIOutcomes(int s){
+        int moving = s & 0x3F;
+        int rest = s & ~0x3F;
+        if(isHeadOnPair(moving)){
+            return sorted(rest | rotate(moving, 1), rest | rotate(moving, 5));
+        }
+        if(moving == 0x15 || moving == 0x2A){
+            return new int[]{rest | rotate(moving, 1)};
+        }
+        return new int[]{s};
+    }
+
+    /**
+     * The outcomes of a state after the chirality policy is applied.
+     */
+    static int[] outcomes(CollisionModel model, int s){
+        int[] p = ruleOutcomes(model, s);
+        if(!isChiral(s, p)){
+            return p;
+        }
+        int left = (s & ~0x3F) | rotate(s & 0x3F, 1);
+        int right = (s & ~0x3F) | rotate(s & 0x3F, 5);
+        switch(model.getChirality()){
+            case LEFT: return new int[]{left};
+            case RIGHT: return new int[]{right};
+            case ALTERNATING: return new int[]{left, right};
+            default: return p;
+        }
+    }
+
+    /**
+     * Whether the outcomes are exactly the state rotated 60 degrees left and right.
+     */
+    private static boolean isChiral(int s, int[] p){
+        if(p.length != 2){
+            return false;
+        }
+        int left = (s & ~0x3F) | rotate(s & 0x3F, 1);
+        int right = (s & ~0x3F) | rotate(s & 0x3F, 5);
+        return left != right && ((p[0] == left && p[1] == right) || (p[0] == right && p[1] == left));
+    }
+
+    private static boolean isHeadOnPair(int moving){
+        for(int d = 0; d < 3; d++){
+            if(moving == ((1 << d) | (1 << (d + 3)))){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The moving bits rotated by k directions counterclockwise.
+     */
+    private static int rotate(int moving, int k){
+        return ((moving << k) | (moving >>> (6 - k))) & 0x3F;
+    }
+
+    private static int[] sorted(int a, int b){
+        return (a < b) ? new int[]{a, b} : new int[]{b, a};
+    }
+
+    /**
+     * Checks that every state has an outcome and that every outcome is a state of the model which conserves
+     * the model's conserved quantities.
+     */
+    private static void validate(CollisionModel model, int[][] poss){
+        for(int s = 0; s < poss.length; s++){
+            if(poss[s].length == 0){
+                throw new IllegalStateException(model + ": state " + s + " has no outcome");
+            }
+            for(int t:poss[s]){
+                if(t < 0 || t >= model.getStateCount()){
+                    throw new IllegalStateException(model + ": state " + s + " collides into " + t
+                            + ", which is not a state of the model");
+                }
+                for(CollisionModel.Quantity q:model.getConserved()){
+                    if(quantity(q, s) != quantity(q, t)){
+                        throw new IllegalStateException(model + ": state " + s + " colliding into " + t
+                                + " does not conserve " + q);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean conservesAll(CollisionModel model, int s, int t){
+        for(CollisionModel.Quantity q:model.getConserved()){
+            if(quantity(q, s) != quantity(q, t)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The quantity of a state, with the x and y momentum packed into one long.
+     */
+    private static long quantity(CollisionModel.Quantity q, int s){
+        switch(q){
+            case MASS:
+                return Integer.bitCount(s);
+            case ENERGY:
+                return Integer.bitCount(s & 0x3F);
+            default:
+                int px = 0, py = 0;
+                for(int d = 0; d < 6; d++){
+                    if((s & (1 << d)) != 0){
+                        px += MOMENTUM_X[d];
+                        py += MOMENTUM_Y[d];
+                    }
+                }
+                return ((long)px << 32) | (py & 0xFFFFFFFFL);
+        }
+    }
+
+    /**
+     * Compiles every preset with every chirality policy, prints the size of its tables, and steps a random
+     * periodic lattice with it to check that the lattice's mass and momentum stay the same.
+     * Arguments are the grid size (default 128) and the number of timesteps (default 100).
+     * @param args
+     */
+    public static void main(String[] args){
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        for(CollisionModel preset:new CollisionModel[]{CollisionModel.ORIGINAL, CollisionModel.FHP_I,
+                CollisionModel.FHP_II, CollisionModel.FHP_III}){
+            for(CollisionModel.Chirality chirality:CollisionModel.Chirality.values()){
+                CollisionModel model = (chirality == preset.getChirality()) ? preset : preset.withChirality(chirality);
+                Table t = compile(model);
+                int colliding = 0;
+                for(int s = 0; s < model.getStateCount(); s++){
+                    int entry = t.collisions[s];
+                    if(((entry >>> 8) & 0xFF) != 1 || (entry & 0xFF) != s){
+                        colliding++;
+                    }
+                }
+
+                Grid g = new Grid(size, size);
+                g.setBoundaries(new Boundaries(g, BoundaryType.PERIODIC, BoundaryType.PERIODIC,
+                        BoundaryType.PERIODIC, BoundaryType.PERIODIC));
+                java.util.Random r = new java.util.Random(42);
+                for(int y = 0; y < size; y++){
+                    for(int x = 0; x < size; x++){
+                        g.setStateNow(x, y, (byte)r.nextInt(model.getStateCount()));
+                    }
+                }
+                g.fillHalo();
+                LatticeTotals before = LatticeTotals.of(g);
+                LatticeEngine engine = EngineType.BYTE.create(g, new Collider(42, model), 1);
+                engine.step(steps);
+                engine.shutdown();
+                LatticeTotals after = LatticeTotals.of(g);
+
+                System.out.println(String.format("%-24s %3d states, %3d colliding, %4d outcomes, choice width %2d: %s",
+                        model, model.getStateCount(), colliding, t.outcomes.length, t.choiceWidth,
+                        before.equals(after) ? "conserved" : "NOT conserved " + before + " -> " + after));
+            }
+        }
+    }
+
+    private static int lcm(int a, int b){
+        int x = a, y = b;
+        while(y != 0){
+            int t = x % y;
+            x = y;
+            y = t;
+        }
+        return a / x * b;
+    }
+
+}
@@ -0,0 +1,258 @@
+package edu.uccs.mark.lgca1;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a lattice split into horizontal slabs, one per worker process, on one machine over loopback.
+ *
+ * The coordinator (main() without "worker" as first argument) launches the worker JVMs, waits for them, puts
+ * their slabs back together and checks the result against one process stepping the whole lattice from the
+ * same start.  Each worker fills its own slab, steps it with a SlabEngine and writes it as a checkpoint.
+ *
+ * Worker r listens on basePort + r for worker r+1, and connects to worker r-1 on basePort + r-1.
+ * The slabs start on even rows, so that every row keeps its parity.  The initial state of a cell only
+ * depends on its coordinates in the whole lattice (see initialState()), so no state has to be sent to the
+ * workers.
+ */
+public class DistributedRun {
+
+    public static final int DEFAULT_BASE_PORT = 47100;
+
+    /**
+     * How long a worker keeps trying to connect to the worker below it.
+     */
+    private static final long CONNECT_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * Arguments for the coordinator are the number of workers (default 4), the grid width (default 1024),
+     * height (default 1024), the number of timesteps (default 100), the fill density (default 0.2), the
+     * collider seed (default 42) and the base port (default DEFAULT_BASE_PORT).
+     * Workers are started with "worker", their rank and the same arguments, plus the output directory.
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length > 0 && args[0].equals("worker")){
+            int rank = Integer.parseInt(args[1]);
+            Settings s = new Settings(args, 2);
+            worker(rank, s, Paths.get(args[9]));
+            return;
+        }
+        coordinate(new Settings(args, 0));
+    }
+
+    /**
+     * The run's parameters, parsed from the command line.
+     */
+    private static class Settings {
+        final int workers;
+        final int width;
+        final int height;
+        final int steps;
+        final double density;
+        final long seed;
+        final int basePort;
+
+        Settings(String[] args, int first){
+            workers = intArg(args, first, 4);
+            width = intArg(args, first + 1, 1024);
+            height = intArg(args, first + 2, 1024);
+            steps = intArg(args, first + 3, 100);
+            density = args.length > first + 4 ? Double.parseDouble(args[first + 4]) : 0.2;
+            seed = args.length > first + 5 ? Long.parseLong(args[first + 5]) : 42L;
+            basePort = intArg(args, first + 6, DEFAULT_BASE_PORT);
+        }
+
+        List<String> toArgs(){
+            List<String> a = new ArrayList<>();
+            a.add(Integer.toString(workers));
+            a.add(Integer.toString(width));
+            a.add(Integer.toString(height));
+            a.add(Integer.toString(steps));
+            a.add(Double.toString(density));
+            a.add(Long.toString(seed));
+            a.add(Integer.toString(basePort));
+            return a;
+        }
+
+        private static int intArg(String[] args, int i, int def){
+            return args.length > i ? Integer.parseInt(args[i]) : def;
+        }
+    }
+
+    /**
+     * First row of the slab of the given rank, which is always even.  The last rank's slab ends at height.
+     * @param rank
+     * @param workers
+     * @param height
+     * @return
+     */
+    static int slabStart(int rank, int workers, int height){
+        return (int)((long)height * rank / workers) & ~1;
+    }
+
+    /**
+     * The state cell (x,y) of the whole lattice starts in: each direction is occupied with the given
+     * probability, by a hash of the seed and the coordinates.
+     * @param seed
+     * @param density
+     * @param x
+     * @param y
+     * @return
+     */
+    static byte initialState(long seed, double density, int x, int y){
+        long h = Collider.mix(~seed ^ Collider.mix(((long)y << 32) | (x & 0xFFFFFFFFL)));
+        long threshold = (long)(density * (1 << 10));
+        int s = 0;
+        for(int d = 0; d < 6; d++){
+            if(((h >>> (10 * d)) & 0x3FF) < threshold){
+                s |= 1 << d;
+            }
+        }
+        return (byte)s;
+    }
+
+    private static Path slabFile(Path dir, int rank){
+        return dir.resolve(String.format("slab-%03d.lgca", rank));
+    }
+
+    private static void worker(int rank, Settings s, Path dir) throws IOException {
+        int y0 = slabStart(rank, s.workers, s.height);
+        int y1 = (rank == s.workers - 1) ? s.height : slabStart(rank + 1, s.workers, s.height);
+        Grid slab = new Grid(s.width, y1 - y0);
+        for(int y = y0; y < y1; y++){
+            for(int x = 0; x < s.width; x++){
+                slab.setStateNow(x, y - y0, initialState(s.seed, s.density, x, y));
+            }
+        }
+
+        SocketChannel above = null;
+        SocketChannel below = null;
+        if(rank < s.workers - 1){
+            try(ServerSocketChannel server = ServerSocketChannel.open()){
+                server.bind(new InetSocketAddress("127.0.0.1", s.basePort + rank));
+                if(rank > 0){
+                    below = connect(s.basePort + rank - 1);
+                }
+                above = server.accept();
+            }
+        }
+        else if(rank > 0){
+            below = connect(s.basePort + rank - 1);
+        }
+
+        SlabEngine engine = new SlabEngine(slab, new Collider(s.seed), y0, below, above);
+        long start = System.nanoTime();
+        engine.step(s.steps);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        engine.shutdown();
+        Checkpoint.write(slabFile(dir, rank), slab, new Collider(s.seed));
+        System.out.println(String.format("worker %d: rows %d-%d, %.3f s", rank, y0, y1 - 1, seconds));
+    }
+
+    private static SocketChannel connect(int port) throws IOException {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        while(true){
+            try{
+                return SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            }
+            catch(IOException e){
+                //the worker below may not be listening yet
+                if(System.currentTimeMillis() > deadline){
+                    throw e;
+                }
+                try{
+                    Thread.sleep(50);
+                }
+                catch(InterruptedException ie){
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while connecting", ie);
+                }
+            }
+        }
+    }
+
+    private static void coordinate(Settings s) throws Exception {
+        if(slabStart(1, s.workers, s.height) < 2 || s.height - slabStart(s.workers - 1, s.workers, s.height) < 2){
+            throw new IllegalArgumentException("Every slab must be at least 2 rows high");
+        }
+        Path dir = Files.createTempDirectory("lgca-slabs");
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<>();
+        long start = System.nanoTime();
+        for(int rank = 0; rank < s.workers; rank++){
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(DistributedRun.class.getName());
+            command.add("worker");
+            command.add(Integer.toString(rank));
+            command.addAll(s.toArgs());
+            command.add(dir.toString());
+            processes.add(new ProcessBuilder(command).inheritIO().start());
+        }
+        boolean failed = false;
+        for(Process p:processes){
+            failed |= p.waitFor() != 0;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if(failed){
+            System.out.println("A worker failed");
+            System.exit(1);
+        }
+
+        //put the slabs back together
+        Grid whole = new Grid(s.width, s.height);
+        for(int rank = 0; rank < s.workers; rank++){
+            Path file = slabFile(dir, rank);
+            Grid slab = Checkpoint.read(file).getGrid();
+            int y0 = slabStart(rank, s.workers, s.height);
+            for(int y = 0; y < slab.getyHeight(); y++){
+                System.arraycopy(slab.getNowPlane(), slab.index(0, y), whole.getNowPlane(), whole.index(0, y0 + y),
+                        s.width);
+            }
+            Files.delete(file);
+        }
+        Files.delete(dir);
+
+        //and step the whole lattice in this process
+        Grid reference = new Grid(s.width, s.height);
+        for(int y = 0; y < s.height; y++){
+            for(int x = 0; x < s.width; x++){
+                reference.setStateNow(x, y, initialState(s.seed, s.density, x, y));
+            }
+        }
+        LatticeEngine engine = EngineType.BYTE.create(reference, new Collider(s.seed), 1);
+        long t0 = System.nanoTime();
+        engine.step(s.steps);
+        double referenceSeconds = (System.nanoTime() - t0) / 1e9;
+        engine.shutdown();
+
+        int differences = 0;
+        for(int y = 0; y < s.height; y++){
+            for(int x = 0; x < s.width; x++){
+                if(whole.getStateNow(x, y) != reference.getStateNow(x, y)){
+                    differences++;
+                }
+            }
+        }
+        System.out.println(String.format("%d workers %.3f s including start up, one process %.3f s",
+                s.workers, seconds, referenceSeconds));
+        System.out.println(differences == 0 ? "Distributed run identical to the single process run"
+                : differences + " cells DIFFER from the single process run");
+        if(differences != 0){
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package edu.uccs.mark.lgca1;
+
+import java.util.Random;
+
+/**
+ * Checks the bit sliced engine against the byte engine.
+ *
+ * The two engines draw their random collision choices differently, so their lattices do not match cell for
+ * cell.  Instead both are started from the same random fill, kept away from the walls so that nothing streams
+ * out, and every timestep the particle count and momentum of both are compared with the starting totals.
+ * At the end the number of particles moving in each direction is compared, which should agree to within
+ * statistical noise.
+ */
+public class EngineComparison {
+
+    /**
+     * Arguments are the grid size (default 512), the number of timesteps (default 50) and the fill
+     * density (default 0.3).
+     * @param args
+     */
+    public static void main(String[] args){
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        double density = args.length > 2 ? Double.parseDouble(args[2]) : 0.3;
+
+        Collider c = new Collider(42);
+
+        Grid byteGrid = new Grid(size, size);
+        Grid bitGrid = new Grid(size, size);
+        //leave a margin of empty cells so nothing reaches the walls within the run
+        int margin = Math.min(steps + 1, size / 2);
+        Random r = new Random(42);
+        for(int y = margin; y < size - margin; y++){
+            for(int x = margin; x < size - margin; x++){
+                byte s = 0;
+                for(byte mask:State.SMASKS){
+                    if(r.nextDouble() < density) s |= mask;
+                }
+                byteGrid.setStateNow(x, y, s);
+                bitGrid.setStateNow(x, y, s);
+            }
+        }
+
+        LatticeEngine byteEngine = EngineType.BYTE.create(byteGrid, c, 1);
+        BitSlicedEngine bitEngine = (BitSlicedEngine)EngineType.BIT_SLICED.create(bitGrid, c, 1);
+        LatticeTotals start = LatticeTotals.of(byteGrid);
+        System.out.println("Start " + start);
+
+        boolean conserved = true;
+        long byteNanos = 0, bitNanos = 0;
+        for(int t = 1; t <= steps; t++){
+            long t0 = System.nanoTime();
+            byteEngine.step(1);
+            long t1 = System.nanoTime();
+            bitEngine.step(1);
+            long t2 = System.nanoTime();
+            byteNanos += t1 - t0;
+            bitNanos += t2 - t1;
+
+            LatticeTotals byteTotals = LatticeTotals.of(byteEngine.getGrid());
+            LatticeTotals bitTotals = bitEngine.totals();
+            if(!byteTotals.equals(start) || !bitTotals.equals(start)){
+                conserved = false;
+                System.out.println("t=" + t + " byte " + byteTotals + " bit sliced " + bitTotals);
+            }
+        }
+        System.out.println(conserved ? "Mass and momentum conserved by both engines at every step"
+                : "Conservation FAILED");
+
+        long[] byteCounts = LatticeTotals.directionCounts(byteEngine.getGrid());
+        long[] bitCounts = LatticeTotals.directionCounts(bitEngine.getGrid());
+        for(int d = 0; d < State.SMASKS.length; d++){
+            double diff = (bitCounts[d] - byteCounts[d]) / Math.max(1.0, Math.sqrt(byteCounts[d]));
+            System.out.println(String.format("direction %d  byte %10d  bit sliced %10d  (%+.1f sigma)",
+                    d + 1, byteCounts[d], bitCounts[d], diff));
+        }
+        System.out.println(String.format("byte %.1f ms/step, bit sliced %.1f ms/step",
+                byteNanos / 1e6 / steps, bitNanos / 1e6 / steps));
+    }
+
+}
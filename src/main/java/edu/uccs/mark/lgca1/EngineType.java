@@ -0,0 +1,106 @@
+package edu.uccs.mark.lgca1;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * The stepping engines that can be selected for a simulation.
+ */
+public enum EngineType {
+
+    /**
+     * One byte per cell, stepped by Cell Evaluators on one or more threads.
+     */
+    BYTE {
+        @Override
+        public LatticeEngine create(Grid grid, Collider collider, int threads) {
+            return new SimulationEngine(grid, collider, threads);
+        }
+    },
+
+    /**
+     * One bit plane per direction, 64 cells per long.
+     */
+    BIT_SLICED {
+        @Override
+        public LatticeEngine create(Grid grid, Collider collider, int threads) {
+            return new BitSlicedEngine(grid, collider);
+        }
+    },
+
+    /**
+     * One byte per cell, stepped several timesteps at a time per cache sized tile, on one or more threads.
+     */
+    TEMPORAL_BLOCKING {
+        @Override
+        public LatticeEngine create(Grid grid, Collider collider, int threads) {
+            return new TemporalBlockingEngine(grid, collider, threads);
+        }
+    },
+
+    /**
+     * One byte per cell, stepped tile by tile, skipping the empty tiles.  Single threaded.
+     */
+    SPARSE {
+        @Override
+        public LatticeEngine create(Grid grid, Collider collider, int threads) {
+            return new SparseEngine(grid, collider);
+        }
+    },
+
+    /**
+     * Regions hash-consed into a quadtree and their futures memoized, Hashlife style.  Single threaded.  Needs
+     * a deterministic collider, periodic boundaries without obstacles and power of two sides.
+     */
+    MEMOIZED {
+        @Override
+        public LatticeEngine create(Grid grid, Collider collider, int threads) {
+            return new MemoizedEngine(grid, collider);
+        }
+    },
+
+    /**
+     * One byte per cell, streamed and collided a vector of cells at a time with the JDK Vector API.
+     * Single threaded.  Only available when built with the vector profile and run with the
+     * jdk.incubator.vector module on a machine with vector support, for models without rest particles;
+     * otherwise this is the BYTE engine.
+     */
+    VECTOR {
+        @Override
+        public LatticeEngine create(Grid grid, Collider collider, int threads) {
+            if(collider.getModel().getRestParticles() != 0){
+                return BYTE.create(grid, collider, threads);
+            }
+            try{
+                Class<?> c = Class.forName(VECTOR_ENGINE);
+                if((Boolean)c.getMethod("isSupported").invoke(null)){
+                    return (LatticeEngine)c.getConstructor(Grid.class, Collider.class).newInstance(grid, collider);
+                }
+            }
+            catch(ClassNotFoundException | LinkageError e){
+                //not built with the vector profile, or run without the module
+            }
+            catch(InvocationTargetException e){
+                if(!(e.getCause() instanceof LinkageError)){
+                    throw new IllegalStateException("Could not create the vector engine", e.getCause());
+                }
+            }
+            catch(ReflectiveOperationException e){
+                throw new IllegalStateException("Could not create the vector engine", e);
+            }
+            return BYTE.create(grid, collider, threads);
+        }
+    };
+
+    private static final String VECTOR_ENGINE = "edu.uccs.mark.lgca1.VectorEngine";
+
+    /**
+     * Creates an engine of this type stepping the given grid.
+     * @param grid
+     * @param collider
+     * @param threads
+     * @return
+     * @throws UnsupportedOperationException if the engine can not step this grid with this collider
+     */
+    public abstract LatticeEngine create(Grid grid, Collider collider, int threads);
+
+}
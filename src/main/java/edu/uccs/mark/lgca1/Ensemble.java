@@ -0,0 +1,278 @@
+package edu.uccs.mark.lgca1;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs an ensemble of independent replicas of a small lattice in one JVM, and reduces what is measured on
+ * them into a mean and variance over the replicas at every sample time.
+ *
+ * Each replica is a lattice of its own, with its own seed, stepped by a single threaded engine, so the
+ * replicas need no synchronization at all.  They are scheduled on a work stealing ForkJoinPool: the range of
+ * replicas is split in halves down to single replicas, and the statistics of the halves are merged on the
+ * way back up, so no replica's grid outlives its run and nothing is kept per replica.  Every replica's
+ * Collider shares the collision tables of the model, which are compiled once.
+ *
+ * Replica r uses the seed Collider.mix(seed + r) both to initialize its lattice and for its collisions, so
+ * an ensemble gives the same statistics whatever the number of threads.
+ */
+public class Ensemble {
+
+    /**
+     * Sets up the initial state, and the boundaries, of a replica's lattice.
+     */
+    public interface Initializer {
+        void initialize(Grid grid, int replica, long seed);
+    }
+
+    /**
+     * Measures a fixed number of values on a replica's lattice.
+     */
+    public interface Observable {
+        int size();
+
+        void measure(Grid grid, double[] values);
+    }
+
+    /**
+     * The particle count and the x and y momentum, in particle velocities.
+     */
+    public static final Observable TOTALS = new Observable() {
+        @Override
+        public int size() {
+            return 3;
+        }
+
+        @Override
+        public void measure(Grid grid, double[] values) {
+            LatticeTotals t = LatticeTotals.of(grid);
+            values[0] = t.getMass();
+            values[1] = t.getMomentumX() / (double)Collider.xm[0];
+            values[2] = t.getMomentumY() / (double)Collider.xm[0];
+        }
+    };
+
+    private final int replicas;
+    private final int width;
+    private final int height;
+    private final int steps;
+    private final int sampleInterval;
+
+    private long seed = 0L;
+    private Initializer initializer = random(0.2);
+    private Observable observable = TOTALS;
+    private CollisionModel model = CollisionModel.ORIGINAL;
+    private EngineType engineType = EngineType.BYTE;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private final AtomicLong cellUpdates = new AtomicLong();
+
+    /**
+     * @param replicas the number of replicas
+     * @param width the width of each replica's lattice
+     * @param height the height of each replica's lattice
+     * @param steps the number of timesteps each replica is stepped
+     * @param sampleInterval the number of timesteps between samples; the first is taken at timestep 0
+     */
+    public Ensemble(int replicas, int width, int height, int steps, int sampleInterval){
+        if(replicas < 1 || steps < 0 || sampleInterval < 1){
+            throw new IllegalArgumentException("An ensemble needs at least one replica and a positive sample interval");
+        }
+        this.replicas = replicas;
+        this.width = width;
+        this.height = height;
+        this.steps = steps;
+        this.sampleInterval = sampleInterval;
+    }
+
+    /**
+     * An initializer filling each moving direction of every cell with the given probability, with periodic
+     * boundaries on every side, so the height must be even.
+     * @param density
+     * @return
+     */
+    public static Initializer random(double density){
+        return random(density, 0);
+    }
+
+    /**
+     * An initializer filling each moving direction, and rest particle up to restParticles, of every cell with
+     * the given probability, with periodic boundaries on every side, so the height must be even.  The lattice
+     * is filled by Scenario.fillRandom() on the replica's own thread: each cell's state is a hash of the seed
+     * and the cell, which is much cheaper than drawing every direction from a Random, and small replicas are
+     * quick enough to step that the initialization would otherwise be a good part of their run.
+     * @param density
+     * @param restParticles
+     * @return
+     */
+    public static Initializer random(final double density, final int restParticles){
+        return new Initializer() {
+            @Override
+            public void initialize(Grid grid, int replica, long seed) {
+                grid.setBoundaries(new Boundaries(grid, BoundaryType.PERIODIC, BoundaryType.PERIODIC,
+                        BoundaryType.PERIODIC, BoundaryType.PERIODIC));
+                Scenario.fillRandom(grid, density, seed, restParticles, 1);
+            }
+        };
+    }
+
+    public void setSeed(long seed){
+        this.seed = seed;
+    }
+
+    public void setInitializer(Initializer initializer){
+        this.initializer = initializer;
+    }
+
+    public void setObservable(Observable observable){
+        this.observable = observable;
+    }
+
+    public void setModel(CollisionModel model){
+        this.model = model;
+    }
+
+    public void setEngineType(EngineType engineType){
+        this.engineType = engineType;
+    }
+
+    /**
+     * The number of replicas run at once, by default the number of processors.
+     * @param threads
+     */
+    public void setThreads(int threads){
+        this.threads = threads;
+    }
+
+    /**
+     * The number of cell updates done by all of the runs so far.
+     * @return
+     */
+    public long getCellUpdates(){
+        return cellUpdates.get();
+    }
+
+    /**
+     * Runs every replica and returns the statistics of the observable over them.
+     * @return
+     */
+    public EnsembleStatistics run(){
+        //compile the tables before the replicas all ask for them at once
+        new Collider(seed, model);
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try{
+            return pool.invoke(new Replicas(0, replicas));
+        }
+        finally{
+            pool.shutdown();
+        }
+    }
+
+    private long[] sampleTimesteps(){
+        long[] timesteps = new long[steps / sampleInterval + 1];
+        for(int s = 0; s < timesteps.length; s++){
+            timesteps[s] = (long)s * sampleInterval;
+        }
+        return timesteps;
+    }
+
+    /**
+     * Runs one replica, adding its values at every sample to stats.
+     */
+    private void runReplica(int replica, EnsembleStatistics stats){
+        long replicaSeed = Collider.mix(seed + replica);
+        Grid grid = new Grid(width, height);
+        initializer.initialize(grid, replica, replicaSeed);
+        grid.fillHalo();
+        LatticeEngine engine = engineType.create(grid, new Collider(replicaSeed, model), 1);
+        try{
+            double[] values = new double[observable.size()];
+            for(int s = 0; s < stats.getSampleCount(); s++){
+                if(s > 0){
+                    engine.step(sampleInterval);
+                }
+                observable.measure(engine.getGrid(), values);
+                stats.add(s, values);
+            }
+        }
+        finally{
+            engine.shutdown();
+        }
+        cellUpdates.addAndGet((long)width * height * (stats.getSampleCount() - 1) * sampleInterval);
+    }
+
+    /**
+     * Runs replicas start to end-1, splitting them in halves so idle threads can steal one half.
+     */
+    private class Replicas extends RecursiveTask<EnsembleStatistics> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+
+        Replicas(int start, int end){
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected EnsembleStatistics compute() {
+            if(end - start == 1){
+                EnsembleStatistics stats = new EnsembleStatistics(sampleTimesteps(), observable.size());
+                runReplica(start, stats);
+                return stats;
+            }
+            int middle = (start + end) >>> 1;
+            Replicas left = new Replicas(start, middle);
+            left.fork();
+            EnsembleStatistics stats = new Replicas(middle, end).compute();
+            stats.merge(left.join());
+            return stats;
+        }
+    }
+
+    /**
+     * Compares the throughput of an ensemble of small lattices with that of one lattice of the same total
+     * size stepped by the same number of threads, and prints the ensemble's final totals.
+     * Arguments are the replica size (default 64), the number of replicas (default 256) and the number of
+     * timesteps (default 200).
+     * @param args
+     */
+    public static void main(String[] args){
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int replicas = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int steps = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        //warm up
+        new Ensemble(Math.min(replicas, 32), size, size, steps, steps).run();
+
+        Ensemble ensemble = new Ensemble(replicas, size, size, steps, steps / 4);
+        ensemble.setSeed(42);
+        long start = System.nanoTime();
+        EnsembleStatistics stats = ensemble.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for(int s = 0; s < stats.getSampleCount(); s++){
+            System.out.println(String.format("t=%4d  mass %10.1f +- %6.1f  momentum x %7.2f +- %6.2f  (%d replicas)",
+                    stats.getTimestep(s), stats.getMean(s, 0), Math.sqrt(stats.getVariance(s, 0)),
+                    stats.getMean(s, 1), Math.sqrt(stats.getVariance(s, 1)), stats.getCount(s)));
+        }
+
+        int side = (int)Math.round(size * Math.sqrt(replicas)) & ~1;
+        Grid large = new Grid(side, side);
+        random(0.2).initialize(large, 0, 42);
+        LatticeEngine engine = EngineType.BYTE.create(large, new Collider(42), threads);
+        engine.step(Math.max(1, steps / 10));
+        long t0 = System.nanoTime();
+        engine.step(steps);
+        double largeSeconds = (System.nanoTime() - t0) / 1e9;
+        engine.shutdown();
+
+        System.out.println(String.format("%d replicas of %dx%d: %.1f Mcell/s; one %dx%d lattice: %.1f Mcell/s (%d threads)",
+                replicas, size, size, ensemble.getCellUpdates() / seconds / 1e6, side, side,
+                (double)side * side * steps / largeSeconds / 1e6, threads));
+    }
+
+}
@@ -0,0 +1,116 @@
+package edu.uccs.mark.lgca1;
+
+/**
+ * The running mean and variance over the replicas of an ensemble of each value measured at each sample time.
+ *
+ * Values are added with Welford's update, so nothing but the count, mean and sum of squared deviations is
+ * kept, and two sets of statistics over different replicas are merged with Chan et al.'s pairwise formula,
+ * which is as accurate as adding the values one by one.
+ */
+public class EnsembleStatistics {
+
+    private final long[] timesteps;
+    private final int values;
+    private final long[] count;
+    private final double[] mean;
+    private final double[] m2;
+
+    /**
+     * Empty statistics.
+     * @param timesteps the timestep of each sample
+     * @param values the number of values measured at each sample
+     */
+    public EnsembleStatistics(long[] timesteps, int values){
+        this.timesteps = timesteps.clone();
+        this.values = values;
+        count = new long[timesteps.length * values];
+        mean = new double[count.length];
+        m2 = new double[count.length];
+    }
+
+    /**
+     * Adds one replica's values at a sample.
+     * @param sample
+     * @param x the values, values of them
+     */
+    public void add(int sample, double[] x){
+        int base = sample * values;
+        for(int k = 0; k < values; k++){
+            int i = base + k;
+            long n = ++count[i];
+            double delta = x[k] - mean[i];
+            mean[i] += delta / n;
+            m2[i] += delta * (x[k] - mean[i]);
+        }
+    }
+
+    /**
+     * Adds the replicas of other, which must have the same samples and values, to these statistics.
+     * @param other
+     */
+    public void merge(EnsembleStatistics other){
+        if(other.count.length != count.length || other.values != values){
+            throw new IllegalArgumentException("Can not merge statistics of different samples");
+        }
+        for(int i = 0; i < count.length; i++){
+            long nb = other.count[i];
+            if(nb == 0){
+                continue;
+            }
+            long na = count[i];
+            long n = na + nb;
+            double delta = other.mean[i] - mean[i];
+            mean[i] += delta * nb / n;
+            m2[i] += other.m2[i] + delta * delta * ((double)na * nb / n);
+            count[i] = n;
+        }
+    }
+
+    public int getSampleCount(){
+        return timesteps.length;
+    }
+
+    public int getValueCount(){
+        return values;
+    }
+
+    public long getTimestep(int sample){
+        return timesteps[sample];
+    }
+
+    /**
+     * The number of replicas that reached the sample.
+     * @param sample
+     * @return
+     */
+    public long getCount(int sample){
+        return (values == 0) ? 0 : count[sample * values];
+    }
+
+    public double getMean(int sample, int value){
+        return mean[sample * values + value];
+    }
+
+    /**
+     * The sample variance over the replicas, or 0 with fewer than 2.
+     * @param sample
+     * @param value
+     * @return
+     */
+    public double getVariance(int sample, int value){
+        int i = sample * values + value;
+        return (count[i] < 2) ? 0.0 : m2[i] / (count[i] - 1);
+    }
+
+    /**
+     * The standard error of the mean.
+     * @param sample
+     * @param value
+     * @return
+     */
+    public double getStandardError(int sample, int value){
+        int i = sample * values + value;
+        return (count[i] < 2) ? 0.0 : Math.sqrt(getVariance(sample, value) / count[i]);
+    }
+
+}
@@ -0,0 +1,669 @@
+package edu.uccs.mark.lgca1;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Renders the lattice to images without a display, as PNG files or as a raw RGB stream for a video encoder.
+ *
+ * A frame is rendered to one palette index per pixel, top row of the lattice first, with one of three modes:
+ *   STATE     one pixel per cell, the index being the state itself; the palette gives each state a hue
+ *             for the direction of its momentum and a brightness for its particle count
+ *   DENSITY   one pixel per block of blockSize by blockSize cells, shaded black to white by the block's mean
+ *             particle count per cell, full scale being white
+ *   VELOCITY  one pixel per block, with a hue for the direction of the block's mean velocity and a
+ *             brightness for its speed, full scale being brightest
+ * Odd rows are drawn in line with even ones, so the hexagonal lattice is sheared by half a cell per row.
+ *
+ * The image is split in one band of rows per thread, and each band is rendered, expanded to RGB or
+ * deflated on its own thread.  The PNG bands are deflated independently, flushed to a byte boundary and
+ * concatenated into one zlib stream, with the Adler-32 of the whole combined from the bands', so the
+ * encoding scales with the threads like the rendering does.  Every buffer, Deflater and checksum is kept
+ * from one frame to the next.
+ *
+ * As a SnapshotPipeline consumer it renders every snapshot and writes it to the RGB stream and the PNG
+ * directory that were set.  The RGB stream is plain rgb24, e.g. for
+ *   ffmpeg -f rawvideo -pix_fmt rgb24 -s WIDTHxHEIGHT -r 30 -i - movie.mp4
+ * with the image size of getImageWidth() by getImageHeight().
+ */
+public class FrameRenderer implements SnapshotPipeline.Consumer, Closeable {
+
+    public enum Mode {
+        STATE,
+        DENSITY,
+        VELOCITY
+    }
+
+    private static final byte[] PNG_SIGNATURE = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * The zlib header for a deflate stream with a 32K window; the level bits are only advisory.
+     */
+    private static final byte[] ZLIB_HEADER = {0x78, 0x01};
+
+    private static final int ADLER_BASE = 65521;
+
+    private final int width;
+    private final int height;
+    private final Mode mode;
+    private final int blockSize;
+    private final int imageWidth;
+    private final int imageHeight;
+
+    private final int[] palette;
+
+    /**
+     * The palette index of every pixel, each row preceded by a PNG filter type byte of 0, so the bands can
+     * be deflated straight from it.
+     */
+    private final byte[] pixels;
+    private byte[] rgb;
+
+    private final Band[] bands;
+    private final List<Band> bandList;
+    private final ExecutorService pool;
+
+    private byte[] plane;
+    private int stride;
+    private float fullScale;
+
+    private OutputStream rgbStream;
+    private Path pngDirectory;
+
+    private final byte[] ihdr = new byte[13];
+    private final byte[] plte;
+    private final CRC32 crc = new CRC32();
+    private final byte[] chunkHeader = new byte[8];
+    private final byte[] word = new byte[4];
+    private long frames = 0;
+
+    /**
+     * @param width the width of the lattices that will be rendered
+     * @param height the height of the lattices that will be rendered
+     * @param mode
+     * @param blockSize the side of the blocks of cells averaged into a pixel with DENSITY and VELOCITY, or of
+     *                  the blocks whose lower left cell is drawn with STATE
+     * @param threads the number of bands rendered and encoded at once
+     */
+    public FrameRenderer(int width, int height, Mode mode, int blockSize, int threads){
+        if(width < 1 || height < 1 || blockSize < 1 || threads < 1){
+            throw new IllegalArgumentException("A frame needs a lattice, a block size and a thread");
+        }
+        if(blockSize > ObservableAccumulator.MAX_BLOCK_SIZE){
+            throw new IllegalArgumentException("The block size can be at most " + ObservableAccumulator.MAX_BLOCK_SIZE);
+        }
+        this.width = width;
+        this.height = height;
+        this.mode = mode;
+        this.blockSize = blockSize;
+        this.imageWidth = (width + blockSize - 1) / blockSize;
+        this.imageHeight = (height + blockSize - 1) / blockSize;
+        if((long)(imageWidth + 1) * imageHeight * 3 > Integer.MAX_VALUE - 8){
+            throw new IllegalArgumentException("A " + imageWidth + "x" + imageHeight + " image is too large");
+        }
+        this.palette = palette(mode);
+        this.plte = new byte[palette.length * 3];
+        for(int i = 0; i < palette.length; i++){
+            plte[3 * i] = (byte)(palette[i] >> 16);
+            plte[3 * i + 1] = (byte)(palette[i] >> 8);
+            plte[3 * i + 2] = (byte)palette[i];
+        }
+        putInt(ihdr, 0, imageWidth);
+        putInt(ihdr, 4, imageHeight);
+        ihdr[8] = 8;  //bit depth
+        ihdr[9] = 3;  //indexed color
+        this.pixels = new byte[(imageWidth + 1) * imageHeight];
+        this.fullScale = (mode == Mode.DENSITY) ? 3.0f : 0.5f;
+
+        int bandCount = Math.min(threads, imageHeight);
+        bands = new Band[bandCount];
+        for(int b = 0; b < bandCount; b++){
+            bands[b] = new Band(b * imageHeight / bandCount, (b + 1) * imageHeight / bandCount, b == bandCount - 1);
+        }
+        bandList = Arrays.asList(bands);
+        if(bandCount > 1){
+            pool = Executors.newFixedThreadPool(bandCount, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "frame-renderer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        else{
+            pool = null;
+        }
+    }
+
+    /**
+     * The value drawn at full brightness: particles per cell with DENSITY, by default 3, or the speed in
+     * particle velocities with VELOCITY, by default 0.5.  Values above it are drawn at full brightness.
+     * @param fullScale
+     */
+    public void setFullScale(double fullScale){
+        this.fullScale = (float)fullScale;
+    }
+
+    /**
+     * The Deflater level and strategy of the PNG files, by default BEST_SPEED and HUFFMAN_ONLY.  Lattice
+     * states have few repeated strings for the default strategy to find, so Huffman coding alone is several
+     * times faster and compresses them better.
+     * @param level
+     * @param strategy
+     */
+    public void setCompression(int level, int strategy){
+        for(Band band:bands){
+            band.deflater.setLevel(level);
+            band.deflater.setStrategy(strategy);
+        }
+    }
+
+    /**
+     * Where accept() writes each frame as rgb24; the stream is not closed by the renderer.
+     * @param rgbStream
+     */
+    public void setRgbStream(OutputStream rgbStream){
+        this.rgbStream = rgbStream;
+    }
+
+    /**
+     * Where accept() writes each frame as frame-TIMESTEP.png, with the timestep padded to 8 digits.
+     * @param pngDirectory
+     */
+    public void setPngDirectory(Path pngDirectory){
+        this.pngDirectory = pngDirectory;
+    }
+
+    public int getImageWidth(){
+        return imageWidth;
+    }
+
+    public int getImageHeight(){
+        return imageHeight;
+    }
+
+    /**
+     * The number of frames rendered.
+     * @return
+     */
+    public long getFrames(){
+        return frames;
+    }
+
+    /**
+     * Renders the grid's now plane.
+     * @param grid
+     */
+    public void render(Grid grid){
+        render(grid.getNowPlane(), grid.getStride(), grid.getxWidth(), grid.getyHeight());
+    }
+
+    /**
+     * Renders a snapshot.
+     * @param snapshot
+     */
+    public void render(Snapshot snapshot){
+        render(snapshot.getPlane(), snapshot.getStride(), snapshot.getxWidth(), snapshot.getyHeight());
+    }
+
+    private void render(byte[] plane, int stride, int width, int height){
+        if(width != this.width || height != this.height){
+            throw new IllegalArgumentException("The renderer takes " + this.width + "x" + this.height + " lattices");
+        }
+        this.plane = plane;
+        this.stride = stride;
+        run(Band.RENDER);
+        this.plane = null;
+        frames++;
+    }
+
+    /**
+     * Writes the last frame rendered as rgb24, three bytes per pixel, top row first.
+     * @param out
+     * @throws IOException
+     */
+    public void writeRgb(OutputStream out) throws IOException {
+        if(rgb == null){
+            rgb = new byte[imageWidth * imageHeight * 3];
+        }
+        run(Band.RGB);
+        out.write(rgb);
+    }
+
+    /**
+     * Writes the last frame rendered as an 8 bit indexed color PNG.
+     * @param out
+     * @throws IOException
+     */
+    public void writePng(OutputStream out) throws IOException {
+        run(Band.DEFLATE);
+
+        out.write(PNG_SIGNATURE);
+        writeChunk(out, "IHDR", ihdr);
+        writeChunk(out, "PLTE", plte);
+
+        //one IDAT holding the zlib header, every band's deflate blocks and the combined Adler-32
+        int length = ZLIB_HEADER.length + 4;
+        long adler = 1;
+        for(Band band:bands){
+            length += band.deflatedLength;
+            adler = combineAdler32(adler, band.adler.getValue(), band.inputLength);
+        }
+        crc.reset();
+        startChunk(out, "IDAT", length);
+        crc.update(ZLIB_HEADER);
+        out.write(ZLIB_HEADER);
+        for(Band band:bands){
+            crc.update(band.deflated, 0, band.deflatedLength);
+            out.write(band.deflated, 0, band.deflatedLength);
+        }
+        putInt(word, 0, (int)adler);
+        crc.update(word);
+        out.write(word);
+        endChunk(out);
+
+        crc.reset();
+        startChunk(out, "IEND", 0);
+        endChunk(out);
+    }
+
+    /**
+     * Renders the snapshot and writes it to the RGB stream and the PNG directory, if they were set.
+     * @param snapshot
+     * @throws IOException
+     */
+    @Override
+    public void accept(Snapshot snapshot) throws IOException {
+        render(snapshot);
+        if(rgbStream != null){
+            writeRgb(rgbStream);
+        }
+        if(pngDirectory != null){
+            Path file = pngDirectory.resolve(String.format("frame-%08d.png", snapshot.getTimestep()));
+            try(OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)){
+                writePng(out);
+            }
+        }
+    }
+
+    /**
+     * Runs an operation on every band, on the pool if there is more than one.
+     */
+    private void run(int op){
+        for(Band band:bands){
+            band.op = op;
+        }
+        if(pool == null){
+            bands[0].call();
+            return;
+        }
+        List<Future<Void>> done;
+        try{
+            done = pool.invokeAll(bandList);
+            for(Future<Void> f:done){
+                f.get();
+            }
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while rendering", e);
+        }
+        catch(ExecutionException e){
+            throw new IllegalStateException("A band failed to render", e.getCause());
+        }
+    }
+
+    private void startChunk(OutputStream out, String type, int length) throws IOException {
+        putInt(chunkHeader, 0, length);
+        for(int i = 0; i < 4; i++){
+            chunkHeader[4 + i] = (byte)type.charAt(i);
+        }
+        out.write(chunkHeader);
+        crc.update(chunkHeader, 4, 4);
+    }
+
+    private void endChunk(OutputStream out) throws IOException {
+        putInt(word, 0, (int)crc.getValue());
+        out.write(word);
+    }
+
+    private void writeChunk(OutputStream out, String type, byte[] data) throws IOException {
+        crc.reset();
+        startChunk(out, type, data.length);
+        crc.update(data);
+        out.write(data);
+        endChunk(out);
+    }
+
+    private static void putInt(byte[] b, int off, int v){
+        b[off] = (byte)(v >>> 24);
+        b[off + 1] = (byte)(v >>> 16);
+        b[off + 2] = (byte)(v >>> 8);
+        b[off + 3] = (byte)v;
+    }
+
+    /**
+     * The Adler-32 of two buffers one after the other, from the Adler-32 of each and the second's length,
+     * as zlib's adler32_combine.
+     */
+    static long combineAdler32(long adler1, long adler2, long length2){
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + ADLER_BASE - rem;
+        if(sum1 >= ADLER_BASE){
+            sum1 -= ADLER_BASE;
+        }
+        if(sum1 >= ADLER_BASE){
+            sum1 -= ADLER_BASE;
+        }
+        if(sum2 >= 2L * ADLER_BASE){
+            sum2 -= 2L * ADLER_BASE;
+        }
+        if(sum2 >= ADLER_BASE){
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * The RGB color of every palette index for a mode.
+     */
+    private static int[] palette(Mode mode){
+        int[] p = new int[256];
+        for(int i = 0; i < 256; i++){
+            switch(mode){
+                case STATE: {
+                    int mass = ObservableAccumulator.MASS[i];
+                    if(mass == 0){
+                        p[i] = 0;
+                        break;
+                    }
+                    double px = ObservableAccumulator.MOMENTUM_X[i];
+                    double py = ObservableAccumulator.MOMENTUM_Y[i];
+                    double speed = Math.sqrt(px * px + py * py) / Collider.xm[0];
+                    double hue = (Math.atan2(py, px) / (2 * Math.PI) + 1.0) % 1.0;
+                    p[i] = hsv(hue, Math.min(1.0, speed / 2), 0.35 + 0.65 * mass / 8);
+                    break;
+                }
+                case DENSITY:
+                    p[i] = (i << 16) | (i << 8) | i;
+                    break;
+                case VELOCITY:
+                    p[i] = hsv((i >> 4) / 16.0, 1.0, (i & 15) / 15.0);
+                    break;
+            }
+        }
+        return p;
+    }
+
+    private static int hsv(double h, double s, double v){
+        double c = v * s;
+        double hp = h * 6;
+        double x = c * (1 - Math.abs(hp % 2 - 1));
+        double r = 0, g = 0, b = 0;
+        switch((int)hp % 6){
+            case 0: r = c; g = x; break;
+            case 1: r = x; g = c; break;
+            case 2: g = c; b = x; break;
+            case 3: g = x; b = c; break;
+            case 4: r = x; b = c; break;
+            default: r = c; b = x; break;
+        }
+        double m = v - c;
+        return ((int)Math.round((r + m) * 255) << 16) | ((int)Math.round((g + m) * 255) << 8)
+                | (int)Math.round((b + m) * 255);
+    }
+
+    /**
+     * An angle of the vector (x,y), not 0, from 0 to 4 rising with the real angle from 0 to 2 pi.  It needs
+     * no trigonometry, and is close enough to the angle to pick one of 16 hues.
+     */
+    private static float diamondAngle(float x, float y){
+        if(y >= 0){
+            return (x >= 0) ? y / (x + y) : 1 - x / (-x + y);
+        }
+        return (x < 0) ? 2 - y / (-x - y) : 3 + x / (x - y);
+    }
+
+    /**
+     * A band of image rows, from startRow to endRow-1, and its buffers.
+     */
+    private class Band implements Callable<Void> {
+
+        static final int RENDER = 0;
+        static final int RGB = 1;
+        static final int DEFLATE = 2;
+
+        final int startRow;
+        final int endRow;
+        final boolean last;
+        volatile int op;
+
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        final Adler32 adler = new Adler32();
+        final int[] mass = new int[imageWidth];
+        final int[] momentumX = new int[imageWidth];
+        final int[] momentumY = new int[imageWidth];
+
+        byte[] deflated = new byte[0];
+        int deflatedLength;
+        int inputLength;
+
+        Band(int startRow, int endRow, boolean last){
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.last = last;
+            deflater.setStrategy(Deflater.HUFFMAN_ONLY);
+        }
+
+        @Override
+        public Void call(){
+            switch(op){
+                case RENDER:
+                    render();
+                    break;
+                case RGB:
+                    expand();
+                    break;
+                default:
+                    deflate();
+                    break;
+            }
+            return null;
+        }
+
+        private void render(){
+            for(int r = startRow; r < endRow; r++){
+                int out = r * (imageWidth + 1);
+                pixels[out++] = 0;
+                int y0 = (imageHeight - 1 - r) * blockSize;
+                if(mode == Mode.STATE){
+                    int row = (y0 + 1) * stride + 1;
+                    if(blockSize == 1){
+                        System.arraycopy(plane, row, pixels, out, width);
+                    }
+                    else{
+                        for(int px = 0; px < imageWidth; px++){
+                            pixels[out + px] = plane[row + px * blockSize];
+                        }
+                    }
+                    continue;
+                }
+                int y1 = Math.min(height, y0 + blockSize);
+                Arrays.fill(mass, 0);
+                Arrays.fill(momentumX, 0);
+                Arrays.fill(momentumY, 0);
+                //a row at a time, summing each block's run of cells with one packed load per cell
+                for(int y = y0; y < y1; y++){
+                    int i = (y + 1) * stride + 1;
+                    for(int px = 0; px < imageWidth; px++){
+                        int cells = Math.min(width, (px + 1) * blockSize) - px * blockSize;
+                        long sum = 0;
+                        for(int end = i + cells; i < end; i++){
+                            sum += ObservableAccumulator.PACKED[plane[i] & 0xFF];
+                        }
+                        mass[px] += (int)(sum & ObservableAccumulator.FIELD_MASK);
+                        momentumX[px] += (int)((sum >>> ObservableAccumulator.FIELD_BITS) & ObservableAccumulator.FIELD_MASK)
+                                - ObservableAccumulator.MOMENTUM_BIAS * cells;
+                        momentumY[px] += (int)((sum >>> (2 * ObservableAccumulator.FIELD_BITS)) & ObservableAccumulator.FIELD_MASK)
+                                - ObservableAccumulator.MOMENTUM_BIAS * cells;
+                    }
+                }
+                for(int px = 0; px < imageWidth; px++){
+                    int cells = (y1 - y0) * (Math.min(width, (px + 1) * blockSize) - px * blockSize);
+                    pixels[out + px] = (byte)((mode == Mode.DENSITY) ? densityIndex(mass[px], cells)
+                            : velocityIndex(mass[px], momentumX[px], momentumY[px]));
+                }
+            }
+        }
+
+        private int densityIndex(int mass, int cells){
+            return Math.min(255, (int)(mass * 255f / (cells * fullScale)));
+        }
+
+        private int velocityIndex(int mass, int mx, int my){
+            if(mass == 0){
+                return 0;
+            }
+            float vx = mx / (float)(mass * Collider.xm[0]);
+            float vy = my / (float)(mass * Collider.xm[0]);
+            int brightness = Math.min(15, (int)(15 * (float)Math.sqrt(vx * vx + vy * vy) / fullScale));
+            if(brightness == 0){
+                return 0;
+            }
+            return (((int)(diamondAngle(vx, vy) * 4) & 15) << 4) | brightness;
+        }
+
+        private void expand(){
+            for(int r = startRow; r < endRow; r++){
+                int in = r * (imageWidth + 1) + 1;
+                int out = r * imageWidth * 3;
+                for(int px = 0; px < imageWidth; px++){
+                    int c = palette[pixels[in + px] & 0xFF];
+                    rgb[out++] = (byte)(c >> 16);
+                    rgb[out++] = (byte)(c >> 8);
+                    rgb[out++] = (byte)c;
+                }
+            }
+        }
+
+        /**
+         * Deflates the band's rows to deflated, ending on a byte boundary with a sync flush, or with the final
+         * block for the last band, so that the bands' output can be concatenated.
+         */
+        private void deflate(){
+            int start = startRow * (imageWidth + 1);
+            inputLength = (endRow - startRow) * (imageWidth + 1);
+            adler.reset();
+            adler.update(pixels, start, inputLength);
+            deflater.reset();
+            deflater.setInput(pixels, start, inputLength);
+            if(last){
+                deflater.finish();
+            }
+            if(deflated.length == 0){
+                //more than deflate's worst case, stored blocks, so the flush is done in one call
+                deflated = new byte[inputLength + inputLength / 16 + 64];
+            }
+            deflatedLength = 0;
+            //the first call after the level or strategy changed may only apply the change
+            while(last ? !deflater.finished() : !deflater.needsInput()){
+                if(deflatedLength == deflated.length){
+                    throw new IllegalStateException("The deflated band overflowed its buffer");
+                }
+                deflatedLength += deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            }
+        }
+    }
+
+    /**
+     * Stops the band threads.
+     */
+    @Override
+    public void close(){
+        if(pool != null){
+            pool.shutdown();
+        }
+        for(Band band:bands){
+            band.deflater.end();
+        }
+    }
+
+    /**
+     * Times the rendering and encoding of frames of a random lattice, and writes one PNG of each mode.
+     * Arguments are the lattice size (default 4096), the number of threads (default the number of
+     * processors) and the directory for the PNGs (default the working directory).
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Path directory = java.nio.file.Paths.get(args.length > 2 ? args[2] : ".");
+
+        Grid grid = new Grid(size, size);
+        Ensemble.random(0.3).initialize(grid, 0, 42);
+        grid.fillHalo();
+        LatticeEngine engine = EngineType.BYTE.create(grid, new Collider(42), threads);
+        engine.step(20);
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        for(Mode mode:Mode.values()){
+            int block = (mode == Mode.STATE) ? 1 : 8;
+            FrameRenderer renderer = new FrameRenderer(size, size, mode, block, threads);
+            int frames = 20;
+            long render = 0, rgb = 0, png = 0;
+            for(int f = -5; f < frames; f++){
+                long t0 = System.nanoTime();
+                renderer.render(engine.getGrid());
+                long t1 = System.nanoTime();
+                renderer.writeRgb(discard);
+                long t2 = System.nanoTime();
+                renderer.writePng(discard);
+                long t3 = System.nanoTime();
+                if(f >= 0){
+                    render += t1 - t0;
+                    rgb += t2 - t1;
+                    png += t3 - t2;
+                }
+            }
+            try(OutputStream out = new BufferedOutputStream(Files.newOutputStream(
+                    directory.resolve("frame-" + mode.name().toLowerCase() + ".png")))){
+                renderer.writePng(out);
+            }
+            renderer.close();
+            System.out.println(String.format("%-8s %dx%d lattice, %dx%d image: render %.2f ms, rgb %.2f ms, png %.2f ms (%d threads)",
+                    mode, size, size, renderer.getImageWidth(), renderer.getImageHeight(),
+                    render / 1e6 / frames, rgb / 1e6 / frames, png / 1e6 / frames, threads));
+        }
+        engine.shutdown();
+    }
+
+}
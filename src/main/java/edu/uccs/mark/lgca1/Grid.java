@@ -1,8 +1,15 @@
 package edu.uccs.mark.lgca1;
 
+import java.util.Arrays;
+
 import static edu.uccs.mark.lgca1.State.NULLSTATE;
+import static edu.uccs.mark.lgca1.State.REST_MASK;
 import static edu.uccs.mark.lgca1.State.S1MASK;
-import static edu.uccs.mark.lgca1.State.SMASKS;
+import static edu.uccs.mark.lgca1.State.S2MASK;
+import static edu.uccs.mark.lgca1.State.S3MASK;
+import static edu.uccs.mark.lgca1.State.S4MASK;
+import static edu.uccs.mark.lgca1.State.S5MASK;
+import static edu.uccs.mark.lgca1.State.S6MASK;
 
 /**
  * Grid of width (x) by height (y) cells arranged in a hexagonal pattern.
@@ -15,17 +22,42 @@ import static edu.uccs.mark.lgca1.State.SMASKS;
  * So that the upper left neighbor of (1,0) is (0,1) which would be (x-1,y+1) since it is on an odd numbered row.
  * But the upper left neighbor of (0,1) is (0,2) which would be (x,y+1) since it is on an even numbered row.
  *
- * At each location there is a 2 element array of bytes.
- * Element 0 is the incomingState of the cell as it is now.  Element 1 is the incomingState the cell will be on the next time stamp
+ * The cells are stored in two flat, row-major planes of bytes.
+ * The "now" plane is the state of every cell as it is now.  The "next" plane is the state every cell will be
+ * on the next time stamp.
+ *
+ * Each plane is padded with a one cell halo all the way around the grid.  The halo is never written by the
+ * evaluation.  With the default open boundaries it always holds the null state and takes the place of the old
+ * out of bounds wall checks; other Boundaries fill it at every timestep.
+ * Cell (x,y) is stored at index (y+1)*stride + (x+1) where stride = width + 2.
+ * A plane must fit in a byte[]; larger lattices go in an OffHeapGrid.
  */
-public class Grid {
+public class Grid implements LatticeStorage {
 
     private int xWidth = 10;
     private int yHeight = 10;
 
-    private byte[][][] tGrid;
+    /**
+     * Distance between two vertically adjacent cells in a plane, i.e. the padded width.
+     */
+    private int stride;
+
+    private byte[] now;
+    private byte[] next;
+
+    /**
+     * Number of timesteps the grid has been advanced by.
+     */
+    private long timestep = 0;
+
+    private Boundaries boundaries;
 
-    private static final byte[] NULLCELL = new byte[]{NULLSTATE,NULLSTATE};
+    /**
+     * Offsets from a cell's index to its neighbors 1-6, for cells on even rows and on odd rows.
+     * Element n-1 holds the offset of neighbor n.
+     */
+    private int[] evenOffsets;
+    private int[] oddOffsets;
 
     public Grid(int width, int height){
         this.xWidth = width;
@@ -33,10 +65,12 @@ public class Grid {
         buildGrid();
     }
 
+    @Override
     public int getxWidth() {
         return xWidth;
     }
 
+    @Override
     public int getyHeight(){
         return yHeight;
     }
@@ -45,98 +79,234 @@ public class Grid {
      * Builds completely empty grid based on width and height
      */
     private void buildGrid(){
-        tGrid = new byte[xWidth][yHeight][2];
-        for(int x=0;x<xWidth;x++){
-            for(int y=0;y<yHeight;y++){
-                tGrid[x][y][0]=NULLSTATE;
-                tGrid[x][y][1]=NULLSTATE;
+        stride = xWidth + 2;
+        if((long)stride * (yHeight + 2) > Integer.MAX_VALUE - 8){
+            throw new IllegalArgumentException("A " + xWidth + "x" + yHeight
+                    + " grid does not fit in a byte[]; use an OffHeapGrid");
+        }
+        now = new byte[stride * (yHeight + 2)];
+        next = new byte[stride * (yHeight + 2)];
+
+        //  1 -> (x+1, y)
+        //  2 -> if y is even (x, y+1)   if y is odd (x+1, y+1)
+        //  3 -> if y is even (x-1, y+1) if y is odd (x, y+1)
+        //  4 -> (x-1, y)
+        //  5 -> if y is even (x-1, y-1) if y is odd (x, y-1)
+        //  6 -> if y is even (x, y-1)   if y is odd (x+1, y-1)
+        evenOffsets = new int[]{1, stride, stride - 1, -1, -stride - 1, -stride};
+        oddOffsets = new int[]{1, stride + 1, stride, -1, -stride, -stride + 1};
+        boundaries = Boundaries.open(this);
+    }
+
+    public Boundaries getBoundaries(){
+        return boundaries;
+    }
+
+    /**
+     * Sets the boundary conditions.  Both halos are emptied and the now plane's halo is filled.
+     * @param boundaries boundaries built for this grid
+     */
+    public void setBoundaries(Boundaries boundaries){
+        this.boundaries = boundaries;
+        for(byte[] plane:new byte[][]{now, next}){
+            Arrays.fill(plane, 0, stride, NULLSTATE);
+            Arrays.fill(plane, (yHeight + 1) * stride, (yHeight + 2) * stride, NULLSTATE);
+            for(int y = 0; y < yHeight; y++){
+                plane[(y + 1) * stride] = NULLSTATE;
+                plane[(y + 1) * stride + xWidth + 1] = NULLSTATE;
             }
         }
+        fillHalo();
+    }
+
+    /**
+     * Fills the now plane's halo according to the boundaries.  swap() does this by itself; call it after
+     * changing cells next to the sides by hand.
+     */
+    public void fillHalo(){
+        if(!boundaries.allSidesOpen()){
+            boundaries.fillHalo(this);
+        }
     }
 
     /**
-     * Returns the specified cell at the coordinates.
-     * If the index is out of bounds, it returns a null state.
-     * Possibly will re-implement this.
+     * Returns the timestep the now plane belongs to.
+     * @return
+     */
+    @Override
+    public long getTimestep(){
+        return timestep;
+    }
+
+    public void setTimestep(long timestep){
+        this.timestep = timestep;
+    }
+
+    /**
+     * Moves the timestep counter on by one.  swap() does this by itself.
+     */
+    public void advanceTimestep(){
+        timestep++;
+    }
+
+    /**
+     * Returns the distance between two vertically adjacent cells in a plane.
+     * @return
+     */
+    public int getStride(){
+        return stride;
+    }
+
+    /**
+     * Returns the index of cell (x,y) in the planes.  No bounds checking is done.
      * @param x
      * @param y
      * @return
      */
-    private byte[] cell(int x, int y){
-        if(x>=xWidth) return NULLCELL; //right wall
-        if(y>=yHeight) return NULLCELL;  //ceiling
-        if(x<0) return NULLCELL;  // left wall
-        if(y<0) return NULLCELL; // floor
-        return tGrid[x][y];
+    public int index(int x, int y){
+        return (y + 1) * stride + (x + 1);
+    }
+
+    /**
+     * Returns the neighbor offsets (see neighbor()) for the given row.
+     * @param y
+     * @return
+     */
+    public int[] neighborOffsets(int y){
+        return ((y & 1) == 0) ? evenOffsets : oddOffsets;
     }
 
     /**
-     * Returns the neighbor to a given cell.
+     * Returns the plane holding the current state of every cell, including the halo.
+     * @return
+     */
+    public byte[] getNowPlane(){
+        return now;
+    }
+
+    /**
+     * Returns the plane holding the next state of every cell, including the halo.
+     * @return
+     */
+    public byte[] getNextPlane(){
+        return next;
+    }
+
+    private boolean inBounds(int x, int y){
+        return x >= 0 && y >= 0 && x < xWidth && y < yHeight;
+    }
+
+    /**
+     * Returns the index of the neighbor to a given cell.
      *
      * This grid is a simple 2D array.
      * However the grid is supposed to represent a hexagonal configuration.
      * The neighbor index is 1-6, starting where 1 -> pi=0, 2 -> pi/3, 3 -> 2pi/3, ..., 6 -> 5pi/3
      *
-     * Because of this, retrieving the neighbor is complex (see class level comment)>
-     * This method handles the complexity.
+     * Because of this, retrieving the neighbor is complex (see class level comment).
+     * The offsets for even and odd rows are precalculated, so this is a single addition.
+     * A neighbor outside of the grid is a halo cell, which is always in the null state.
      *
      * @param neighborIndex
      * @param x
      * @param y
      * @return
      */
-    public byte[] neighbor(int neighborIndex, int x, int y){
-        switch(neighborIndex){
-            //  1 -> (x+1, y)
-            case 1: return cell(x+1, y);
-            //  2 -> if y is even (x, y+1)   if y is odd (x+1, y+1)
-            case 2: return ( (y & 1) == 0 )?cell(x,y+1):cell(x+1,y+1);
-            //  3 -> if y is even (x-1, y+1) if y is odd (x, y+1)
-            case 3: return ( (y & 1) == 0 )?cell(x-1,y+1):cell(x, y+1);
-            //  4 -> (x-1, y)
-            case 4: return cell(x-1,y);
-            //  5 -> if y is even (x-1, y-1) if y is odd (x, y-1)
-            case 5: return ( (y & 1) == 0 )?cell(x-1,y-1):cell(x,y-1);
-            //  6 -> if y is even (x, y-1)   if y is odd (x+1, y-1)
-            case 6: return ( (y & 1) == 0 )?cell(x,y-1):cell(x+1,y-1);
-            default: return NULLCELL;
-        }
+    public int neighbor(int neighborIndex, int x, int y){
+        return index(x, y) + neighborOffsets(y)[neighborIndex - 1];
     }
 
+    /**
+     * Returns the current state of the cell, or the null state if the coordinates are outside of the grid.
+     * @param x
+     * @param y
+     * @return
+     */
+    @Override
     public byte getStateNow(int x, int y){
-        return cell(x,y)[0];
+        return inBounds(x, y) ? now[index(x, y)] : NULLSTATE;
     }
 
+    /**
+     * Returns the next state of the cell, or the null state if the coordinates are outside of the grid.
+     * @param x
+     * @param y
+     * @return
+     */
     public byte getStateNext(int x, int y){
-        return cell(x,y)[1];
+        return inBounds(x, y) ? next[index(x, y)] : NULLSTATE;
     }
 
+    /**
+     * Sets the next state of the cell.  Writes outside of the grid are discarded.
+     * @param x
+     * @param y
+     * @param state
+     */
     public void setStateNext(int x, int y, byte state){
-        cell(x,y)[1]=state;
+        if(inBounds(x, y)){
+            next[index(x, y)] = state;
+        }
     }
 
+    /**
+     * Sets the current state of the cell.  Writes outside of the grid are discarded.
+     * @param x
+     * @param y
+     * @param state
+     */
+    @Override
     public void setStateNow(int x, int y, byte state){
-        cell(x,y)[0]=state;
+        if(inBounds(x, y)){
+            now[index(x, y)] = state;
+        }
     }
 
     /**
-     * Moves the future state to the current state, and nulls the future state.
+     * Makes the next plane the current plane in one step, for all cells at once.
+     * The old current plane becomes the next plane.  It is not cleared, since the next evaluation
+     * overwrites every cell of it.  The new current plane's halo is filled according to the boundaries.
      * Use this method before moving on to the next timestep.
+     */
+    @Override
+    public void swap(){
+        byte[] t = now;
+        now = next;
+        next = t;
+        timestep++;
+        fillHalo();
+    }
+
+    @Override
+    public void readNowRow(int y, byte[] dst, int offset){
+        System.arraycopy(now, (y + 1) * stride, dst, offset, stride);
+    }
+
+    @Override
+    public void writeNextRow(int y, byte[] src, int startX, int endX){
+        System.arraycopy(src, startX + 1, next, index(startX, y), endX - startX);
+    }
+
+    /**
+     * Moves the future state to the current state, and nulls the future state.
+     * This is the legacy per cell update; swap() does the same for the whole grid without copying.
      * @param x
      * @param y
      */
     public void updateState(int x, int y){
-        byte[] c = cell(x,y);
-        c[0] = c[1];
-        c[1] = NULLSTATE;
+        int i = index(x, y);
+        now[i] = next[i];
+        next[i] = NULLSTATE;
     }
 
     public byte neighborNow(int neighborIndex, int x, int y){
-        return neighbor(neighborIndex, x, y)[0];
+        if(!inBounds(x, y)) return NULLSTATE;
+        return now[neighbor(neighborIndex, x, y)];
     }
 
     public byte neighborNext(int neighborIndex, int x, int y){
-        return neighbor(neighborIndex, x, y)[1];
+        if(!inBounds(x, y)) return NULLSTATE;
+        return next[neighbor(neighborIndex, x, y)];
     }
 
     /**
@@ -149,6 +319,7 @@ public class Grid {
      *    the 4 occupation number from neighbor 1
      *    the 5 occupation number from neighbor 2
      *    the 6 occupation number from neighbor 3
+     *    and the rest particles, if any, from the cell itself
      *
      *  This is the incoming state that should be passed to the collider to determine the new state.
      *
@@ -157,15 +328,25 @@ public class Grid {
      * @return
      */
     public byte inboundState(int x, int y){
-        byte b = NULLSTATE;
-        int s = 0;
-        byte nn;
-        for(int i = 1;i<=6;i++){
-            s = (i>3)?i - 3:i+3;
-            nn = neighborNow(i, x, y);
-            b |= nn & SMASKS[s-1];
-        }
-        return b;
+        return inboundState(index(x, y), neighborOffsets(y));
+    }
+
+    /**
+     * Same as inboundState(x,y), but for a cell given by its index in the planes and the neighbor offsets
+     * of its row.  The cell must be inside the grid.
+     * @param i
+     * @param offsets
+     * @return
+     */
+    public byte inboundState(int i, int[] offsets){
+        byte[] n = now;
+        return (byte)((n[i + offsets[3]] & S1MASK)
+                | (n[i + offsets[4]] & S2MASK)
+                | (n[i + offsets[5]] & S3MASK)
+                | (n[i + offsets[0]] & S4MASK)
+                | (n[i + offsets[1]] & S5MASK)
+                | (n[i + offsets[2]] & S6MASK)
+                | (n[i] & REST_MASK));
     }
 
 }
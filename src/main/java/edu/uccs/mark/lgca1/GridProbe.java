@@ -1,11 +1,17 @@
 package edu.uccs.mark.lgca1;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
 import static edu.uccs.mark.lgca1.State.SMASKS;
 
 /**
  * Prints out the contents of the grid to the System Console.
  */
-public class GridProbe {
+public class GridProbe implements SnapshotPipeline.Consumer {
 
     public static final String ANSI_RESET = "\u001B[0m";
     public static final String ANSI_BLACK = "\u001B[30m";
@@ -26,27 +32,61 @@ public class GridProbe {
     public static final String ANSI_CYAN_BACKGROUND = "\u001B[46m";
     public static final String ANSI_WHITE_BACKGROUND = "\u001B[47m";
 
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    /**
+     * Reused by every grid printed, so printing allocates nothing once the lines have grown to the grid's width.
+     */
+    private final GridProbe.StatePrinter sp;
+
+    /**
+     * Prints to the System Console.
+     */
+    public GridProbe(){
+        this(System.out);
+    }
+
+    public GridProbe(PrintStream out){
+        this.sp = new GridProbe.StatePrinter(new OutputStreamWriter(out));
+    }
+
     /**
      * Prints the numbers representing the states
      * @param g
      */
     public void probeGrid(Grid g){
-        int x0 = 0; int xmax = g.getxWidth();
-        int y0 = 0; int ymax = g.getyHeight();
+        probePlane(g.getNowPlane(), g.getStride(), g.getxWidth(), g.getyHeight());
+    }
+
+    /**
+     * Prints a snapshot's grid under a line with its timestep, so the probe can consume the snapshots of a
+     * SnapshotPipeline off the stepping thread.
+     * @param snapshot
+     */
+    @Override
+    public void accept(Snapshot snapshot){
+        sp.page.append(LINE_SEPARATOR).append("Grid at time ").append(snapshot.getTimestep()).append(LINE_SEPARATOR);
+        probePlane(snapshot.getPlane(), snapshot.getStride(), snapshot.getxWidth(), snapshot.getyHeight());
+    }
 
-        GridProbe.StatePrinter sp = new GridProbe.StatePrinter();
-        for(int y = ymax - 1; y >= y0; y--){
+    /**
+     * Prints a plane laid out like a Grid's, top row first.
+     */
+    private void probePlane(byte[] plane, int stride, int width, int height){
+        for(int y = height - 1; y >= 0; y--){
             if(y%2==1){
                 sp.space();
                 sp.space();
             }
             sp.bar();
-            for(int x= x0; x < xmax; x++){
-                sp.addState(g.getStateNow(x,y));
+            int row = (y + 1) * stride + 1;
+            for(int x = 0; x < width; x++){
+                sp.addState(plane[row + x]);
                 sp.bar();
             }
             sp.print();
         }
+        sp.flush();
     }
 
     /**
@@ -55,7 +95,6 @@ public class GridProbe {
      * @param possibleCollisions
      */
     public void printCollisionPossibilities(byte state, byte[] possibleCollisions){
-        GridProbe.StatePrinter sp = new GridProbe.StatePrinter();
         sp.bar();
         sp.addState(state);
         sp.bar();
@@ -67,12 +106,23 @@ public class GridProbe {
         }
         sp.bar();
         sp.print();
-        System.out.println("");
+        sp.page.append(LINE_SEPARATOR);
+        sp.flush();
     }
 
     private static class StatePrinter{
-        StringBuilder lineOne = new StringBuilder();
-        StringBuilder lineTwo = new StringBuilder();
+        private final Writer out;
+        private final StringBuilder lineOne = new StringBuilder();
+        private final StringBuilder lineTwo = new StringBuilder();
+        /**
+         * The lines printed since the last flush.
+         */
+        private final StringBuilder page = new StringBuilder();
+        private char[] chars = new char[0];
+
+        StatePrinter(Writer out){
+            this.out = out;
+        }
 
         public void space(){
             lineOne.append("  ");
@@ -103,37 +153,41 @@ public class GridProbe {
             // if 5 then 2,2 = /
             // if 6 then 2,3 = \
             // 2,1 and 2.4 are always space
-            char[] one = new char[4];
-            one[0] = one[1] = one[2] = one[3] = ' ';
-            char[] two = new char[4];
-            two[0] = two[1] = two[2] = two[3] = ' ';
-            for(int n = 1; n <= SMASKS.length; n++){
-                if((state & SMASKS[n-1]) == SMASKS[n-1]){
-                    switch(n){
-                        case 1: one[4-1] = '_'; break;
-                        case 2: one[3-1] = '/'; break;
-                        case 3: one[2-1] = '\\'; break;
-                        case 4: one[1-1] = '_'; break;
-                        case 5: two[2-1] = '/'; break;
-                        case 6: two[3-1] = '\\'; break;
-                    }
-                }
-            }
-
-            lineOne.append(new String(one));
-            lineTwo.append(new String(two));
+            lineOne.append((state & SMASKS[3]) != 0 ? '_' : ' ')
+                    .append((state & SMASKS[2]) != 0 ? '\\' : ' ')
+                    .append((state & SMASKS[1]) != 0 ? '/' : ' ')
+                    .append((state & SMASKS[0]) != 0 ? '_' : ' ');
+            lineTwo.append(' ')
+                    .append((state & SMASKS[4]) != 0 ? '/' : ' ')
+                    .append((state & SMASKS[5]) != 0 ? '\\' : ' ')
+                    .append(' ');
         }
 
         public void print(){
-            System.out.println(lineOne.toString());
-            System.out.println(lineTwo.toString());
-            lineOne = new StringBuilder();
-            lineTwo = new StringBuilder();
+            page.append(lineOne).append(LINE_SEPARATOR).append(lineTwo).append(LINE_SEPARATOR);
+            lineOne.setLength(0);
+            lineTwo.setLength(0);
         }
-    }
-
-
-
 
+        /**
+         * Writes the page out in one go, through a reused char[] rather than a new String.
+         */
+        public void flush(){
+            if(chars.length < page.length()){
+                chars = new char[page.length()];
+            }
+            page.getChars(0, page.length(), chars, 0);
+            try{
+                out.write(chars, 0, page.length());
+                out.flush();
+            }
+            catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+            finally{
+                page.setLength(0);
+            }
+        }
+    }
 
 }
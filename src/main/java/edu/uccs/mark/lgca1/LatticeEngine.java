@@ -0,0 +1,28 @@
+package edu.uccs.mark.lgca1;
+
+/**
+ * Something that advances a grid through time.
+ *
+ * Engines may keep the lattice in their own storage while stepping.  getGrid() always returns the grid
+ * with its now plane and timestep brought up to date.
+ */
+public interface LatticeEngine {
+
+    /**
+     * Advances the lattice by the given number of timesteps.
+     * @param steps
+     */
+    void step(int steps);
+
+    /**
+     * Returns the grid, up to date with the last step.
+     * @return
+     */
+    Grid getGrid();
+
+    /**
+     * Releases any threads the engine holds.  The engine can not be stepped afterwards.
+     */
+    void shutdown();
+
+}
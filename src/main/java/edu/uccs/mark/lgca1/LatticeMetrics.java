@@ -0,0 +1,438 @@
+package edu.uccs.mark.lgca1;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runtime metrics of an engine stepping a lattice: how long each phase of a step takes, how busy each
+ * partition of the lattice is, and the lattice's particle count and momentum.
+ *
+ * An engine records into the metrics it was given with setMetrics(); an engine without metrics does not
+ * time anything.  Each phase goes into a lock free StepHistogram, which costs a few atomic increments per
+ * partition per step, so the metrics can stay on for whole runs.  The totals are checked every
+ * conservationInterval timesteps, with a pass over the grid at the end of the step, or never when the
+ * interval is 0.  Closed lattices conserve them, so any change is a bug.
+ *
+ * The metrics can be read through JMX once register() has been called, and printed as one compact line
+ * every so often with startLogging().
+ */
+public class LatticeMetrics implements LatticeMetricsMBean {
+
+    /**
+     * The phases of a step.
+     */
+    public enum Phase {
+        /**
+         * Streaming and colliding one partition.  The engines stream and collide each row in a single fused
+         * loop, so the two are timed together.
+         */
+        EVALUATE,
+        /**
+         * A partition waiting at the end of a step for the others to finish, and for the END_STEP work: the
+         * cost of load imbalance.
+         */
+        BARRIER_WAIT,
+        /**
+         * The work done once per step after every partition is done: swapping the planes, filling the halo
+         * and the observables.
+         */
+        END_STEP,
+        /**
+         * A whole step, from the end of the one before.
+         */
+        STEP
+    }
+
+    private final StepHistogram[] histograms = new StepHistogram[Phase.values().length];
+    private final int conservationInterval;
+
+    private volatile long[] partitionCells = new long[0];
+    private volatile AtomicLongArray partitionBusy = new AtomicLongArray(0);
+    private volatile long cellsPerStep = 0;
+
+    private final AtomicLong steps = new AtomicLong();
+    private volatile long timestep = 0;
+    private volatile long resetNanos = System.nanoTime();
+    private volatile long lastStepEnd = 0;
+
+    private volatile LatticeTotals totals;
+    private volatile LatticeTotals firstTotals;
+
+    private ScheduledExecutorService logger;
+    private ObjectName objectName;
+
+    /**
+     * Metrics that do not check the totals.
+     */
+    public LatticeMetrics(){
+        this(0);
+    }
+
+    /**
+     * @param conservationInterval the number of timesteps between checks of the lattice's totals, or 0 for
+     *                             none
+     */
+    public LatticeMetrics(int conservationInterval){
+        if(conservationInterval < 0){
+            throw new IllegalArgumentException("The conservation interval can not be negative");
+        }
+        this.conservationInterval = conservationInterval;
+        for(int p = 0; p < histograms.length; p++){
+            histograms[p] = new StepHistogram();
+        }
+    }
+
+    /**
+     * Called by the engine the metrics are given to, with the number of cells of each of its partitions.
+     * @param cells
+     */
+    void setPartitions(long[] cells){
+        long total = 0;
+        for(long c:cells){
+            total += c;
+        }
+        partitionBusy = new AtomicLongArray(cells.length);
+        partitionCells = cells.clone();
+        cellsPerStep = total;
+    }
+
+    /**
+     * Records the time partition took to evaluate its cells.
+     * @param partition
+     * @param nanos
+     */
+    void recordEvaluate(int partition, long nanos){
+        histograms[Phase.EVALUATE.ordinal()].record(nanos);
+        partitionBusy.addAndGet(partition, nanos);
+    }
+
+    void record(Phase phase, long nanos){
+        histograms[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * Called when the engine starts stepping, so that the time in between calls to step() is not counted.
+     * @param now System.nanoTime()
+     */
+    void startStepping(long now){
+        lastStepEnd = now;
+    }
+
+    /**
+     * Called once per step, after the grid has moved on to the next timestep.  Checks the totals when it is
+     * time to and records the step.
+     * @param grid
+     */
+    void endStep(Grid grid){
+        timestep = grid.getTimestep();
+        if(conservationInterval > 0 && timestep % conservationInterval == 0){
+            LatticeTotals t = LatticeTotals.of(grid);
+            if(firstTotals == null){
+                firstTotals = t;
+            }
+            totals = t;
+        }
+        steps.incrementAndGet();
+        long now = System.nanoTime();
+        histograms[Phase.STEP.ordinal()].record(now - lastStepEnd);
+        lastStepEnd = now;
+    }
+
+    /**
+     * The histogram of a phase, in nanoseconds.
+     * @param phase
+     * @return
+     */
+    public StepHistogram getHistogram(Phase phase){
+        return histograms[phase.ordinal()];
+    }
+
+    @Override
+    public long getTimestep(){
+        return timestep;
+    }
+
+    @Override
+    public long getSteps(){
+        return steps.get();
+    }
+
+    @Override
+    public double getStepsPerSecond(){
+        double seconds = (System.nanoTime() - resetNanos) / 1e9;
+        return (seconds <= 0) ? 0.0 : steps.get() / seconds;
+    }
+
+    @Override
+    public double getCellUpdatesPerSecond(){
+        return getStepsPerSecond() * cellsPerStep;
+    }
+
+    @Override
+    public double getStepMeanMicros(){
+        return getHistogram(Phase.STEP).getMean() / 1e3;
+    }
+
+    @Override
+    public double getStepP50Micros(){
+        return getHistogram(Phase.STEP).getValueAtPercentile(50) / 1e3;
+    }
+
+    @Override
+    public double getStepP99Micros(){
+        return getHistogram(Phase.STEP).getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getStepMaxMicros(){
+        return getHistogram(Phase.STEP).getMax() / 1e3;
+    }
+
+    @Override
+    public double getEvaluateP99Micros(){
+        return getHistogram(Phase.EVALUATE).getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getBarrierWaitP99Micros(){
+        return getHistogram(Phase.BARRIER_WAIT).getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getEndStepP99Micros(){
+        return getHistogram(Phase.END_STEP).getValueAtPercentile(99) / 1e3;
+    }
+
+    /**
+     * The busy time of the busiest partition over that of the average one: 1 when the work is evenly spread.
+     * @return
+     */
+    @Override
+    public double getLoadImbalance(){
+        AtomicLongArray busy = partitionBusy;
+        long max = 0, sum = 0;
+        for(int p = 0; p < busy.length(); p++){
+            max = Math.max(max, busy.get(p));
+            sum += busy.get(p);
+        }
+        return (sum == 0) ? 1.0 : (double)max * busy.length() / sum;
+    }
+
+    @Override
+    public long[] getPartitionCells(){
+        return partitionCells.clone();
+    }
+
+    @Override
+    public long[] getPartitionBusyMicros(){
+        AtomicLongArray busy = partitionBusy;
+        long[] micros = new long[busy.length()];
+        for(int p = 0; p < micros.length; p++){
+            micros[p] = busy.get(p) / 1000;
+        }
+        return micros;
+    }
+
+    /**
+     * The totals found by the last check, or null if there was none yet.
+     * @return
+     */
+    public LatticeTotals getTotals(){
+        return totals;
+    }
+
+    @Override
+    public long getMass(){
+        LatticeTotals t = totals;
+        return (t == null) ? 0 : t.getMass();
+    }
+
+    @Override
+    public long getMomentumX(){
+        LatticeTotals t = totals;
+        return (t == null) ? 0 : t.getMomentumX();
+    }
+
+    @Override
+    public long getMomentumY(){
+        LatticeTotals t = totals;
+        return (t == null) ? 0 : t.getMomentumY();
+    }
+
+    /**
+     * The change in the number of particles since the first check.
+     * @return
+     */
+    @Override
+    public long getMassChange(){
+        LatticeTotals first = firstTotals;
+        LatticeTotals t = totals;
+        return (first == null) ? 0 : t.getMass() - first.getMass();
+    }
+
+    @Override
+    public String getSummary(){
+        return summary(getStepsPerSecond());
+    }
+
+    private String summary(double stepsPerSecond){
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("t=%d %.1f steps/s %.1f Mcell/s step p50 %.3fms p99 %.3fms",
+                timestep, stepsPerSecond, stepsPerSecond * cellsPerStep / 1e6,
+                getStepP50Micros() / 1e3, getStepP99Micros() / 1e3));
+        sb.append(String.format(" | evaluate p99 %.3fms wait p99 %.3fms end %.3fms imbalance %.2f",
+                getEvaluateP99Micros() / 1e3, getBarrierWaitP99Micros() / 1e3, getEndStepP99Micros() / 1e3,
+                getLoadImbalance()));
+        LatticeTotals t = totals;
+        if(t != null){
+            sb.append(String.format(" | mass %d (%+d) momentum (%d,%d)", t.getMass(), getMassChange(),
+                    t.getMomentumX(), t.getMomentumY()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Forgets the timings and the partitions' busy times, and starts the steps per second over.
+     */
+    @Override
+    public void reset(){
+        for(StepHistogram h:histograms){
+            h.reset();
+        }
+        AtomicLongArray busy = partitionBusy;
+        for(int p = 0; p < busy.length(); p++){
+            busy.set(p, 0);
+        }
+        steps.set(0);
+        resetNanos = System.nanoTime();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as edu.uccs.mark.lgca1:type=LatticeMetrics,name=name.
+     * @param name
+     * @throws IllegalStateException if they can not be registered, e.g. because the name is taken
+     */
+    public synchronized void register(String name){
+        try{
+            ObjectName on = new ObjectName("edu.uccs.mark.lgca1:type=LatticeMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+            objectName = on;
+        }
+        catch(JMException e){
+            throw new IllegalStateException("Could not register the metrics as " + name, e);
+        }
+    }
+
+    /**
+     * Prints a summary line to out every period milliseconds, on a daemon thread, with the steps per second
+     * since the line before.
+     * @param periodMillis
+     * @param out
+     */
+    public synchronized void startLogging(long periodMillis, final PrintStream out){
+        if(logger != null){
+            throw new IllegalStateException("The metrics are already being logged");
+        }
+        logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "lattice-metrics");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        logger.scheduleAtFixedRate(new Runnable() {
+            private long lastSteps = steps.get();
+            private long lastNanos = System.nanoTime();
+
+            @Override
+            public void run() {
+                long s = steps.get();
+                long now = System.nanoTime();
+                double rate = (s - lastSteps) / ((now - lastNanos) / 1e9);
+                lastSteps = s;
+                lastNanos = now;
+                out.println(summary(rate));
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the logging and unregisters the MBean, if either was started.
+     */
+    public synchronized void close(){
+        if(logger != null){
+            logger.shutdownNow();
+            logger = null;
+        }
+        if(objectName != null){
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try{
+                server.unregisterMBean(objectName);
+            }
+            catch(JMException e){
+                //already gone
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Steps a random periodic lattice with the metrics logged every second and registered with JMX as
+     * "main", then times the same run with and without metrics, taking turns, to show what they cost.
+     * Arguments are the grid size (default 1024), the number of timesteps (default 1000) and the number of
+     * threads (default the number of processors).
+     * @param args
+     */
+    public static void main(String[] args){
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        LatticeMetrics metrics = new LatticeMetrics(100);
+        metrics.register("main");
+        metrics.startLogging(1000, System.out);
+        run(size, steps, threads, metrics);
+        metrics.close();
+        System.out.println(metrics.getSummary());
+
+        double with = Double.MAX_VALUE, without = Double.MAX_VALUE;
+        for(int round = 0; round < 3; round++){
+            without = Math.min(without, run(size, steps, threads, null));
+            with = Math.min(with, run(size, steps, threads, new LatticeMetrics(100)));
+        }
+        System.out.println(String.format("best of 3: %.2f ms/step with metrics, %.2f ms/step without (%+.1f%%)",
+                with * 1e3 / steps, without * 1e3 / steps, 100.0 * (with - without) / without));
+    }
+
+    private static double run(int size, int steps, int threads, LatticeMetrics metrics){
+        Grid g = new Grid(size, size);
+        g.setBoundaries(new Boundaries(g, BoundaryType.PERIODIC, BoundaryType.PERIODIC, BoundaryType.PERIODIC,
+                BoundaryType.PERIODIC));
+        java.util.Random r = new java.util.Random(42);
+        for(int y = 0; y < size; y++){
+            for(int x = 0; x < size; x++){
+                g.setStateNow(x, y, (byte)r.nextInt(State.ALL_POSSIBLE_STATES.length));
+            }
+        }
+        g.fillHalo();
+        SimulationEngine engine = new SimulationEngine(g, new Collider(42), threads);
+        engine.setMetrics(metrics);
+        engine.step(steps / 10);
+        long start = System.nanoTime();
+        engine.step(steps);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        engine.shutdown();
+        return seconds;
+    }
+
+}
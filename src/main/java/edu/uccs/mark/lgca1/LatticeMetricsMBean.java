@@ -0,0 +1,48 @@
+package edu.uccs.mark.lgca1;
+
+/**
+ * The JMX view of a LatticeMetrics.  Times are in microseconds.
+ */
+public interface LatticeMetricsMBean {
+
+    long getTimestep();
+
+    long getSteps();
+
+    double getStepsPerSecond();
+
+    double getCellUpdatesPerSecond();
+
+    double getStepMeanMicros();
+
+    double getStepP50Micros();
+
+    double getStepP99Micros();
+
+    double getStepMaxMicros();
+
+    double getEvaluateP99Micros();
+
+    double getBarrierWaitP99Micros();
+
+    double getEndStepP99Micros();
+
+    double getLoadImbalance();
+
+    long[] getPartitionCells();
+
+    long[] getPartitionBusyMicros();
+
+    long getMass();
+
+    long getMomentumX();
+
+    long getMomentumY();
+
+    long getMassChange();
+
+    String getSummary();
+
+    void reset();
+
+}
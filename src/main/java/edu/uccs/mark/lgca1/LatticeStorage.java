@@ -0,0 +1,50 @@
+package edu.uccs.mark.lgca1;
+
+/**
+ * Where the now and next planes of a lattice are kept.
+ *
+ * Both planes are laid out like the Grid's: row by row, each row padded by one halo cell at each end, and
+ * a halo row above and below, so a padded row is width + 2 bytes.  The Cell Evaluators read the now plane
+ * and write the next plane a row at a time through this interface, so the planes can live on the heap
+ * (Grid) or outside of it (OffHeapGrid).
+ */
+public interface LatticeStorage {
+
+    int getxWidth();
+
+    int getyHeight();
+
+    /**
+     * Returns the timestep the now plane belongs to.
+     * @return
+     */
+    long getTimestep();
+
+    byte getStateNow(int x, int y);
+
+    void setStateNow(int x, int y, byte state);
+
+    /**
+     * Copies padded row y of the now plane, halo cells included, to dst starting at offset.
+     * @param y the row, from -1 for the bottom halo row to the height for the top halo row
+     * @param dst
+     * @param offset
+     */
+    void readNowRow(int y, byte[] dst, int offset);
+
+    /**
+     * Copies cells startX to endX-1 of row y of the next plane from src, which is laid out like a padded row:
+     * cell x is src[x + 1].
+     * @param y
+     * @param src
+     * @param startX
+     * @param endX
+     */
+    void writeNextRow(int y, byte[] src, int startX, int endX);
+
+    /**
+     * Makes the next plane the now plane and moves the timestep on.
+     */
+    void swap();
+
+}
@@ -0,0 +1,101 @@
+package edu.uccs.mark.lgca1;
+
+/**
+ * The conserved totals of a lattice: the number of particles and the x and y momentum.
+ * Momentum is in the integer units of Collider, i.e. a particle moving along direction 1 has x momentum 100.
+ */
+public class LatticeTotals {
+
+    private final long mass;
+    private final long momentumX;
+    private final long momentumY;
+
+    public LatticeTotals(long mass, long momentumX, long momentumY){
+        this.mass = mass;
+        this.momentumX = momentumX;
+        this.momentumY = momentumY;
+    }
+
+    /**
+     * Builds the totals from the number of particles moving in each of the 6 directions, optionally followed
+     * by the numbers of rest particles, which add to the mass only.
+     * @param directionCounts
+     * @return
+     */
+    public static LatticeTotals fromDirectionCounts(long[] directionCounts){
+        long m = 0, px = 0, py = 0;
+        for(int d = 0; d < directionCounts.length; d++){
+            m += directionCounts[d];
+            if(d < Collider.xm.length){
+                px += directionCounts[d] * Collider.xm[d];
+                py += directionCounts[d] * Collider.ym[d];
+            }
+        }
+        return new LatticeTotals(m, px, py);
+    }
+
+    /**
+     * Totals of the grid's now plane.
+     * @param g
+     * @return
+     */
+    public static LatticeTotals of(Grid g){
+        return fromDirectionCounts(directionCounts(g));
+    }
+
+    /**
+     * Counts the particles moving in each of the 6 directions in the grid's now plane, followed by the
+     * particles in the two rest slots.
+     * @param g
+     * @return
+     */
+    public static long[] directionCounts(Grid g){
+        //count the cells in each state, then the particles of each state, which is one increment per cell
+        long[] states = new long[256];
+        byte[] now = g.getNowPlane();
+        for(int y = 0; y < g.getyHeight(); y++){
+            int i = g.index(0, y);
+            int end = i + g.getxWidth();
+            for(; i < end; i++){
+                states[now[i] & 0xFF]++;
+            }
+        }
+        long[] counts = new long[8];
+        for(int s = 0; s < states.length; s++){
+            for(int d = 0; d < counts.length; d++){
+                counts[d] += states[s] * ((s >> d) & 1);
+            }
+        }
+        return counts;
+    }
+
+    public long getMass() {
+        return mass;
+    }
+
+    public long getMomentumX() {
+        return momentumX;
+    }
+
+    public long getMomentumY() {
+        return momentumY;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof LatticeTotals)) return false;
+        LatticeTotals t = (LatticeTotals)o;
+        return mass == t.mass && momentumX == t.momentumX && momentumY == t.momentumY;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int)(mass * 31 * 31 + momentumX * 31 + momentumY);
+    }
+
+    @Override
+    public String toString() {
+        return "mass=" + mass + " px=" + momentumX + " py=" + momentumY;
+    }
+
+}
@@ -0,0 +1,562 @@
+package edu.uccs.mark.lgca1;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static edu.uccs.mark.lgca1.State.REST_MASK;
+import static edu.uccs.mark.lgca1.State.S1MASK;
+import static edu.uccs.mark.lgca1.State.S2MASK;
+import static edu.uccs.mark.lgca1.State.S3MASK;
+import static edu.uccs.mark.lgca1.State.S4MASK;
+import static edu.uccs.mark.lgca1.State.S5MASK;
+import static edu.uccs.mark.lgca1.State.S6MASK;
+
+/**
+ * Steps a grid the way Hashlife steps the Game of Life: regions of the lattice are hash-consed into a
+ * quadtree, and the future of each region is computed once and remembered, so lattices with repeated
+ * structure, such as vacuum, uniform channels or periodic patterns, are fast-forwarded by powers of two
+ * timesteps at a cost that depends on how many different regions there are rather than on their area.
+ *
+ * This only works when a cell's next state depends on nothing but its inbound state, so the collider must
+ * be deterministic (see Collider.deterministic()).  With ALTERNATING chirality it also depends on the parity
+ * of the timestep, which is then part of what is remembered.
+ *
+ * A node of level k is a square of 2^k by 2^k cells: level 3 nodes are leaves of 8 by 8 cells, and the others
+ * have four children of the level below.  Equal nodes are the same object, so a node's future is looked up
+ * by identity.  The future of a node of level k after 2^j timesteps, j at most k-2, is the 2^(k-1) square
+ * at its center, which is all that the node determines that far ahead.  It is computed from nine overlapping
+ * nodes of level k-1 and kept in a cache of at most cacheSize futures, the least recently used being evicted.
+ * Every node is an even number of rows from any other, so all rows keep their parity.  When more than
+ * 4 * cacheSize nodes have been made by the start of a jump, the nodes and the cache are flushed, and the lattice
+ * is read in again.
+ *
+ * The lattice must have periodic boundaries on every side and no obstacles, and its width and height must
+ * be powers of two, the larger at least 16.  It is stepped as a torus of the larger side, holding copies
+ * of the lattice if it is not square, whose copies are hash-consed into the same nodes.  The grid is read
+ * at the start of step() and written at the end, and the steps are single threaded.
+ */
+public class MemoizedEngine implements LatticeEngine {
+
+    public static final int DEFAULT_CACHE_SIZE = 1 << 18;
+
+    private static final int LEAF_LEVEL = 3;
+    private static final int LEAF_SIZE = 1 << LEAF_LEVEL;
+
+    /**
+     * State.REST_MASK as an int, without the sign extension.
+     */
+    private static final int REST_BITS = REST_MASK & 0xFF;
+
+    private Grid grid;
+    private Collider collider;
+    private int cacheSize;
+    private boolean alternates;
+
+    /**
+     * The level of the torus.
+     */
+    private int level;
+
+    private Map<Node, Node> nodes = new HashMap<>();
+    private LinkedHashMap<Future, Node> futures;
+    private Node[] empty;
+    private long nextId = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long flushes = 0;
+
+    /**
+     * Scratch for stepping the 16 by 16 cells of a level 4 node.
+     */
+    private final byte[] cellsA = new byte[4 * LEAF_SIZE * LEAF_SIZE];
+    private final byte[] cellsB = new byte[4 * LEAF_SIZE * LEAF_SIZE];
+
+    public MemoizedEngine(Grid grid, Collider collider){
+        this(grid, collider, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param grid
+     * @param collider a deterministic collider
+     * @param cacheSize the maximum number of futures remembered
+     * @throws UnsupportedOperationException if the collider is random, or the grid's boundaries or sides are not
+     * ones the engine supports
+     */
+    public MemoizedEngine(Grid grid, Collider collider, int cacheSize){
+        if(!collider.isDeterministic()){
+            throw new UnsupportedOperationException("The memoized engine needs a deterministic collider; see "
+                    + "Collider.deterministic()");
+        }
+        Boundaries b = grid.getBoundaries();
+        for(int side = Boundaries.LEFT; side <= Boundaries.TOP; side++){
+            if(b.getSide(side) != BoundaryType.PERIODIC){
+                throw new UnsupportedOperationException("The memoized engine only supports periodic boundaries");
+            }
+        }
+        if(b.hasObstacles()){
+            throw new UnsupportedOperationException("The memoized engine does not support obstacles");
+        }
+        int width = grid.getxWidth();
+        int height = grid.getyHeight();
+        int side = Math.max(width, height);
+        if(Integer.bitCount(width) != 1 || Integer.bitCount(height) != 1 || side < 2 * LEAF_SIZE){
+            throw new UnsupportedOperationException("The memoized engine needs a width and a height that are powers of two, the larger at least "
+                    + 2 * LEAF_SIZE + ", not " + width + "x" + height);
+        }
+        this.grid = grid;
+        this.collider = collider;
+        this.cacheSize = cacheSize;
+        this.alternates = collider.alternates();
+        this.level = Integer.numberOfTrailingZeros(side);
+        futures = new LinkedHashMap<Future, Node>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Future, Node> eldest) {
+                if(size() > MemoizedEngine.this.cacheSize){
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        makeEmptyNodes();
+    }
+
+    @Override
+    public Grid getGrid(){
+        return grid;
+    }
+
+    /**
+     * Advances the grid by the given number of timesteps, in jumps of the largest powers of two that fit, up
+     * to half the torus' side at a time.
+     * @param steps
+     */
+    @Override
+    public void step(int steps){
+        Node torus = read();
+        long timestep = grid.getTimestep();
+        long left = steps;
+        while(left > 0){
+            if(nodes.size() > 4L * cacheSize){
+                flush(torus, timestep);
+                torus = read();
+            }
+            int j = Math.min(level - 1, 63 - Long.numberOfLeadingZeros(left));
+            //the torus next to copies of itself, whose center after the jump is the torus shifted by half its side
+            Node center = future(node(torus, torus, torus, torus), j, (int)(timestep & 1));
+            torus = node(center.children[3], center.children[2], center.children[1], center.children[0]);
+            timestep += 1L << j;
+            left -= 1L << j;
+        }
+        write(torus, level, 0, 0);
+        grid.setTimestep(timestep);
+        grid.fillHalo();
+    }
+
+    /**
+     * Writes the torus to the grid and forgets every node and future.
+     */
+    private void flush(Node torus, long timestep){
+        write(torus, level, 0, 0);
+        grid.setTimestep(timestep);
+        nodes.clear();
+        futures.clear();
+        makeEmptyNodes();
+        flushes++;
+    }
+
+    private void makeEmptyNodes(){
+        empty = new Node[level + 2];
+        empty[LEAF_LEVEL] = leaf(new byte[LEAF_SIZE * LEAF_SIZE]);
+        for(int k = LEAF_LEVEL + 1; k < empty.length; k++){
+            empty[k] = node(empty[k - 1], empty[k - 1], empty[k - 1], empty[k - 1]);
+        }
+    }
+
+    /**
+     * The torus holding the grid.
+     */
+    private Node read(){
+        return read(level, 0, 0);
+    }
+
+    private Node read(int k, int x0, int y0){
+        if(k == LEAF_LEVEL){
+            byte[] cells = new byte[LEAF_SIZE * LEAF_SIZE];
+            byte[] now = grid.getNowPlane();
+            for(int y = 0; y < LEAF_SIZE; y++){
+                int row = grid.index(0, (y0 + y) % grid.getyHeight());
+                for(int x = 0; x < LEAF_SIZE; x++){
+                    cells[y * LEAF_SIZE + x] = now[row + (x0 + x) % grid.getxWidth()];
+                }
+            }
+            return leaf(cells);
+        }
+        int h = 1 << (k - 1);
+        return node(read(k - 1, x0, y0), read(k - 1, x0 + h, y0), read(k - 1, x0, y0 + h), read(k - 1, x0 + h, y0 + h));
+    }
+
+    /**
+     * Writes the part of the node at (x0,y0) of the torus that is in the grid.
+     */
+    private void write(Node n, int k, int x0, int y0){
+        if(x0 >= grid.getxWidth() || y0 >= grid.getyHeight()){
+            return;
+        }
+        if(k == LEAF_LEVEL){
+            byte[] now = grid.getNowPlane();
+            for(int y = 0; y < LEAF_SIZE && y0 + y < grid.getyHeight(); y++){
+                int row = grid.index(0, y0 + y);
+                for(int x = 0; x < LEAF_SIZE && x0 + x < grid.getxWidth(); x++){
+                    now[row + x0 + x] = n.cells[y * LEAF_SIZE + x];
+                }
+            }
+            return;
+        }
+        int h = 1 << (k - 1);
+        write(n.children[0], k - 1, x0, y0);
+        write(n.children[1], k - 1, x0 + h, y0);
+        write(n.children[2], k - 1, x0, y0 + h);
+        write(n.children[3], k - 1, x0 + h, y0 + h);
+    }
+
+    private Node leaf(byte[] cells){
+        return intern(new Node(LEAF_LEVEL, cells, null));
+    }
+
+    /**
+     * The node with the given children: lower left, lower right, upper left and upper right.
+     */
+    private Node node(Node ll, Node lr, Node ul, Node ur){
+        return intern(new Node(ll.level + 1, null, new Node[]{ll, lr, ul, ur}));
+    }
+
+    private Node intern(Node n){
+        Node existing = nodes.get(n);
+        if(existing != null){
+            return existing;
+        }
+        n.id = nextId++;
+        nodes.put(n, n);
+        return n;
+    }
+
+    /**
+     * The center of a node of level k at least 4 after 2^j timesteps, j at most k-2, starting on a timestep
+     * of the given parity.
+     */
+    private Node future(Node n, int j, int phase){
+        if(n == empty[n.level]){
+            //vacuum stays vacuum
+            return empty[n.level - 1];
+        }
+        if(!alternates){
+            phase = 0;
+        }
+        Future key = new Future(n, j, phase);
+        Node f = futures.get(key);
+        if(f != null){
+            hits++;
+            return f;
+        }
+        misses++;
+        if(n.level == LEAF_LEVEL + 1){
+            f = stepCells(n, 1 << j, phase);
+        }
+        else{
+            Node[] c = n.children;
+            Node[] g0 = c[0].children, g1 = c[1].children, g2 = c[2].children, g3 = c[3].children;
+            //the nine overlapping nodes of level k-1, by column then row
+            Node[] nine = {
+                    c[0], node(g0[1], g1[0], g0[3], g1[2]), c[1],
+                    node(g0[2], g0[3], g2[0], g2[1]), node(g0[3], g1[2], g2[1], g3[0]), node(g1[2], g1[3], g3[0], g3[1]),
+                    c[2], node(g2[1], g3[0], g2[3], g3[2]), c[3]
+            };
+            boolean full = j == n.level - 2;
+            Node[] r = new Node[9];
+            for(int i = 0; i < 9; i++){
+                //the first half of a full jump, which is an even number of timesteps, or no timesteps at all
+                r[i] = full ? future(nine[i], j - 1, phase) : center(nine[i]);
+            }
+            int half = full ? j - 1 : j;
+            f = node(future(node(r[0], r[1], r[3], r[4]), half, phase),
+                    future(node(r[1], r[2], r[4], r[5]), half, phase),
+                    future(node(r[3], r[4], r[6], r[7]), half, phase),
+                    future(node(r[4], r[5], r[7], r[8]), half, phase));
+        }
+        futures.put(key, f);
+        return f;
+    }
+
+    /**
+     * The center of a node, one level down, as it is now.
+     */
+    private Node center(Node n){
+        if(n.level > LEAF_LEVEL + 1){
+            Node[] c = n.children;
+            return node(c[0].children[3], c[1].children[2], c[2].children[1], c[3].children[0]);
+        }
+        int size = 2 * LEAF_SIZE;
+        unpack(n, cellsA);
+        byte[] cells = new byte[LEAF_SIZE * LEAF_SIZE];
+        int q = LEAF_SIZE / 2;
+        for(int y = 0; y < LEAF_SIZE; y++){
+            System.arraycopy(cellsA, (y + q) * size + q, cells, y * LEAF_SIZE, LEAF_SIZE);
+        }
+        return leaf(cells);
+    }
+
+    /**
+     * Copies the 16 by 16 cells of a level 4 node into cells, row by row.
+     */
+    private void unpack(Node n, byte[] cells){
+        int size = 2 * LEAF_SIZE;
+        for(int q = 0; q < 4; q++){
+            byte[] leaf = n.children[q].cells;
+            int x0 = (q & 1) * LEAF_SIZE;
+            int y0 = (q >> 1) * LEAF_SIZE;
+            for(int y = 0; y < LEAF_SIZE; y++){
+                System.arraycopy(leaf, y * LEAF_SIZE, cells, (y0 + y) * size + x0, LEAF_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Steps the cells of a level 4 node the given number of timesteps, at most 4, one fewer ring of cells
+     * being known every timestep, and returns the center 8 by 8 cells.
+     */
+    private Node stepCells(Node n, int steps, int phase){
+        int size = 2 * LEAF_SIZE;
+        byte[] now = cellsA;
+        byte[] next = cellsB;
+        unpack(n, now);
+        for(int s = 1; s <= steps; s++){
+            long timestep = phase + s - 1;
+            for(int y = s; y < size - s; y++){
+                int row = y * size;
+                for(int x = s; x < size - s; x++){
+                    int i = row + x;
+                    int below = i - size;
+                    int above = i + size;
+                    int in;
+                    if((y & 1) == 0){
+                        in = (now[i - 1] & S1MASK) | (now[below - 1] & S2MASK) | (now[below] & S3MASK)
+                                | (now[i + 1] & S4MASK) | (now[above] & S5MASK) | (now[above - 1] & S6MASK);
+                    }
+                    else{
+                        in = (now[i - 1] & S1MASK) | (now[below] & S2MASK) | (now[below + 1] & S3MASK)
+                                | (now[i + 1] & S4MASK) | (now[above + 1] & S5MASK) | (now[above] & S6MASK);
+                    }
+                    next[i] = collider.collide(in | (now[i] & REST_BITS), timestep, x, y);
+                }
+            }
+            byte[] t = now;
+            now = next;
+            next = t;
+        }
+        byte[] cells = new byte[LEAF_SIZE * LEAF_SIZE];
+        int q = LEAF_SIZE / 2;
+        for(int y = 0; y < LEAF_SIZE; y++){
+            System.arraycopy(now, (y + q) * size + q, cells, y * LEAF_SIZE, LEAF_SIZE);
+        }
+        return leaf(cells);
+    }
+
+    /**
+     * The number of futures found in the cache.
+     * @return
+     */
+    public long getHits(){
+        return hits;
+    }
+
+    /**
+     * The number of futures that had to be computed.
+     * @return
+     */
+    public long getMisses(){
+        return misses;
+    }
+
+    /**
+     * The fraction of the futures looked up that were found in the cache.
+     * @return
+     */
+    public double getHitRate(){
+        long n = hits + misses;
+        return (n == 0) ? 0.0 : (double)hits / n;
+    }
+
+    /**
+     * The number of futures evicted from the cache to make room for others.
+     * @return
+     */
+    public long getEvictions(){
+        return evictions;
+    }
+
+    /**
+     * The number of times every node and future was forgotten because there were too many nodes.
+     * @return
+     */
+    public long getFlushes(){
+        return flushes;
+    }
+
+    public int getCachedFutures(){
+        return futures.size();
+    }
+
+    public int getNodeCount(){
+        return nodes.size();
+    }
+
+    /**
+     * Nothing to stop; the steps are done on the calling thread.
+     */
+    @Override
+    public void shutdown(){
+    }
+
+    /**
+     * A square of the lattice.  Leaves have cells, 8 rows of 8 from the bottom, and the other nodes children.
+     * Nodes are equal when their cells are, or when their children are the same nodes.
+     */
+    private static final class Node {
+        final int level;
+        final byte[] cells;
+        final Node[] children;
+        final int hash;
+        long id;
+
+        Node(int level, byte[] cells, Node[] children){
+            this.level = level;
+            this.cells = cells;
+            this.children = children;
+            if(cells != null){
+                hash = Arrays.hashCode(cells);
+            }
+            else{
+                int h = level;
+                for(Node c:children){
+                    h = h * 1000003 + (int)(c.id ^ (c.id >>> 32));
+                }
+                hash = h;
+            }
+        }
+
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof Node)){
+                return false;
+            }
+            Node n = (Node)o;
+            if(n.level != level || n.hash != hash){
+                return false;
+            }
+            if(cells != null){
+                return Arrays.equals(cells, n.cells);
+            }
+            for(int i = 0; i < 4; i++){
+                if(children[i] != n.children[i]){
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The key of a node's future after 2^j timesteps from a timestep of the given parity.
+     */
+    private static final class Future {
+        final Node node;
+        final int j;
+        final int phase;
+
+        Future(Node node, int j, int phase){
+            this.node = node;
+            this.j = j;
+            this.phase = phase;
+        }
+
+        @Override
+        public int hashCode(){
+            return (int)(node.id * 0x9E3779B97F4A7C15L >>> 32) ^ (j << 1) ^ phase;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof Future)){
+                return false;
+            }
+            Future f = (Future)o;
+            return f.node == node && f.j == j && f.phase == phase;
+        }
+    }
+
+    /**
+     * Compares the memoized engine with the BYTE engine, both with a deterministic collider, on a vacuum with a
+     * small cloud of particles and on a lattice tiled with a small random pattern, checking that they give
+     * the same lattice.  Arguments are the lattice size (default 1024) and the number of timesteps (default
+     * 1024).
+     * @param args
+     */
+    public static void main(String[] args){
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        Collider collider = new Collider(42, CollisionModel.FHP_I).deterministic();
+
+        for(String scenario:new String[]{"vacuum with a cloud", "tiled 32x32 pattern"}){
+            Grid[] grids = new Grid[2];
+            for(int g = 0; g < 2; g++){
+                grids[g] = new Grid(size, size);
+                Ensemble.random(0.3).initialize(grids[g], 0, 42);
+                byte[] now = grids[g].getNowPlane();
+                for(int y = 0; y < size; y++){
+                    for(int x = 0; x < size; x++){
+                        int i = grids[g].index(x, y);
+                        if(scenario.startsWith("vacuum")){
+                            if(Math.abs(x - size / 2) >= 16 || Math.abs(y - size / 2) >= 16){
+                                now[i] = State.NULLSTATE;
+                            }
+                        }
+                        else{
+                            now[i] = now[grids[g].index(x % 32, y % 32)];
+                        }
+                    }
+                }
+                grids[g].fillHalo();
+            }
+            LatticeEngine reference = EngineType.BYTE.create(grids[0], collider, 1);
+            MemoizedEngine memoized = new MemoizedEngine(grids[1], collider);
+
+            long t0 = System.nanoTime();
+            reference.step(steps);
+            long t1 = System.nanoTime();
+            memoized.step(steps);
+            long t2 = System.nanoTime();
+            System.out.println(String.format("%s, %dx%d, %d steps: BYTE %.1f ms, memoized %.1f ms, same lattice: %b",
+                    scenario, size, size, steps, (t1 - t0) / 1e6, (t2 - t1) / 1e6,
+                    Arrays.equals(grids[0].getNowPlane(), grids[1].getNowPlane())));
+
+            long t3 = System.nanoTime();
+            memoized.step(steps);
+            long t4 = System.nanoTime();
+            System.out.println(String.format("  memoized %d more steps: %.1f ms; %d hits, %d misses (%.1f%%), %d nodes, %d futures cached, %d evictions",
+                    steps, (t4 - t3) / 1e6, memoized.getHits(), memoized.getMisses(), 100 * memoized.getHitRate(),
+                    memoized.getNodeCount(), memoized.getCachedFutures(), memoized.getEvictions()));
+            reference.shutdown();
+        }
+    }
+
+}
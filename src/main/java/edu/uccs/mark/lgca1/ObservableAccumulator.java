@@ -0,0 +1,186 @@
+package edu.uccs.mark.lgca1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Accumulates coarse grained density and momentum fields while the lattice is stepped.
+ *
+ * Rather than sweeping the grid again, each Cell Evaluator adds every row of next states it has just
+ * computed, while the row is still in cache, into its own Shard.  The particle count and momentum of a
+ * state are looked up in tables built from the Collider's direction vectors.  Every interval timesteps the
+ * shards are summed into an ObservableFrame averaged over the blocks and timesteps, and handed to the sink.
+ *
+ * Each evaluator must have its own shard, since the rows of one block may belong to different evaluators.
+ * endStep() must be called once per timestep, after all of the evaluators are done with it.
+ */
+public class ObservableAccumulator {
+
+    /**
+     * Receives the frames.
+     */
+    public interface Sink {
+        void accept(ObservableFrame frame);
+    }
+
+    /**
+     * Particle count, rest particles included, and x and y momentum in Collider units, of every state.
+     * Index them with state & 0xFF.
+     */
+    static final int[] MASS = new int[256];
+    static final int[] MOMENTUM_X = new int[256];
+    static final int[] MOMENTUM_Y = new int[256];
+
+    /**
+     * The three quantities of every state packed into one long, so that a run of cells is summed with a
+     * single load and add per cell: the mass in bits 0-20, and the x and y momentum plus MOMENTUM_BIAS in
+     * bits 21-41 and 42-62.  The fields can not overflow into each other over a run of MAX_BLOCK_SIZE cells.
+     * It has an entry for every byte value, so that indexing it needs no bounds check.
+     */
+    static final long[] PACKED = new long[256];
+    static final int FIELD_BITS = 21;
+    static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+    static final int MOMENTUM_BIAS = 300;
+    static final int MAX_BLOCK_SIZE = (int)(FIELD_MASK / (2 * MOMENTUM_BIAS));
+
+    static{
+        for(int s = 0; s < PACKED.length; s++){
+            int[] m = Collider.calculateMomentum((byte)s);
+            MASS[s] = Integer.bitCount(s);
+            MOMENTUM_X[s] = m[0];
+            MOMENTUM_Y[s] = m[1];
+            PACKED[s] = MASS[s]
+                    | ((long)(MOMENTUM_X[s] + MOMENTUM_BIAS) << FIELD_BITS)
+                    | ((long)(MOMENTUM_Y[s] + MOMENTUM_BIAS) << (2 * FIELD_BITS));
+        }
+    }
+
+    /**
+     * Collider momentum units per particle velocity.
+     */
+    private static final float MOMENTUM_UNIT = Collider.xm[0];
+
+    private int width;
+    private int height;
+    private int blockSize;
+    private int blocksX;
+    private int blocksY;
+    private int interval;
+    private Sink sink;
+
+    private List<Shard> shards = new ArrayList<>();
+    private int samples = 0;
+
+    /**
+     * @param grid the grid to accumulate, used for its dimensions
+     * @param blockSize the side of the square blocks the lattice is averaged over
+     * @param interval the number of timesteps averaged into each frame
+     * @param sink receives the frames
+     */
+    public ObservableAccumulator(Grid grid, int blockSize, int interval, Sink sink){
+        if(blockSize < 1 || blockSize > MAX_BLOCK_SIZE){
+            throw new IllegalArgumentException("Block size must be between 1 and " + MAX_BLOCK_SIZE);
+        }
+        this.width = grid.getxWidth();
+        this.height = grid.getyHeight();
+        this.blockSize = blockSize;
+        this.blocksX = (width + blockSize - 1) / blockSize;
+        this.blocksY = (height + blockSize - 1) / blockSize;
+        this.interval = interval;
+        this.sink = sink;
+    }
+
+    /**
+     * Creates the shard for one more evaluator.
+     * @return
+     */
+    public synchronized Shard newShard(){
+        Shard s = new Shard();
+        shards.add(s);
+        return s;
+    }
+
+    /**
+     * Marks the end of a timestep, whose next states have all been added to the shards.
+     * Emits a frame when interval timesteps have been accumulated.
+     * @param timestep the timestep the added states belong to
+     */
+    public void endStep(long timestep){
+        samples++;
+        if(samples < interval){
+            return;
+        }
+
+        int blocks = blocksX * blocksY;
+        float[] density = new float[blocks];
+        float[] momentumX = new float[blocks];
+        float[] momentumY = new float[blocks];
+        for(int by = 0; by < blocksY; by++){
+            int cellsY = Math.min(blockSize, height - by * blockSize);
+            for(int bx = 0; bx < blocksX; bx++){
+                int cellsX = Math.min(blockSize, width - bx * blockSize);
+                int b = by * blocksX + bx;
+                long m = 0, px = 0, py = 0;
+                for(Shard s:shards){
+                    m += s.mass[b];
+                    px += s.momentumX[b];
+                    py += s.momentumY[b];
+                }
+                float samplesPerBlock = (float)cellsX * cellsY * samples;
+                density[b] = m / samplesPerBlock;
+                momentumX[b] = px / (samplesPerBlock * MOMENTUM_UNIT);
+                momentumY[b] = py / (samplesPerBlock * MOMENTUM_UNIT);
+            }
+        }
+        for(Shard s:shards){
+            s.clear();
+        }
+        int steps = samples;
+        samples = 0;
+        sink.accept(new ObservableFrame(timestep, steps, blockSize, blocksX, blocksY, density, momentumX, momentumY));
+    }
+
+    /**
+     * The sums of one evaluator.
+     */
+    public class Shard {
+
+        private long[] mass = new long[blocksX * blocksY];
+        private long[] momentumX = new long[blocksX * blocksY];
+        private long[] momentumY = new long[blocksX * blocksY];
+
+        /**
+         * Adds cells startX to endX-1 of row y, found in the plane starting at index rowStart for cell startX.
+         * @param y
+         * @param plane
+         * @param rowStart
+         * @param startX
+         * @param endX
+         */
+        public void addRow(int y, byte[] plane, int rowStart, int startX, int endX){
+            int blockRow = (y / blockSize) * blocksX;
+            int x = startX;
+            int i = rowStart;
+            while(x < endX){
+                int b = blockRow + x / blockSize;
+                int blockEnd = Math.min(endX, (x / blockSize + 1) * blockSize);
+                int cells = blockEnd - x;
+                long sum = 0;
+                for(; x < blockEnd; x++, i++){
+                    sum += PACKED[plane[i] & 0xFF];
+                }
+                mass[b] += sum & FIELD_MASK;
+                momentumX[b] += ((sum >>> FIELD_BITS) & FIELD_MASK) - (long)MOMENTUM_BIAS * cells;
+                momentumY[b] += ((sum >>> (2 * FIELD_BITS)) & FIELD_MASK) - (long)MOMENTUM_BIAS * cells;
+            }
+        }
+
+        private void clear(){
+            Arrays.fill(mass, 0L);
+            Arrays.fill(momentumX, 0L);
+            Arrays.fill(momentumY, 0L);
+        }
+    }
+
+}
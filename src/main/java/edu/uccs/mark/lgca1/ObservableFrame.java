@@ -0,0 +1,91 @@
+package edu.uccs.mark.lgca1;
+
+/**
+ * Coarse grained macroscopic fields of the lattice: particle density and momentum averaged over blocks of
+ * blockSize by blockSize cells and over a number of timesteps.
+ *
+ * Block (bx,by) is element by*blocksX + bx of each array.  Density is in particles per cell, momentum in
+ * particle velocities per cell, where a particle moves with speed 1.
+ */
+public class ObservableFrame {
+
+    private final long timestep;
+    private final int steps;
+    private final int blockSize;
+    private final int blocksX;
+    private final int blocksY;
+    private final float[] density;
+    private final float[] momentumX;
+    private final float[] momentumY;
+
+    public ObservableFrame(long timestep, int steps, int blockSize, int blocksX, int blocksY,
+                           float[] density, float[] momentumX, float[] momentumY){
+        this.timestep = timestep;
+        this.steps = steps;
+        this.blockSize = blockSize;
+        this.blocksX = blocksX;
+        this.blocksY = blocksY;
+        this.density = density;
+        this.momentumX = momentumX;
+        this.momentumY = momentumY;
+    }
+
+    /**
+     * The timestep of the last sample averaged into this frame.
+     * @return
+     */
+    public long getTimestep() {
+        return timestep;
+    }
+
+    /**
+     * Number of timesteps averaged into this frame.
+     * @return
+     */
+    public int getSteps() {
+        return steps;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlocksX() {
+        return blocksX;
+    }
+
+    public int getBlocksY() {
+        return blocksY;
+    }
+
+    public float[] getDensity() {
+        return density;
+    }
+
+    public float[] getMomentumX() {
+        return momentumX;
+    }
+
+    public float[] getMomentumY() {
+        return momentumY;
+    }
+
+    /**
+     * Mean velocity of the particles in block i, x component; 0 for an empty block.
+     * @param i
+     * @return
+     */
+    public float velocityX(int i){
+        return density[i] == 0f ? 0f : momentumX[i] / density[i];
+    }
+
+    /**
+     * Mean velocity of the particles in block i, y component; 0 for an empty block.
+     * @param i
+     * @return
+     */
+    public float velocityY(int i){
+        return density[i] == 0f ? 0f : momentumY[i] / density[i];
+    }
+
+}
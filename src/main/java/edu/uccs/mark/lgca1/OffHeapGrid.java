@@ -0,0 +1,173 @@
+package edu.uccs.mark.lgca1;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import static edu.uccs.mark.lgca1.State.NULLSTATE;
+
+/**
+ * A lattice whose planes are kept outside of the Java heap, for lattices larger than the heap or than a
+ * byte[] can index.
+ *
+ * Each plane is a list of direct ByteBuffers of whole padded rows, at most CHUNK_BYTES each, so a row never
+ * straddles two buffers.  Cells are addressed by a long index, (y+1)*stride + (x+1) like the Grid's, which is
+ * split into a chunk and an offset by the row.  The garbage collector never scans or moves the cells; the
+ * memory is given back when the OffHeapGrid is collected.
+ *
+ * The halo is always empty: only open boundaries are supported.  Step it with Cell Evaluators built on it
+ * as a LatticeStorage, and swap() once per timestep.
+ */
+public class OffHeapGrid implements LatticeStorage {
+
+    /**
+     * Largest size of one buffer of a plane.
+     */
+    public static final int CHUNK_BYTES = 1 << 30;
+
+    private int xWidth;
+    private int yHeight;
+    private int stride;
+    private int rowsPerChunk;
+
+    private ByteBuffer[] now;
+    private ByteBuffer[] next;
+
+    private long timestep = 0;
+
+    public OffHeapGrid(int width, int height){
+        this.xWidth = width;
+        this.yHeight = height;
+        this.stride = width + 2;
+        if(stride > CHUNK_BYTES){
+            throw new IllegalArgumentException("Rows of " + width + " cells are too wide");
+        }
+        this.rowsPerChunk = CHUNK_BYTES / stride;
+        now = allocatePlane();
+        next = allocatePlane();
+    }
+
+    /**
+     * Direct buffers are zeroed when they are allocated, so the plane starts empty.
+     */
+    private ByteBuffer[] allocatePlane(){
+        int rows = yHeight + 2;
+        ByteBuffer[] plane = new ByteBuffer[(rows + rowsPerChunk - 1) / rowsPerChunk];
+        for(int c = 0; c < plane.length; c++){
+            int chunkRows = Math.min(rowsPerChunk, rows - c * rowsPerChunk);
+            plane[c] = ByteBuffer.allocateDirect(chunkRows * stride);
+        }
+        return plane;
+    }
+
+    @Override
+    public int getxWidth(){
+        return xWidth;
+    }
+
+    @Override
+    public int getyHeight(){
+        return yHeight;
+    }
+
+    public int getStride(){
+        return stride;
+    }
+
+    @Override
+    public long getTimestep(){
+        return timestep;
+    }
+
+    public void setTimestep(long timestep){
+        this.timestep = timestep;
+    }
+
+    /**
+     * Returns the index of cell (x,y).  No bounds checking is done.
+     * @param x
+     * @param y
+     * @return
+     */
+    public long index(int x, int y){
+        return (long)(y + 1) * stride + (x + 1);
+    }
+
+    /**
+     * Returns the current state of the cell at the given index.
+     * @param index
+     * @return
+     */
+    public byte getNow(long index){
+        long row = index / stride;
+        return now[(int)(row / rowsPerChunk)].get((int)((row % rowsPerChunk) * stride + index % stride));
+    }
+
+    /**
+     * Sets the current state of the cell at the given index.
+     * @param index
+     * @param state
+     */
+    public void setNow(long index, byte state){
+        long row = index / stride;
+        now[(int)(row / rowsPerChunk)].put((int)((row % rowsPerChunk) * stride + index % stride), state);
+    }
+
+    private boolean inBounds(int x, int y){
+        return x >= 0 && y >= 0 && x < xWidth && y < yHeight;
+    }
+
+    /**
+     * Returns the current state of the cell, or the null state if the coordinates are outside of the grid.
+     * @param x
+     * @param y
+     * @return
+     */
+    @Override
+    public byte getStateNow(int x, int y){
+        return inBounds(x, y) ? getNow(index(x, y)) : NULLSTATE;
+    }
+
+    /**
+     * Sets the current state of the cell.  Writes outside of the grid are discarded.
+     * @param x
+     * @param y
+     * @param state
+     */
+    @Override
+    public void setStateNow(int x, int y, byte state){
+        if(inBounds(x, y)){
+            setNow(index(x, y), state);
+        }
+    }
+
+    /**
+     * A view of the chunk holding padded row y, positioned at the row's first byte.
+     * The view is the caller's own, so several threads can copy rows at once.
+     */
+    private static ByteBuffer row(ByteBuffer[] plane, int y, int rowsPerChunk, int stride, int offset){
+        int r = y + 1;
+        ByteBuffer view = plane[r / rowsPerChunk].duplicate();
+        //cast for Java 8, where position() is only declared on Buffer
+        ((Buffer)view).position((r % rowsPerChunk) * stride + offset);
+        return view;
+    }
+
+    @Override
+    public void readNowRow(int y, byte[] dst, int offset){
+        row(now, y, rowsPerChunk, stride, 0).get(dst, offset, stride);
+    }
+
+    @Override
+    public void writeNextRow(int y, byte[] src, int startX, int endX){
+        row(next, y, rowsPerChunk, stride, startX + 1).put(src, startX + 1, endX - startX);
+    }
+
+    @Override
+    public void swap(){
+        ByteBuffer[] t = now;
+        now = next;
+        next = t;
+        timestep++;
+    }
+
+}
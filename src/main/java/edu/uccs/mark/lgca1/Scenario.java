@@ -0,0 +1,643 @@
+package edu.uccs.mark.lgca1;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A simulation described by a properties file, so that an experiment, or a sweep of them, needs no
+ * recompilation.  For example:
+ *
+ *   width = 1024
+ *   height = 512
+ *   # OPEN, PERIODIC, OUTFLOW, INFLOW or BOUNCE_BACK, for all sides or per side with boundary.left etc.
+ *   boundaries = PERIODIC
+ *   boundary.left = INFLOW
+ *   boundary.right = OUTFLOW
+ *   inflow.density = 0.3
+ *   model = FHP_II
+ *   seed = 42
+ *   engine = BYTE
+ *   threads = 4
+ *   steps = 1000
+ *
+ *   # initial conditions, applied in the order of their numbers
+ *   init.1 = random density=0.2
+ *   init.2 = front x=0 state=S1
+ *   init.3 = box x0=10 y0=10 x1=20 y1=30 state=S1|S4
+ *   init.4 = disk cx=256 cy=256 r=40
+ *   init.5 = obstacles file=wing.png x=300 y=100
+ *
+ *   # output sinks, all given a frame every output.interval timesteps, and the initial one with output.initial
+ *   output.interval = 100
+ *   output.initial = true
+ *   sink.1 = print
+ *   sink.2 = raw file=run.lgra
+ *   sink.3 = png dir=frames mode=DENSITY block=8
+ *   sink.4 = trajectory file=run.lgtr keyframes=10
+ *
+ * Initial conditions:
+ *   random density=D [seed=S]   every moving direction, and rest particle the model has, of every cell with
+ *                               probability D, from a hash of the seed and the cell
+ *   front x=X | y=Y state=S [width=N]   N columns from X, or N rows from Y, of state S
+ *   box x0= y0= x1= y1= state=S         the cells x0 <= x < x1, y0 <= y < y1
+ *   disk cx= cy= r=                     a solid disk (see Boundaries.addDisk)
+ *   obstacles file=F [x=X] [y=Y] [threshold=T]   a solid cell for every pixel of the image darker than T
+ *                               (default 128), its top left pixel at lattice cell (X, Y + image height - 1)
+ * States are written as S1 to S6 and R1, R2 joined by |, or as a number.  Cells are written straight into
+ * the grid's now plane, the random fill on the scenario's threads a band of rows each, so that filling a
+ * large lattice takes the time of a pass over its memory.
+ *
+ * Sinks, fed through a SnapshotPipeline (see output.pool and output.backpressure) except for trajectory:
+ *   print                        GridProbe to standard output
+ *   raw file=F                   SnapshotFileWriter
+ *   png dir=D [mode=M] [block=N] FrameRenderer, one PNG per frame
+ *   trajectory file=F [keyframes=N]   TrajectoryWriter
+ *
+ * With verify.interval, the engine is wrapped in a VerifyingEngine checking verify.cells cells' collisions
+ * (default 64) every verify.interval timesteps, and the lattice's totals every verify.totals timesteps
+ * (default 0, never).
+ *
+ * Unknown keys are rejected, so that a misspelt key does not silently leave a default in place.
+ */
+public class Scenario {
+
+    private static final String[] KNOWN_KEYS = {
+            "width", "height", "boundaries", "boundary.left", "boundary.right", "boundary.bottom", "boundary.top",
+            "inflow.density", "model", "seed", "deterministic", "engine", "threads", "steps",
+            "output.interval", "output.initial", "output.pool", "output.backpressure",
+            "verify.interval", "verify.cells", "verify.totals"
+    };
+
+    /**
+     * Rows per band of the parallel fill, below which a band is not split any further.
+     */
+    private static final int FILL_BAND_ROWS = 64;
+
+    private final Properties properties;
+
+    private final int width;
+    private final int height;
+    private final BoundaryType[] sides = new BoundaryType[4];
+    private final double inflowDensity;
+    private final CollisionModel model;
+    private final Long seed;
+    private final boolean deterministic;
+    private final EngineType engineType;
+    private final int threads;
+    private final int steps;
+    private final int outputInterval;
+    private final boolean outputInitial;
+    private final int outputPool;
+    private final int verifyInterval;
+    private final int verifyCells;
+    private final int verifyTotals;
+    private final SnapshotPipeline.Backpressure backpressure;
+
+    private final List<Map<String, String>> initialConditions = new ArrayList<>();
+    private final List<Map<String, String>> sinks = new ArrayList<>();
+
+    /**
+     * @param properties
+     * @throws IllegalArgumentException if a key is unknown or a value is invalid
+     */
+    public Scenario(Properties properties){
+        this.properties = properties;
+        TreeMap<Integer, String> inits = new TreeMap<>();
+        TreeMap<Integer, String> outs = new TreeMap<>();
+        for(String key:properties.stringPropertyNames()){
+            if(key.startsWith("init.")){
+                inits.put(number(key, key.substring(5)), properties.getProperty(key));
+            }
+            else if(key.startsWith("sink.")){
+                outs.put(number(key, key.substring(5)), properties.getProperty(key));
+            }
+            else if(!isKnown(key)){
+                throw new IllegalArgumentException("Unknown scenario key " + key);
+            }
+        }
+        for(Map.Entry<Integer, String> e:inits.entrySet()){
+            initialConditions.add(parseItem("init." + e.getKey(), e.getValue()));
+        }
+        for(Map.Entry<Integer, String> e:outs.entrySet()){
+            sinks.add(parseItem("sink." + e.getKey(), e.getValue()));
+        }
+
+        width = intValue("width", -1);
+        height = intValue("height", -1);
+        if(width < 1 || height < 1){
+            throw new IllegalArgumentException("A scenario needs a positive width and height");
+        }
+        BoundaryType all = BoundaryType.valueOf(value("boundaries", "OPEN"));
+        String[] names = {"left", "right", "bottom", "top"};
+        for(int side = Boundaries.LEFT; side <= Boundaries.TOP; side++){
+            sides[side] = BoundaryType.valueOf(value("boundary." + names[side], all.name()));
+        }
+        inflowDensity = Double.parseDouble(value("inflow.density", "0.0"));
+        model = CollisionModel.preset(value("model", "ORIGINAL"));
+        seed = properties.containsKey("seed") ? Long.valueOf(value("seed", null)) : null;
+        deterministic = Boolean.parseBoolean(value("deterministic", "false"));
+        engineType = EngineType.valueOf(value("engine", "BYTE"));
+        threads = intValue("threads", Runtime.getRuntime().availableProcessors());
+        steps = intValue("steps", 0);
+        outputInterval = intValue("output.interval", 1);
+        outputInitial = Boolean.parseBoolean(value("output.initial", "false"));
+        outputPool = intValue("output.pool", 4);
+        verifyInterval = intValue("verify.interval", 0);
+        verifyCells = intValue("verify.cells", 64);
+        verifyTotals = intValue("verify.totals", 0);
+        backpressure = SnapshotPipeline.Backpressure.valueOf(value("output.backpressure", "BLOCK"));
+        if(threads < 1 || steps < 0 || outputInterval < 1){
+            throw new IllegalArgumentException("A scenario needs a thread, no negative steps and a positive output interval");
+        }
+    }
+
+    /**
+     * Loads a scenario from a properties file.
+     * @param file
+     * @param overrides key=value pairs taking the place of the file's values, e.g. from the command line
+     * @return
+     * @throws IOException
+     */
+    public static Scenario load(Path file, String... overrides) throws IOException {
+        Properties p = new Properties();
+        try(Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)){
+            p.load(in);
+        }
+        return new Scenario(override(p, overrides));
+    }
+
+    /**
+     * Loads a scenario from a properties file on the classpath.
+     * @param name the resource's name, relative to the root of the classpath
+     * @param overrides
+     * @return
+     * @throws IOException
+     */
+    public static Scenario loadResource(String name, String... overrides) throws IOException {
+        Properties p = new Properties();
+        try(InputStream in = Scenario.class.getClassLoader().getResourceAsStream(name)){
+            if(in == null){
+                throw new IOException("No scenario resource " + name);
+            }
+            p.load(in);
+        }
+        return new Scenario(override(p, overrides));
+    }
+
+    private static Properties override(Properties p, String[] overrides){
+        for(String o:overrides){
+            int eq = o.indexOf('=');
+            if(eq <= 0){
+                throw new IllegalArgumentException("An override is key=value, not " + o);
+            }
+            p.setProperty(o.substring(0, eq).trim(), o.substring(eq + 1).trim());
+        }
+        return p;
+    }
+
+    private static boolean isKnown(String key){
+        for(String k:KNOWN_KEYS){
+            if(k.equals(key)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int number(String key, String n){
+        try{
+            return Integer.parseInt(n);
+        }
+        catch(NumberFormatException e){
+            throw new IllegalArgumentException("Scenario key " + key + " must end in a number");
+        }
+    }
+
+    /**
+     * Splits "type key=value key=value" into a map with the type under "".
+     */
+    private static Map<String, String> parseItem(String key, String item){
+        String[] words = item.trim().split("\\s+");
+        Map<String, String> m = new HashMap<>();
+        m.put("", words[0]);
+        m.put("@", key);
+        for(int i = 1; i < words.length; i++){
+            int eq = words[i].indexOf('=');
+            if(eq <= 0){
+                throw new IllegalArgumentException(key + ": expected key=value, not " + words[i]);
+            }
+            m.put(words[i].substring(0, eq), words[i].substring(eq + 1));
+        }
+        return m;
+    }
+
+    private String value(String key, String def){
+        String v = properties.getProperty(key);
+        return (v == null) ? def : v.trim();
+    }
+
+    private int intValue(String key, int def){
+        String v = value(key, null);
+        return (v == null) ? def : Integer.parseInt(v);
+    }
+
+    private static String arg(Map<String, String> item, String name, String def){
+        String v = item.get(name);
+        if(v == null && def == null){
+            throw new IllegalArgumentException(item.get("@") + ": " + item.get("") + " needs " + name + "=");
+        }
+        return (v == null) ? def : v;
+    }
+
+    private static int intArg(Map<String, String> item, String name, String def){
+        return Integer.parseInt(arg(item, name, def));
+    }
+
+    private static double doubleArg(Map<String, String> item, String name, String def){
+        return Double.parseDouble(arg(item, name, def));
+    }
+
+    /**
+     * Parses a state written as S1 to S6 and R1, R2 joined by |, or as a number.
+     * @param s
+     * @return
+     */
+    public static byte parseState(String s){
+        int state = 0;
+        for(String part:s.split("\\|")){
+            part = part.trim();
+            if(part.matches("[Ss][1-6]")){
+                state |= State.SMASKS[part.charAt(1) - '1'];
+            }
+            else if(part.equalsIgnoreCase("R1")){
+                state |= State.R1MASK;
+            }
+            else if(part.equalsIgnoreCase("R2")){
+                state |= State.R2MASK;
+            }
+            else{
+                state |= Integer.decode(part);
+            }
+        }
+        return (byte)state;
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    public int getSteps(){
+        return steps;
+    }
+
+    public int getThreads(){
+        return threads;
+    }
+
+    public EngineType getEngineType(){
+        return engineType;
+    }
+
+    public CollisionModel getModel(){
+        return model;
+    }
+
+    /**
+     * The scenario's collider, seeded from the system clock if there is no seed.
+     * @return
+     */
+    public Collider createCollider(){
+        Collider c = (seed == null) ? new Collider(System.currentTimeMillis(), model) : new Collider(seed, model);
+        return deterministic ? c.deterministic() : c;
+    }
+
+    /**
+     * A grid with the scenario's boundaries and initial conditions, its halo filled.
+     * @return
+     * @throws IOException if an obstacle bitmap cannot be read
+     */
+    public Grid createGrid() throws IOException {
+        Grid grid = new Grid(width, height);
+        Boundaries b = new Boundaries(grid, sides[Boundaries.LEFT], sides[Boundaries.RIGHT],
+                sides[Boundaries.BOTTOM], sides[Boundaries.TOP]);
+        if(inflowDensity > 0){
+            b.setInflow(inflowDensity, (seed == null) ? 0L : seed);
+        }
+        grid.setBoundaries(b);
+        for(Map<String, String> item:initialConditions){
+            apply(grid, item);
+        }
+        grid.fillHalo();
+        return grid;
+    }
+
+    private void apply(Grid grid, Map<String, String> item) throws IOException {
+        String type = item.get("");
+        if(type.equals("random")){
+            long s = Long.parseLong(arg(item, "seed", (seed == null) ? "0" : seed.toString()));
+            fillRandom(grid, doubleArg(item, "density", null), s, model.getRestParticles(), threads);
+        }
+        else if(type.equals("front")){
+            byte state = parseState(arg(item, "state", null));
+            int n = intArg(item, "width", "1");
+            if(item.containsKey("x")){
+                int x = intArg(item, "x", null);
+                fillBox(grid, x, 0, x + n, height, state);
+            }
+            else{
+                int y = intArg(item, "y", null);
+                fillBox(grid, 0, y, width, y + n, state);
+            }
+        }
+        else if(type.equals("box")){
+            fillBox(grid, intArg(item, "x0", null), intArg(item, "y0", null), intArg(item, "x1", null),
+                    intArg(item, "y1", null), parseState(arg(item, "state", null)));
+        }
+        else if(type.equals("disk")){
+            grid.getBoundaries().addDisk(doubleArg(item, "cx", null), doubleArg(item, "cy", null),
+                    doubleArg(item, "r", null));
+        }
+        else if(type.equals("obstacles")){
+            addBitmap(grid, Paths.get(arg(item, "file", null)), intArg(item, "x", "0"), intArg(item, "y", "0"),
+                    intArg(item, "threshold", "128"));
+        }
+        else{
+            throw new IllegalArgumentException(item.get("@") + ": unknown initial condition " + type);
+        }
+    }
+
+    /**
+     * Fills every moving direction, and rest particle up to restParticles, of every cell with the given
+     * probability, from a hash of the seed and the cell, a band of rows per task on the given number of
+     * threads.  The result does not depend on the number of threads.
+     * @param grid
+     * @param density
+     * @param seed
+     * @param restParticles
+     * @param threads the number of threads; with 1 the grid is filled on the calling thread
+     */
+    public static void fillRandom(Grid grid, double density, long seed, int restParticles, int threads){
+        if(threads <= 1){
+            fillRows(grid, (int)Math.round(density * 1024), seed, restParticles, 0, grid.getyHeight());
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try{
+            pool.invoke(new RandomRows(grid, (int)Math.round(density * 1024), seed, restParticles, 0, grid.getyHeight()));
+        }
+        finally{
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Fills the rows start <= y < end for fillRandom(), splitting them in halves down to FILL_BAND_ROWS.
+     */
+    private static class RandomRows extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Grid grid;
+        private final int threshold;
+        private final long seed;
+        private final int restParticles;
+        private final int start;
+        private final int end;
+
+        RandomRows(Grid grid, int threshold, long seed, int restParticles, int start, int end){
+            this.grid = grid;
+            this.threshold = threshold;
+            this.seed = seed;
+            this.restParticles = restParticles;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if(end - start > FILL_BAND_ROWS){
+                int middle = (start + end) >>> 1;
+                invokeAll(new RandomRows(grid, threshold, seed, restParticles, start, middle),
+                        new RandomRows(grid, threshold, seed, restParticles, middle, end));
+                return;
+            }
+            fillRows(grid, threshold, seed, restParticles, start, end);
+        }
+    }
+
+    /**
+     * Fills the rows start <= y < end for fillRandom(), each direction with probability threshold / 1024.
+     */
+    private static void fillRows(Grid grid, int threshold, long seed, int restParticles, int start, int end){
+        byte[] now = grid.getNowPlane();
+        int width = grid.getxWidth();
+        for(int y = start; y < end; y++){
+            int row = grid.index(0, y);
+            long rowSeed = Collider.mix(seed ^ ((long)y << 32));
+            for(int x = 0; x < width; x++){
+                //six 10 bit draws from one hash, and the rest particles' from a second
+                long h = Collider.mix(rowSeed + x);
+                int state = 0;
+                for(int d = 0; d < 6; d++){
+                    if(((h >>> (10 * d)) & 0x3FF) < threshold){
+                        state |= 1 << d;
+                    }
+                }
+                if(restParticles > 0){
+                    long r = Collider.mix(h);
+                    for(int d = 0; d < restParticles; d++){
+                        if(((r >>> (10 * d)) & 0x3FF) < threshold){
+                            state |= 1 << (6 + d);
+                        }
+                    }
+                }
+                now[row + x] = (byte)state;
+            }
+        }
+    }
+
+    /**
+     * Sets the cells x0 <= x < x1, y0 <= y < y1, clipped to the grid, to the state.
+     * @param grid
+     * @param x0
+     * @param y0
+     * @param x1
+     * @param y1
+     * @param state
+     */
+    public static void fillBox(Grid grid, int x0, int y0, int x1, int y1, byte state){
+        byte[] now = grid.getNowPlane();
+        x0 = Math.max(0, x0);
+        x1 = Math.min(grid.getxWidth(), x1);
+        for(int y = Math.max(0, y0); y < Math.min(grid.getyHeight(), y1); y++){
+            if(x0 < x1){
+                Arrays.fill(now, grid.index(x0, y), grid.index(x1, y), state);
+            }
+        }
+    }
+
+    /**
+     * Makes a solid cell of every pixel of the image darker than the threshold, the image's top row at the
+     * top.
+     */
+    private static void addBitmap(Grid grid, Path file, int x0, int y0, int threshold) throws IOException {
+        BufferedImage image = ImageIO.read(file.toFile());
+        if(image == null){
+            throw new IOException("Cannot read " + file + " as an image");
+        }
+        Boundaries b = grid.getBoundaries();
+        int h = image.getHeight();
+        for(int r = 0; r < h; r++){
+            int y = y0 + h - 1 - r;
+            for(int c = 0; c < image.getWidth(); c++){
+                int rgb = image.getRGB(c, r);
+                int luminance = (299 * ((rgb >> 16) & 0xFF) + 587 * ((rgb >> 8) & 0xFF) + 114 * (rgb & 0xFF)) / 1000;
+                if(luminance < threshold && ((rgb >>> 24) != 0)){
+                    b.addSolid(x0 + c, y);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the scenario on a grid from createGrid(), feeding the sinks after every output interval, and the
+     * last steps if they are fewer, and before the first step too with output.initial.
+     * @param grid
+     * @return the engine's grid after the steps
+     * @throws IOException if a sink fails
+     */
+    public Grid run(Grid grid) throws IOException {
+        LatticeEngine engine = engineType.create(grid, createCollider(), threads);
+        if(verifyInterval > 0){
+            VerifyingEngine verifying = new VerifyingEngine(engine, verifyInterval, verifyCells,
+                    (seed == null) ? 0L : seed);
+            verifying.setTotalsInterval(verifyTotals);
+            engine = verifying;
+        }
+        List<SnapshotPipeline.Consumer> consumers = new ArrayList<>();
+        List<Closeable> closeables = new ArrayList<>();
+        TrajectoryWriter trajectory = null;
+        SnapshotPipeline pipeline = null;
+        try{
+            for(Map<String, String> item:sinks){
+                String type = item.get("");
+                if(type.equals("print")){
+                    consumers.add(new GridProbe());
+                }
+                else if(type.equals("raw")){
+                    SnapshotFileWriter w = new SnapshotFileWriter(Paths.get(arg(item, "file", null)), width, height);
+                    closeables.add(w);
+                    consumers.add(w);
+                }
+                else if(type.equals("png")){
+                    FrameRenderer r = new FrameRenderer(width, height,
+                            FrameRenderer.Mode.valueOf(arg(item, "mode", "STATE")), intArg(item, "block", "1"), threads);
+                    Path dir = Paths.get(arg(item, "dir", null));
+                    Files.createDirectories(dir);
+                    r.setPngDirectory(dir);
+                    closeables.add(r);
+                    consumers.add(r);
+                }
+                else if(type.equals("trajectory")){
+                    if(trajectory != null){
+                        throw new IllegalArgumentException(item.get("@") + ": only one trajectory sink");
+                    }
+                    trajectory = new TrajectoryWriter(Paths.get(arg(item, "file", null)), width, height,
+                            intArg(item, "keyframes", "10"), outputPool);
+                }
+                else{
+                    throw new IllegalArgumentException(item.get("@") + ": unknown sink " + type);
+                }
+            }
+            if(!consumers.isEmpty()){
+                pipeline = new SnapshotPipeline(width, height, outputPool, backpressure, 1,
+                        consumers.toArray(new SnapshotPipeline.Consumer[0]));
+            }
+
+            boolean output = pipeline != null || trajectory != null;
+            if(output && outputInitial){
+                output(engine.getGrid(), pipeline, trajectory);
+            }
+            int done = 0;
+            while(done < steps){
+                int n = output ? Math.min(outputInterval, steps - done) : steps;
+                engine.step(n);
+                done += n;
+                if(output){
+                    output(engine.getGrid(), pipeline, trajectory);
+                }
+            }
+            return engine.getGrid();
+        }
+        finally{
+            engine.shutdown();
+            //the pipeline first, so that its consumers have had every frame when they are closed
+            if(pipeline != null){
+                pipeline.close();
+            }
+            if(trajectory != null){
+                trajectory.close();
+            }
+            for(Closeable c:closeables){
+                c.close();
+            }
+        }
+    }
+
+    private static void output(Grid grid, SnapshotPipeline pipeline, TrajectoryWriter trajectory) throws IOException {
+        if(pipeline != null){
+            pipeline.offer(grid);
+        }
+        if(trajectory != null){
+            trajectory.record(grid);
+        }
+    }
+
+    /**
+     * Builds and runs the scenario files given as arguments, one after the other; key=value arguments take
+     * the place of the files' values, e.g. Scenario channel.properties width=4096 threads=8.
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> files = new ArrayList<>();
+        List<String> overrides = new ArrayList<>();
+        for(String a:args){
+            (a.contains("=") ? overrides : files).add(a);
+        }
+        for(String f:files){
+            Scenario s = load(Paths.get(f), overrides.toArray(new String[0]));
+            long t0 = System.nanoTime();
+            Grid grid = s.createGrid();
+            long t1 = System.nanoTime();
+            grid = s.run(grid);
+            long t2 = System.nanoTime();
+            LatticeTotals totals = LatticeTotals.of(grid);
+            System.out.println(String.format("%s: %dx%d, %d steps with %s on %d threads; set up in %.1f ms, run in %.1f ms, %d particles",
+                    f, s.getWidth(), s.getHeight(), s.getSteps(), s.getEngineType(), s.getThreads(),
+                    (t1 - t0) / 1e6, (t2 - t1) / 1e6, totals.getMass()));
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+package edu.uccs.mark.lgca1;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Steps a grid using several Cell Evaluators on different threads.
+ *
+ * The grid is split into horizontal stripes of rows, one per thread, and each stripe is owned by its own
+ * Cell Evaluator.  Every timestep all of the evaluators evaluate their stripe, then wait at a barrier.
+ * When the last one arrives the barrier swaps the grid's planes once for the whole grid, and they all move
+ * on to the next timestep.  Evaluators only ever read the now plane and only write their own rows of the
+ * next plane, so no other synchronization is needed.
+ *
+ * With LatticeMetrics set, every stripe's evaluation and wait at the barrier, and the work done once per
+ * step, are timed.  Without them the stepping loops have no timing code at all.
+ */
+public class SimulationEngine implements LatticeEngine {
+
+    private Grid grid;
+
+    private CellEvaluator[] evaluators;
+    private ExecutorService pool;
+    private CyclicBarrier barrier;
+    private ObservableAccumulator observables;
+    private LatticeMetrics metrics;
+
+    public SimulationEngine(Grid grid, Collider collider, int threads){
+        this.grid = grid;
+
+        int stripes = Math.max(1, Math.min(threads, grid.getyHeight()));
+        evaluators = new CellEvaluator[stripes];
+        for(int i = 0; i < stripes; i++){
+            evaluators[i] = new CellEvaluator(grid, collider, 0, grid.getxWidth(), stripeStart(i), stripeStart(i + 1));
+        }
+
+        if(stripes > 1){
+            pool = Executors.newFixedThreadPool(stripes);
+            barrier = new CyclicBarrier(stripes, new Runnable() {
+                @Override
+                public void run() {
+                    endStep();
+                }
+            });
+        }
+    }
+
+    /**
+     * The first row of stripe i, or the height of the grid for i = the number of stripes.
+     */
+    private int stripeStart(int i){
+        return (int)((long)grid.getyHeight() * i / evaluators.length);
+    }
+
+    /**
+     * Accumulates the macroscopic observables while stepping.  The accumulator must be new to this engine.
+     * @param observables
+     */
+    public void setObservables(ObservableAccumulator observables){
+        this.observables = observables;
+        for(CellEvaluator ce:evaluators){
+            ce.setObservables(observables.newShard());
+        }
+    }
+
+    /**
+     * Records the timings of every step into the given metrics, which must be new to this engine, or stops
+     * recording them.
+     * @param metrics the metrics, or null
+     */
+    public void setMetrics(LatticeMetrics metrics){
+        if(metrics != null){
+            long[] cells = new long[evaluators.length];
+            for(int i = 0; i < cells.length; i++){
+                cells[i] = (long)grid.getxWidth() * (stripeStart(i + 1) - stripeStart(i));
+            }
+            metrics.setPartitions(cells);
+        }
+        this.metrics = metrics;
+    }
+
+    /**
+     * Done once per timestep, after every stripe has been evaluated.
+     */
+    private void endStep(){
+        if(metrics != null){
+            long t0 = System.nanoTime();
+            swap();
+            metrics.record(LatticeMetrics.Phase.END_STEP, System.nanoTime() - t0);
+            metrics.endStep(grid);
+        }
+        else{
+            swap();
+        }
+    }
+
+    private void swap(){
+        grid.swap();
+        if(observables != null){
+            observables.endStep(grid.getTimestep());
+        }
+    }
+
+    @Override
+    public Grid getGrid(){
+        return grid;
+    }
+
+    public int getThreads(){
+        return evaluators.length;
+    }
+
+    /**
+     * Advances the grid by the given number of timesteps.
+     * @param steps
+     */
+    @Override
+    public void step(final int steps){
+        //in case cells next to the sides were changed since the last step
+        grid.fillHalo();
+        final LatticeMetrics m = metrics;
+        if(m != null){
+            m.startStepping(System.nanoTime());
+        }
+        if(pool == null){
+            for(int t = 0; t < steps; t++){
+                if(m == null){
+                    evaluators[0].evaluate();
+                }
+                else{
+                    long t0 = System.nanoTime();
+                    evaluators[0].evaluate();
+                    m.recordEvaluate(0, System.nanoTime() - t0);
+                }
+                endStep();
+            }
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for(int i = 0; i < evaluators.length; i++){
+            final CellEvaluator ce = evaluators[i];
+            final int stripe = i;
+            futures.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try{
+                        if(m == null){
+                            for(int t = 0; t < steps; t++){
+                                ce.evaluate();
+                                barrier.await();
+                            }
+                        }
+                        else{
+                            for(int t = 0; t < steps; t++){
+                                long t0 = System.nanoTime();
+                                ce.evaluate();
+                                long t1 = System.nanoTime();
+                                barrier.await();
+                                m.recordEvaluate(stripe, t1 - t0);
+                                m.record(LatticeMetrics.Phase.BARRIER_WAIT, System.nanoTime() - t1);
+                            }
+                        }
+                    }
+                    catch(InterruptedException | BrokenBarrierException e){
+                        throw new IllegalStateException("Stepping was interrupted", e);
+                    }
+                    catch(RuntimeException e){
+                        //release the other stripes waiting at the barrier
+                        barrier.reset();
+                        throw e;
+                    }
+                }
+            }));
+        }
+        for(Future<?> f:futures){
+            try{
+                f.get();
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while stepping", e);
+            }
+            catch(ExecutionException e){
+                throw new IllegalStateException("Stepping failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    @Override
+    public void shutdown(){
+        if(pool != null){
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Reports the speedup of stepping a randomly filled grid as the number of threads grows.
+     * Arguments are the grid size (default 2048), the number of timesteps (default 20) and the fill
+     * density (default 0.2).
+     * @param args
+     */
+    public static void main(String[] args){
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        double density = args.length > 2 ? Double.parseDouble(args[2]) : 0.2;
+
+        Collider c = new Collider(42);
+
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        double baseline = 0.0;
+        System.out.println("Grid " + size + "x" + size + ", " + steps + " timesteps");
+        System.out.println("threads  seconds  Mcell-updates/s  speedup");
+        for(int threads = 1; threads <= maxThreads; threads = (threads == maxThreads) ? threads + 1 : Math.min(threads * 2, maxThreads)){
+            Grid g = new Grid(size, size);
+            Random r = new Random(42);
+            for(int y = 0; y < size; y++){
+                for(int x = 0; x < size; x++){
+                    byte s = 0;
+                    for(byte mask:State.SMASKS){
+                        if(r.nextDouble() < density) s |= mask;
+                    }
+                    g.setStateNow(x, y, s);
+                }
+            }
+
+            SimulationEngine engine = new SimulationEngine(g, c, threads);
+            //warm up
+            engine.step(2);
+            long start = System.nanoTime();
+            engine.step(steps);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            engine.shutdown();
+
+            if(threads == 1) baseline = seconds;
+            double rate = (double)size * size * steps / seconds / 1e6;
+            System.out.println(String.format("%7d  %7.3f  %15.1f  %7.2f", threads, seconds, rate, baseline / seconds));
+        }
+    }
+
+}
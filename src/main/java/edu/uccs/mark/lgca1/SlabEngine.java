@@ -0,0 +1,230 @@
+package edu.uccs.mark.lgca1;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Steps one horizontal slab of a lattice that is split between several processes.
+ *
+ * The slab is a Grid of its own, holding rows rowOffset to rowOffset+height-1 of the whole lattice.  Its
+ * bottom and top halo rows are the edge rows of the slabs below and above it, which are exchanged with them
+ * over a SocketChannel every timestep.  Each row sent includes the sender's halo columns, so the halo row
+ * is exactly what the whole lattice holds there.  The outermost slabs have no neighbor on one side, and
+ * their halo row there stays empty, like the open boundary of the whole lattice.
+ *
+ * The exchange overlaps with the computation: the edge rows are sent and the neighbors' rows received on a
+ * communication thread while the interior rows, which do not read the halo rows, are evaluated.  Then the
+ * two edge rows are evaluated, and the planes are swapped.
+ *
+ * The Cell Evaluators are given the slab's row offset, so the random collision choices are those of the
+ * whole lattice, and for a given collider seed the slabs together produce exactly the same history as one
+ * process stepping the whole lattice.  Only open boundaries without obstacles are supported.
+ */
+public class SlabEngine implements LatticeEngine {
+
+    private Grid grid;
+    private int rowOffset;
+
+    private CellEvaluator interior;
+    private CellEvaluator bottomEdge;
+    private CellEvaluator topEdge;
+
+    /**
+     * Links to the slabs below and above, or null at the bottom and top of the lattice.
+     */
+    private Link below;
+    private Link above;
+
+    private ExecutorService comm;
+    private Selector selector;
+
+    /**
+     * @param grid the slab, at least 2 rows high, with open boundaries
+     * @param collider
+     * @param rowOffset row of the whole lattice that row 0 of the slab is; it must be even
+     * @param belowChannel connection to the slab below, or null if this is the bottom slab
+     * @param aboveChannel connection to the slab above, or null if this is the top slab
+     * @throws IOException
+     */
+    public SlabEngine(Grid grid, Collider collider, int rowOffset, SocketChannel belowChannel,
+                      SocketChannel aboveChannel) throws IOException {
+        if(grid.getyHeight() < 2){
+            throw new IllegalArgumentException("A slab must be at least 2 rows high");
+        }
+        if(!grid.getBoundaries().allSidesOpen() || grid.getBoundaries().hasObstacles()){
+            throw new UnsupportedOperationException("Slabs only support open boundaries without obstacles");
+        }
+        this.grid = grid;
+        this.rowOffset = rowOffset;
+
+        int width = grid.getxWidth();
+        int height = grid.getyHeight();
+        interior = new CellEvaluator(grid, collider, 0, width, 1, height - 1);
+        bottomEdge = new CellEvaluator(grid, collider, 0, width, 0, 1);
+        topEdge = new CellEvaluator(grid, collider, 0, width, height - 1, height);
+        for(CellEvaluator ce:new CellEvaluator[]{interior, bottomEdge, topEdge}){
+            ce.setRowOffset(rowOffset);
+        }
+
+        selector = Selector.open();
+        int stride = grid.getStride();
+        if(belowChannel != null){
+            //send row 0, receive into the bottom halo row
+            below = new Link(belowChannel, stride, grid.index(-1, 0), grid.index(-1, -1));
+        }
+        if(aboveChannel != null){
+            //send the top row, receive into the top halo row
+            above = new Link(aboveChannel, stride, grid.index(-1, height - 1), grid.index(-1, height));
+        }
+        comm = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    public Grid getGrid(){
+        return grid;
+    }
+
+    public int getRowOffset(){
+        return rowOffset;
+    }
+
+    @Override
+    public void step(int steps){
+        for(int t = 0; t < steps; t++){
+            Future<Void> exchange = comm.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    exchange();
+                    return null;
+                }
+            });
+            interior.evaluate();
+            try{
+                exchange.get();
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while exchanging halos", e);
+            }
+            catch(ExecutionException e){
+                throw new IllegalStateException("Halo exchange failed", e.getCause());
+            }
+            bottomEdge.evaluate();
+            topEdge.evaluate();
+            grid.swap();
+        }
+    }
+
+    /**
+     * Sends the edge rows of the now plane to the neighbors and receives theirs into the halo rows.
+     * The channels are non blocking and driven by one selector, so neither side can stall the other by
+     * writing first.
+     */
+    private void exchange() throws IOException {
+        byte[] now = grid.getNowPlane();
+        int pending = 0;
+        for(Link link:new Link[]{below, above}){
+            if(link != null){
+                link.start(now);
+                pending++;
+            }
+        }
+        while(pending > 0){
+            selector.select();
+            for(SelectionKey key:selector.selectedKeys()){
+                Link link = (Link)key.attachment();
+                if(key.isValid() && key.isWritable()){
+                    link.channel.write(link.send);
+                }
+                if(key.isValid() && key.isReadable()){
+                    if(link.channel.read(link.receive) < 0){
+                        throw new EOFException("Neighboring slab closed its connection");
+                    }
+                }
+                int ops = (link.send.hasRemaining() ? SelectionKey.OP_WRITE : 0)
+                        | (link.receive.hasRemaining() ? SelectionKey.OP_READ : 0);
+                key.interestOps(ops);
+                if(ops == 0 && !link.done){
+                    link.finish(now);
+                    pending--;
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    /**
+     * Closes the connections and stops the communication thread.
+     */
+    @Override
+    public void shutdown(){
+        comm.shutdown();
+        for(Link link:new Link[]{below, above}){
+            if(link != null){
+                try{
+                    link.channel.close();
+                }
+                catch(IOException e){
+                    //nothing left to do with it
+                }
+            }
+        }
+        try{
+            selector.close();
+        }
+        catch(IOException e){
+            //nothing left to do with it
+        }
+    }
+
+    /**
+     * The connection to one neighboring slab, with its direct buffers and the rows it sends and receives.
+     */
+    private class Link {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer send;
+        final ByteBuffer receive;
+        final int sendRow;
+        final int receiveRow;
+        boolean done;
+
+        Link(SocketChannel channel, int stride, int sendRow, int receiveRow) throws IOException {
+            this.channel = channel;
+            this.sendRow = sendRow;
+            this.receiveRow = receiveRow;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            send = ByteBuffer.allocateDirect(stride);
+            receive = ByteBuffer.allocateDirect(stride);
+            key = channel.register(selector, 0, this);
+        }
+
+        void start(byte[] now){
+            //casts for Java 8, where these are only declared on Buffer
+            ((Buffer)send).clear();
+            send.put(now, sendRow, send.capacity());
+            ((Buffer)send).flip();
+            ((Buffer)receive).clear();
+            done = false;
+            key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+        }
+
+        void finish(byte[] now){
+            ((Buffer)receive).flip();
+            receive.get(now, receiveRow, receive.capacity());
+            done = true;
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package edu.uccs.mark.lgca1;
+
+/**
+ * A copy of a lattice's now plane at one timestep, laid out like a Grid's plane, halo included.
+ *
+ * Snapshots belong to the pool of a SnapshotPipeline and are reused for later timesteps, so a consumer must
+ * not keep one, or its plane, after accept() returns.
+ */
+public class Snapshot {
+
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final byte[] plane;
+    private long timestep;
+
+    Snapshot(int width, int height){
+        this.width = width;
+        this.height = height;
+        this.stride = width + 2;
+        if((long)stride * (height + 2) > Integer.MAX_VALUE - 8){
+            throw new IllegalArgumentException("A " + width + "x" + height + " lattice is too large to snapshot");
+        }
+        this.plane = new byte[stride * (height + 2)];
+    }
+
+    /**
+     * Copies the storage's now plane and timestep into this snapshot.
+     */
+    void copyFrom(LatticeStorage storage){
+        if(storage instanceof Grid){
+            byte[] now = ((Grid)storage).getNowPlane();
+            System.arraycopy(now, 0, plane, 0, plane.length);
+        }
+        else{
+            for(int y = -1; y <= height; y++){
+                storage.readNowRow(y, plane, (y + 1) * stride);
+            }
+        }
+        timestep = storage.getTimestep();
+    }
+
+    public int getxWidth(){
+        return width;
+    }
+
+    public int getyHeight(){
+        return height;
+    }
+
+    public int getStride(){
+        return stride;
+    }
+
+    public long getTimestep(){
+        return timestep;
+    }
+
+    /**
+     * The copied plane.  Cell (x,y) is at index(x, y).
+     * @return
+     */
+    public byte[] getPlane(){
+        return plane;
+    }
+
+    public int index(int x, int y){
+        return (y + 1) * stride + (x + 1);
+    }
+
+    public byte getStateNow(int x, int y){
+        return plane[index(x, y)];
+    }
+
+}
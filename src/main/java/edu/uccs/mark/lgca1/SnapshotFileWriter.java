@@ -0,0 +1,86 @@
+package edu.uccs.mark.lgca1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A SnapshotPipeline consumer writing every snapshot's cells to a file as a raw array, for tools that just
+ * want the states and not the compression of a TrajectoryWriter.
+ *
+ * File layout (big endian):
+ *   header   int magic "LGRA", int version, int width, int height
+ *   frames   long timestep, then width*height bytes of states, row 0 first, without the halo
+ * Every frame is the same size, so frame f starts at HEADER_SIZE + f * (8 + width * height).
+ *
+ * The frame is gathered into one buffer, allocated with the writer, and written with a single channel write.
+ */
+public class SnapshotFileWriter implements SnapshotPipeline.Consumer, Closeable {
+
+    public static final int MAGIC = 0x4C475241; // "LGRA"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+
+    private final int width;
+    private final int height;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private long frames = 0;
+
+    /**
+     * Creates, or truncates, the file and writes its header.
+     * @param path
+     * @param width
+     * @param height
+     * @throws IOException
+     */
+    public SnapshotFileWriter(Path path, int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.buffer = ByteBuffer.allocateDirect(8 + width * height);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+        write();
+    }
+
+    @Override
+    public void accept(Snapshot snapshot) throws IOException {
+        if(snapshot.getxWidth() != width || snapshot.getyHeight() != height){
+            throw new IllegalArgumentException("The file takes " + width + "x" + height + " lattices");
+        }
+        byte[] plane = snapshot.getPlane();
+        buffer.putLong(snapshot.getTimestep());
+        for(int y = 0; y < height; y++){
+            buffer.put(plane, snapshot.index(0, y), width);
+        }
+        write();
+        frames++;
+    }
+
+    private void write() throws IOException {
+        ((Buffer)buffer).flip();
+        while(buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+        ((Buffer)buffer).clear();
+    }
+
+    /**
+     * The number of frames written.
+     * @return
+     */
+    public long getFrames(){
+        return frames;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,223 @@
+package edu.uccs.mark.lgca1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Hands copies of the lattice to output consumers on a thread of their own, so that printing or writing
+ * frames never holds up the stepping loop for longer than a copy of the now plane.
+ *
+ * offer() copies the now plane into a free snapshot from a fixed pool and queues it; the consumer thread
+ * passes each queued snapshot to every consumer in turn and puts it back in the pool.  The pool and the
+ * queues are allocated up front, so nothing is allocated per frame.  When every snapshot of the pool is in
+ * use, the backpressure policy decides what offer() does.
+ *
+ * A consumer that fails stops the pipeline: the exception is thrown by the next offer() or by close().
+ */
+public class SnapshotPipeline implements Closeable {
+
+    /**
+     * Receives the snapshots, on the pipeline's thread, in the order they were offered.
+     */
+    public interface Consumer {
+        void accept(Snapshot snapshot) throws IOException;
+    }
+
+    /**
+     * What offer() does when the consumers are behind.
+     */
+    public enum Backpressure {
+        /**
+         * Drop the frame, when no snapshot is free.
+         */
+        DROP,
+        /**
+         * Wait for a snapshot to be free, so that every frame is consumed.
+         */
+        BLOCK,
+        /**
+         * Only take every Nth frame offered, waiting for a snapshot to be free for those, so that the frames
+         * consumed are evenly spaced.
+         */
+        SAMPLE
+    }
+
+    private final Backpressure backpressure;
+    private final int sampleEvery;
+    private final Consumer[] consumers;
+
+    private final ArrayBlockingQueue<Snapshot> free;
+    private final ArrayBlockingQueue<Snapshot> queued;
+
+    /**
+     * Queued after the last snapshot to stop the consumer thread.
+     */
+    private final Snapshot end;
+    private final Thread thread;
+    private volatile Exception failure;
+
+    private long offered = 0;
+    private long dropped = 0;
+    private volatile long consumed = 0;
+    private boolean closed = false;
+
+    /**
+     * Starts the consumer thread.
+     * @param width the width of the lattices that will be offered
+     * @param height the height of the lattices that will be offered
+     * @param poolSize the number of snapshots, i.e. how many frames the consumers can fall behind by
+     * @param backpressure
+     * @param sampleEvery with SAMPLE, the number of frames offered per frame taken; ignored otherwise
+     * @param consumers
+     */
+    public SnapshotPipeline(int width, int height, int poolSize, Backpressure backpressure, int sampleEvery,
+                            Consumer... consumers){
+        if(poolSize < 1 || (backpressure == Backpressure.SAMPLE && sampleEvery < 1)){
+            throw new IllegalArgumentException("The pool needs a snapshot and the sampling a positive interval");
+        }
+        this.backpressure = backpressure;
+        this.sampleEvery = (backpressure == Backpressure.SAMPLE) ? sampleEvery : 1;
+        this.consumers = consumers.clone();
+        free = new ArrayBlockingQueue<>(poolSize);
+        queued = new ArrayBlockingQueue<>(poolSize + 1);
+        for(int i = 0; i < poolSize; i++){
+            free.add(new Snapshot(width, height));
+        }
+        end = new Snapshot(0, 0);
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "snapshot-pipeline");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void consume(){
+        try{
+            while(true){
+                Snapshot s = queued.take();
+                if(s == end){
+                    return;
+                }
+                try{
+                    if(failure == null){
+                        for(Consumer c:consumers){
+                            c.accept(s);
+                        }
+                        consumed++;
+                    }
+                }
+                catch(IOException | RuntimeException e){
+                    failure = e;
+                }
+                finally{
+                    free.add(s);
+                }
+            }
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Offers the storage's current now plane to the consumers.  Must be called from one thread at a time,
+     * between steps.
+     * @param storage a lattice of the pipeline's size
+     * @return true if the frame was queued, false if it was dropped or skipped
+     * @throws IOException if a consumer has failed
+     */
+    public boolean offer(LatticeStorage storage) throws IOException {
+        rethrowFailure();
+        if(closed){
+            throw new IllegalStateException("The pipeline is closed");
+        }
+        if(offered++ % sampleEvery != 0){
+            return false;
+        }
+        Snapshot s;
+        if(backpressure == Backpressure.DROP){
+            s = free.poll();
+            if(s == null){
+                dropped++;
+                return false;
+            }
+        }
+        else{
+            try{
+                s = free.take();
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the consumers", e);
+            }
+        }
+        if(s.getxWidth() != storage.getxWidth() || s.getyHeight() != storage.getyHeight()){
+            free.add(s);
+            throw new IllegalArgumentException("The pipeline takes " + s.getxWidth() + "x" + s.getyHeight()
+                    + " lattices");
+        }
+        s.copyFrom(storage);
+        queued.add(s);
+        return true;
+    }
+
+    /**
+     * The number of frames offered so far.
+     * @return
+     */
+    public long getOffered(){
+        return offered;
+    }
+
+    /**
+     * The number of frames dropped because no snapshot was free.  Frames skipped by SAMPLE are not counted.
+     * @return
+     */
+    public long getDropped(){
+        return dropped;
+    }
+
+    /**
+     * The number of frames every consumer has been given.
+     * @return
+     */
+    public long getConsumed(){
+        return consumed;
+    }
+
+    private void rethrowFailure() throws IOException {
+        Exception e = failure;
+        if(e instanceof IOException){
+            throw (IOException)e;
+        }
+        if(e != null){
+            throw new IOException("A snapshot consumer failed", e);
+        }
+    }
+
+    /**
+     * Waits for the queued frames to be consumed and stops the consumer thread.
+     * @throws IOException if a consumer has failed
+     */
+    @Override
+    public void close() throws IOException {
+        if(!closed){
+            closed = true;
+            queued.add(end);
+            try{
+                thread.join();
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the consumers", e);
+            }
+        }
+        rethrowFailure();
+    }
+
+}
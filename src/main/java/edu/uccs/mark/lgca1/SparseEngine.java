@@ -0,0 +1,269 @@
+package edu.uccs.mark.lgca1;
+
+import java.util.Arrays;
+
+/**
+ * Steps a grid tile by tile, skipping the tiles that have nothing in them.
+ *
+ * The grid is cut into square tiles and the engine keeps the number of occupied cells of every tile, for the
+ * now plane and for the next plane.  A cell's inbound state only comes from its own neighbors, so a tile can
+ * only get particles at the next timestep if it or one of the 8 tiles around it has particles now.  Every
+ * other tile is skipped: its cells stay in the null state.  The counts of the next plane are taken while
+ * the tiles are evaluated, so a particle crossing into an empty tile wakes it up on the following timestep.
+ *
+ * Since the planes are swapped rather than cleared, a skipped tile of the next plane may still hold the
+ * particles it had two timesteps ago.  Those are cleared when the tile is skipped, which is the only time
+ * a skipped tile costs more than a look at its neighbors' counts.
+ *
+ * Tiles along a side that is not open are always evaluated, since the halo can bring particles in there.
+ * The cells are collided with the same reproducible choice as the Cell Evaluators, so for a given collider
+ * seed this engine produces exactly the same history as the byte engine.  The work per timestep grows with
+ * the area the particles cover rather than with the area of the lattice.
+ */
+public class SparseEngine implements LatticeEngine {
+
+    public static final int DEFAULT_TILE_SIZE = 32;
+
+    private Grid grid;
+    private Collider collider;
+
+    private int tileSize;
+    private int tilesX;
+    private int tilesY;
+
+    /**
+     * Number of occupied cells of each tile in the now and next planes.
+     * A count of -1 means the tile's contents are not known, and it has to be cleared before being skipped.
+     */
+    private int[] nowCounts;
+    private int[] nextCounts;
+
+    /**
+     * Scratch flags: whether each tile is evaluated this timestep.
+     */
+    private boolean[] active;
+
+    /**
+     * Whether each tile touches a side that is not open.
+     */
+    private boolean[] alwaysActive;
+
+    private long tilesEvaluated;
+    private long tilesSkipped;
+
+    public SparseEngine(Grid grid, Collider collider){
+        this(grid, collider, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * @param grid
+     * @param collider
+     * @param tileSize width and height of a tile, in cells
+     */
+    public SparseEngine(Grid grid, Collider collider, int tileSize){
+        if(tileSize < 1){
+            throw new IllegalArgumentException("Tile size must be positive, was " + tileSize);
+        }
+        this.grid = grid;
+        this.collider = collider;
+        this.tileSize = tileSize;
+        this.tilesX = (grid.getxWidth() + tileSize - 1) / tileSize;
+        this.tilesY = (grid.getyHeight() + tileSize - 1) / tileSize;
+
+        nowCounts = new int[tilesX * tilesY];
+        nextCounts = new int[tilesX * tilesY];
+        active = new boolean[tilesX * tilesY];
+        alwaysActive = new boolean[tilesX * tilesY];
+        Boundaries boundaries = grid.getBoundaries();
+        for(int ty = 0; ty < tilesY; ty++){
+            for(int tx = 0; tx < tilesX; tx++){
+                alwaysActive[ty * tilesX + tx] =
+                        (tx == 0 && boundaries.getSide(Boundaries.LEFT) != BoundaryType.OPEN)
+                        || (tx == tilesX - 1 && boundaries.getSide(Boundaries.RIGHT) != BoundaryType.OPEN)
+                        || (ty == 0 && boundaries.getSide(Boundaries.BOTTOM) != BoundaryType.OPEN)
+                        || (ty == tilesY - 1 && boundaries.getSide(Boundaries.TOP) != BoundaryType.OPEN);
+            }
+        }
+    }
+
+    @Override
+    public Grid getGrid(){
+        return grid;
+    }
+
+    @Override
+    public void shutdown(){
+    }
+
+    public int getTileSize(){
+        return tileSize;
+    }
+
+    /**
+     * Number of tiles evaluated since the engine was created.
+     * @return
+     */
+    public long getTilesEvaluated(){
+        return tilesEvaluated;
+    }
+
+    /**
+     * Number of tiles skipped since the engine was created.
+     * @return
+     */
+    public long getTilesSkipped(){
+        return tilesSkipped;
+    }
+
+    @Override
+    public void step(int steps){
+        //in case cells were changed since the last step
+        grid.fillHalo();
+        countNow();
+        for(int t = 0; t < steps; t++){
+            markActive();
+            long timestep = grid.getTimestep();
+            for(int ty = 0; ty < tilesY; ty++){
+                for(int tx = 0; tx < tilesX; tx++){
+                    int tile = ty * tilesX + tx;
+                    if(active[tile]){
+                        nextCounts[tile] = evaluateTile(tx, ty, timestep);
+                        tilesEvaluated++;
+                    }
+                    else{
+                        if(nextCounts[tile] != 0){
+                            clearTile(tx, ty);
+                            nextCounts[tile] = 0;
+                        }
+                        tilesSkipped++;
+                    }
+                }
+            }
+            grid.swap();
+            int[] tmp = nowCounts;
+            nowCounts = nextCounts;
+            nextCounts = tmp;
+        }
+    }
+
+    /**
+     * Counts the occupied cells of every tile of the now plane.  The next plane is unknown.
+     */
+    private void countNow(){
+        byte[] now = grid.getNowPlane();
+        Arrays.fill(nowCounts, 0);
+        Arrays.fill(nextCounts, -1);
+        for(int y = 0; y < grid.getyHeight(); y++){
+            int row = grid.index(0, y);
+            int tileRow = (y / tileSize) * tilesX;
+            for(int x = 0; x < grid.getxWidth(); x++){
+                if(now[row + x] != State.NULLSTATE){
+                    nowCounts[tileRow + x / tileSize]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the tiles that are occupied, are next to an occupied tile or touch a side that is not open.
+     */
+    private void markActive(){
+        for(int ty = 0; ty < tilesY; ty++){
+            for(int tx = 0; tx < tilesX; tx++){
+                boolean a = alwaysActive[ty * tilesX + tx];
+                for(int ny = Math.max(0, ty - 1); !a && ny <= Math.min(tilesY - 1, ty + 1); ny++){
+                    for(int nx = Math.max(0, tx - 1); nx <= Math.min(tilesX - 1, tx + 1); nx++){
+                        if(nowCounts[ny * tilesX + nx] != 0){
+                            a = true;
+                            break;
+                        }
+                    }
+                }
+                active[ty * tilesX + tx] = a;
+            }
+        }
+    }
+
+    /**
+     * Streams and collides the cells of a tile into the next plane.
+     * @return the number of occupied cells written
+     */
+    private int evaluateTile(int tx, int ty, long timestep){
+        byte[] next = grid.getNextPlane();
+        Boundaries boundaries = grid.getBoundaries();
+        int startX = tx * tileSize;
+        int endX = Math.min(startX + tileSize, grid.getxWidth());
+        int startY = ty * tileSize;
+        int endY = Math.min(startY + tileSize, grid.getyHeight());
+        int count = 0;
+        for(int y = startY; y < endY; y++){
+            int[] offsets = grid.neighborOffsets(y);
+            int row = grid.index(0, y);
+            for(int x = startX; x < endX; x++){
+                byte in = grid.inboundState(row + x, offsets);
+                if(in == State.NULLSTATE){
+                    next[row + x] = State.NULLSTATE;
+                    continue;
+                }
+                next[row + x] = collider.collide(in, timestep, x, y);
+                count++;
+            }
+            boundaries.applyObstacles(grid, startX, endX, y, y + 1);
+        }
+        return count;
+    }
+
+    /**
+     * Empties a tile of the next plane.
+     */
+    private void clearTile(int tx, int ty){
+        byte[] next = grid.getNextPlane();
+        int startX = tx * tileSize;
+        int endX = Math.min(startX + tileSize, grid.getxWidth());
+        int endY = Math.min((ty + 1) * tileSize, grid.getyHeight());
+        for(int y = ty * tileSize; y < endY; y++){
+            Arrays.fill(next, grid.index(startX, y), grid.index(endX, y), State.NULLSTATE);
+        }
+    }
+
+    /**
+     * Compares the sparse engine with the byte engine on a mostly empty lattice with a few particle fronts,
+     * like Driver.runSimulation1 but larger.  Arguments are the grid size (default 2048), the number of
+     * timesteps (default 200) and the number of fronts (default 4).
+     * @param args
+     */
+    public static void main(String[] args){
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int fronts = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        Collider c = new Collider(42);
+        Grid dense = new Grid(size, size);
+        Grid sparse = new Grid(size, size);
+        for(int f = 0; f < fronts; f++){
+            int x = (int)((long)size * (2 * f + 1) / (2 * fronts));
+            byte s = (f % 2 == 0) ? State.S1MASK : State.S4MASK;
+            for(int y = 0; y < size; y++){
+                dense.setStateNow(x, y, s);
+                sparse.setStateNow(x, y, s);
+            }
+        }
+
+        LatticeEngine denseEngine = EngineType.BYTE.create(dense, c, 1);
+        SparseEngine sparseEngine = new SparseEngine(sparse, c);
+        long t0 = System.nanoTime();
+        denseEngine.step(steps);
+        long t1 = System.nanoTime();
+        sparseEngine.step(steps);
+        long t2 = System.nanoTime();
+        denseEngine.shutdown();
+
+        boolean same = Arrays.equals(dense.getNowPlane(), sparse.getNowPlane());
+        System.out.println(same ? "Sparse and byte engines match" : "Sparse and byte engines DIFFER");
+        System.out.println(String.format("byte %.2f ms/step, sparse %.2f ms/step, %.1f%% of tiles skipped",
+                (t1 - t0) / 1e6 / steps, (t2 - t1) / 1e6 / steps,
+                100.0 * sparseEngine.getTilesSkipped()
+                        / (sparseEngine.getTilesSkipped() + sparseEngine.getTilesEvaluated())));
+    }
+
+}
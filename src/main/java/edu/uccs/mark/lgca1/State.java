@@ -25,5 +25,13 @@ public class State {
 
     public static final byte[] SMASKS = new byte[]{S1MASK,S2MASK,S3MASK,S4MASK,S5MASK,S6MASK};
 
+    /**
+     * Rest particles, for models that have them (see CollisionModel).  They do not move, so they stream
+     * into the cell they are in.
+     */
+    public static final byte R1MASK = (byte)64;   //01 00 0000
+    public static final byte R2MASK = (byte)128;  //10 00 0000
+    public static final byte REST_MASK = (byte)(R1MASK | R2MASK);
+
 
 }
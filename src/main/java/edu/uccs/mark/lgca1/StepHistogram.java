@@ -0,0 +1,114 @@
+package edu.uccs.mark.lgca1;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of durations in nanoseconds, laid out like an HdrHistogram.
+ *
+ * Values below 64 have a bucket each.  Above that every power of two is split into 32 buckets, so a value is
+ * known to within 1/32 (3%) of itself all the way up to Long.MAX_VALUE, in under 2000 buckets.
+ * Recording is one atomic increment of the value's bucket and a few of the totals, so any number of threads
+ * can record at once without locking.  The statistics are read from the live buckets, so they may be off by
+ * the values being recorded while they are read.
+ */
+public class StepHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value.  Negative values are recorded as 0.
+     * @param value
+     */
+    public void record(long value){
+        long v = Math.max(0, value);
+        counts.incrementAndGet(bucket(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        long m = max.get();
+        while(v > m && !max.compareAndSet(m, v)){
+            m = max.get();
+        }
+    }
+
+    private static int bucket(long v){
+        if(v < LINEAR){
+            return (int)v;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int)(v >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * The middle of the range of values in bucket b.
+     */
+    private static long valueOf(int b){
+        if(b < LINEAR){
+            return b;
+        }
+        int exponent = (b - LINEAR) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        int sub = (b - LINEAR) % SUB_BUCKETS;
+        long low = (long)(SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+        return low + ((1L << (exponent - SUB_BUCKET_BITS)) >>> 1);
+    }
+
+    public long getCount(){
+        return count.get();
+    }
+
+    public long getMax(){
+        return max.get();
+    }
+
+    public double getMean(){
+        long n = count.get();
+        return (n == 0) ? 0.0 : (double)sum.get() / n;
+    }
+
+    /**
+     * The value below which the given percentage of the recorded values fall, to within 3%, or 0 if nothing
+     * was recorded.
+     * @param percentile 0 to 100
+     * @return
+     */
+    public long getValueAtPercentile(double percentile){
+        long n = 0;
+        for(int b = 0; b < BUCKETS; b++){
+            n += counts.get(b);
+        }
+        if(n == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(n * Math.min(100.0, percentile) / 100.0));
+        long seen = 0;
+        for(int b = 0; b < BUCKETS; b++){
+            seen += counts.get(b);
+            if(seen >= rank){
+                return Math.min(valueOf(b), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets every recorded value.  Values recorded at the same time may be partly kept.
+     */
+    public void reset(){
+        for(int b = 0; b < BUCKETS; b++){
+            counts.set(b, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+}
@@ -0,0 +1,492 @@
+package edu.uccs.mark.lgca1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Steps a grid several timesteps at a time per tile, so that a lattice much larger than the caches is read
+ * from and written to memory once every few timesteps rather than every timestep.
+ *
+ * The lattice is split into tiles of tileRows rows by tileColumns columns.  A cell's next state only depends
+ * on its neighbors' current states, so after k timesteps it only depends on the cells within k rows and
+ * columns of it.  To advance a tile by depth timesteps, its cells and the depth rows and columns around it
+ * are copied into a scratch Grid small enough to stay in the cache, which is stepped depth times with one
+ * fewer row or column evaluated at each widened side every timestep (a trapezoid), and the tile's cells are
+ * copied out into the grid's next plane.  The widened cells are computed by both tiles next to them, which
+ * costs about depth/tileRows + depth/tileColumns of the work, so tiles are sized to be about square, but the
+ * tiles need no synchronization at all and are stepped in parallel.  When every tile has been advanced the
+ * grid's planes are swapped once.  Tiles the whole width of the grid are not widened in x.
+ *
+ * The collisions, and the random OUTFLOW and INFLOW halo cells, only depend on the collider's seed, the
+ * timestep and the cell of the whole lattice, so the result is exactly that of stepping the grid one
+ * timestep at a time, whatever the tiling and the number of threads.  The scratch grids get the grid's
+ * boundaries on the sides the tile touches, and open ones elsewhere.  With periodic boundaries the widened
+ * rows and columns wrap around the lattice instead.  The one exception is periodic left and right sides with
+ * random or bounce back bottom and top ones, whose halo corners are not the wrapped columns': the tiles are
+ * then the whole width of the grid.  Obstacles are copied into the scratch grids, and a change of the grid's
+ * boundaries or obstacles is picked up by the next step().
+ */
+public class TemporalBlockingEngine implements LatticeEngine {
+
+    /**
+     * The default depth, in timesteps.
+     */
+    public static final int DEFAULT_DEPTH = 8;
+
+    /**
+     * The default size of the two planes of a scratch grid, which should fit the L2 cache.
+     */
+    public static final int DEFAULT_TILE_BYTES = 2 << 20;
+
+    private Grid grid;
+    private Collider collider;
+    private int depth;
+    private int tileRows;
+    private int tileColumns;
+
+    private Tile[] tiles;
+
+    /**
+     * The boundaries, and their solid cells, that the tiles were built for.
+     */
+    private Boundaries tilesBuiltFor;
+    private int[] tilesBuiltForSolids;
+
+    private Worker[] workers;
+    private ExecutorService pool;
+
+    /**
+     * A depth of DEFAULT_DEPTH and tiles sized for DEFAULT_TILE_BYTES.
+     * @param grid
+     * @param collider
+     * @param threads
+     */
+    public TemporalBlockingEngine(Grid grid, Collider collider, int threads){
+        this(grid, collider, threads, DEFAULT_DEPTH,
+                tileRowsFor(grid.getxWidth(), tileColumnsFor(grid.getxWidth(), DEFAULT_DEPTH, DEFAULT_TILE_BYTES),
+                        DEFAULT_DEPTH, DEFAULT_TILE_BYTES),
+                tileColumnsFor(grid.getxWidth(), DEFAULT_DEPTH, DEFAULT_TILE_BYTES));
+    }
+
+    /**
+     * Tiles the whole width of the grid.
+     * @param grid
+     * @param collider
+     * @param threads
+     * @param depth the number of timesteps each tile is advanced by at a time; it must be even
+     * @param tileRows the number of rows of each tile; it must be even
+     */
+    public TemporalBlockingEngine(Grid grid, Collider collider, int threads, int depth, int tileRows){
+        this(grid, collider, threads, depth, tileRows, grid.getxWidth());
+    }
+
+    /**
+     * @param grid
+     * @param collider
+     * @param threads
+     * @param depth the number of timesteps each tile is advanced by at a time; it must be even
+     * @param tileRows the number of rows of each tile; it must be even
+     * @param tileColumns the number of columns of each tile
+     */
+    public TemporalBlockingEngine(Grid grid, Collider collider, int threads, int depth, int tileRows, int tileColumns){
+        if(depth < 2 || (depth & 1) != 0 || tileRows < 2 || (tileRows & 1) != 0){
+            throw new IllegalArgumentException("The depth and the tile rows must be even and at least 2");
+        }
+        if(tileColumns < 1){
+            throw new IllegalArgumentException("The tile columns must be at least 1");
+        }
+        this.grid = grid;
+        this.collider = collider;
+        this.depth = depth;
+        this.tileRows = tileRows;
+        this.tileColumns = Math.min(tileColumns, grid.getxWidth());
+
+        int count = ((grid.getyHeight() + tileRows - 1) / tileRows)
+                * ((grid.getxWidth() + this.tileColumns - 1) / this.tileColumns);
+        workers = new Worker[Math.max(1, Math.min(threads, count))];
+        for(int i = 0; i < workers.length; i++){
+            workers[i] = new Worker();
+        }
+        if(workers.length > 1){
+            pool = Executors.newFixedThreadPool(workers.length);
+        }
+    }
+
+    /**
+     * The number of columns that makes a tile's scratch grid, widened by depth cells on every side, about
+     * square and about the given number of bytes: the whole width of the grid if that is narrow enough, or
+     * else the width split into tiles as equal as can be.  Tiles are at least 2 * depth columns, so with too
+     * few bytes for that the scratch grids are larger.
+     * @param width
+     * @param depth
+     * @param tileBytes
+     * @return
+     */
+    public static int tileColumnsFor(int width, int depth, int tileBytes){
+        int side = Math.max(2 * depth, (int)Math.sqrt(tileBytes / 2) - 2 * depth - 2);
+        if(width <= side){
+            return width;
+        }
+        int count = (width + side - 1) / side;
+        return (width + count - 1) / count;
+    }
+
+    /**
+     * The even number of rows that makes a tile of the given columns' scratch grid, widened by depth rows
+     * on both sides, and by depth columns on both sides unless it is the whole width of the grid, take about
+     * the given number of bytes.  Tiles are at least 2 * depth rows, so with too few bytes for that the
+     * scratch grids are larger.
+     * @param width
+     * @param tileColumns
+     * @param depth
+     * @param tileBytes
+     * @return
+     */
+    public static int tileRowsFor(int width, int tileColumns, int depth, int tileBytes){
+        int scratchWidth = (tileColumns >= width) ? width : tileColumns + 2 * depth;
+        int rows = tileBytes / (2 * (scratchWidth + 2)) - 2 * depth - 2;
+        return Math.max(2 * depth, rows & ~1);
+    }
+
+    public int getDepth(){
+        return depth;
+    }
+
+    public int getTileRows(){
+        return tileRows;
+    }
+
+    /**
+     * The number of columns of each tile, which is the whole width of the grid when its boundaries do not let
+     * it be split in x (see the class comment).
+     * @return
+     */
+    public int getTileColumns(){
+        buildTiles();
+        return (tiles[0].xEnd - tiles[0].xStart == grid.getxWidth()) ? grid.getxWidth() : tileColumns;
+    }
+
+    @Override
+    public Grid getGrid(){
+        return grid;
+    }
+
+    /**
+     * Advances the grid by the given number of timesteps, depth of them at a time, and the rest at the end.
+     * @param steps
+     */
+    @Override
+    public void step(int steps){
+        //in case cells next to the sides were changed since the last step
+        grid.fillHalo();
+        buildTiles();
+        for(int done = 0; done < steps; ){
+            final int n = Math.min(depth, steps - done);
+            final AtomicInteger nextTile = new AtomicInteger();
+            if(pool == null){
+                workers[0].advance(nextTile, n);
+            }
+            else{
+                List<Future<Void>> futures = new ArrayList<>();
+                for(final Worker w:workers){
+                    futures.add(pool.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            w.advance(nextTile, n);
+                            return null;
+                        }
+                    }));
+                }
+                for(Future<Void> f:futures){
+                    try{
+                        f.get();
+                    }
+                    catch(InterruptedException e){
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while stepping", e);
+                    }
+                    catch(ExecutionException e){
+                        throw new IllegalStateException("Stepping failed", e.getCause());
+                    }
+                }
+            }
+            //the tiles wrote the timestep n states to the next plane; swap() moves the timestep on by one
+            grid.setTimestep(grid.getTimestep() + n - 1);
+            grid.swap();
+            done += n;
+        }
+    }
+
+    /**
+     * Builds the tiles and their boundaries from the grid's, unless they already were from the same ones.
+     */
+    private void buildTiles(){
+        Boundaries b = grid.getBoundaries();
+        int[] solids = b.getSolidCells();
+        if(b == tilesBuiltFor && solids == tilesBuiltForSolids){
+            return;
+        }
+        boolean periodicX = b.getSide(Boundaries.LEFT) == BoundaryType.PERIODIC;
+        boolean periodicY = b.getSide(Boundaries.BOTTOM) == BoundaryType.PERIODIC;
+        int width = grid.getxWidth();
+        int height = grid.getyHeight();
+        int stride = grid.getStride();
+        //the halo corners of random and bounce back bottom and top sides are not the wrapped columns'
+        boolean splitX = tileColumns < width && !(periodicX && !periodicY
+                && (b.getSide(Boundaries.BOTTOM) != BoundaryType.OPEN || b.getSide(Boundaries.TOP) != BoundaryType.OPEN));
+        int columns = splitX ? tileColumns : width;
+
+        List<Tile> built = new ArrayList<>();
+        for(int y0 = 0; y0 < height; y0 += tileRows){
+            for(int x0 = 0; x0 < width; x0 += columns){
+                built.add(new Tile(y0, Math.min(height, y0 + tileRows), x0, Math.min(width, x0 + columns)));
+            }
+        }
+        //scratch grids of each shape, only to build the boundaries with
+        Map<Long, Grid> shapes = new HashMap<>();
+        for(Tile t:built){
+            t.first = periodicY ? t.start - depth : Math.max(0, t.start - depth);
+            int end = periodicY ? t.end + depth : Math.min(height, t.end + depth);
+            t.rows = end - t.first;
+            boolean bottom = !periodicY && t.first == 0;
+            boolean top = !periodicY && end == height;
+            boolean left = true;
+            boolean right = true;
+            t.firstX = 0;
+            t.columns = width;
+            if(splitX){
+                t.firstX = periodicX ? t.xStart - depth : Math.max(0, t.xStart - depth);
+                int endX = periodicX ? t.xEnd + depth : Math.min(width, t.xEnd + depth);
+                t.columns = endX - t.firstX;
+                left = !periodicX && t.firstX == 0;
+                right = !periodicX && endX == width;
+            }
+            Grid shape = shapes.get(shapeKey(t));
+            if(shape == null){
+                shape = new Grid(t.columns, t.rows);
+                shapes.put(shapeKey(t), shape);
+            }
+            Boundaries tb = new Boundaries(shape,
+                    left ? b.getSide(Boundaries.LEFT) : BoundaryType.OPEN,
+                    right ? b.getSide(Boundaries.RIGHT) : BoundaryType.OPEN,
+                    bottom ? b.getSide(Boundaries.BOTTOM) : BoundaryType.OPEN,
+                    top ? b.getSide(Boundaries.TOP) : BoundaryType.OPEN);
+            tb.setInflow(b.getInflowDensity(), b.getInflowSeed());
+            tb.setRowOffset(t.first, periodicY ? height : 0);
+            if(splitX && !periodicX){
+                tb.setColumnOffset(t.firstX, width);
+            }
+            boolean wrapX = splitX && periodicX;
+            for(int y = 0; y < t.rows; y++){
+                int g = periodicY ? Math.floorMod(t.first + y, height) : t.first + y;
+                int from = Arrays.binarySearch(solids, (g + 1) * stride);
+                if(from < 0) from = -from - 1;
+                for(int k = from; k < solids.length && solids[k] < (g + 2) * stride; k++){
+                    int x = solids[k] % stride - 1;
+                    if(wrapX){
+                        //a lattice narrower than the scratch grid has its columns there more than once
+                        for(int sx = Math.floorMod(x - t.firstX, width); sx < t.columns; sx += width){
+                            tb.addSolid(sx, y);
+                        }
+                    }
+                    else if(x >= t.firstX && x < t.firstX + t.columns){
+                        tb.addSolid(x - t.firstX, y);
+                    }
+                }
+            }
+            t.widenedBelow = !bottom;
+            t.widenedAbove = !top;
+            t.widenedLeft = splitX && !left;
+            t.widenedRight = splitX && !right;
+            t.columnPeriod = (wrapX && (t.firstX < 0 || t.firstX + t.columns > width)) ? width : 0;
+            t.boundaries = tb;
+        }
+        tiles = built.toArray(new Tile[0]);
+        tilesBuiltFor = b;
+        tilesBuiltForSolids = solids;
+    }
+
+    private static long shapeKey(Tile t){
+        return ((long)t.columns << 32) | t.rows;
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    @Override
+    public void shutdown(){
+        if(pool != null){
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Rows start to end-1 and columns xStart to xEnd-1 of the grid, and how they are widened.
+     */
+    private static class Tile {
+        final int start;
+        final int end;
+        final int xStart;
+        final int xEnd;
+        /**
+         * The row of the grid that row 0 of the scratch grid is, which is even, and may be negative when the
+         * rows wrap around.
+         */
+        int first;
+        int rows;
+        /**
+         * The column of the grid that column 0 of the scratch grid is, which may be negative when the columns
+         * wrap around.
+         */
+        int firstX;
+        int columns;
+        /**
+         * The width of the grid when the scratch grid's columns wrap around it, or else 0.
+         */
+        int columnPeriod;
+        /**
+         * Whether the sides of the scratch grid are widened rows and columns, rather than the sides of the
+         * grid.
+         */
+        boolean widenedBelow;
+        boolean widenedAbove;
+        boolean widenedLeft;
+        boolean widenedRight;
+        Boundaries boundaries;
+
+        Tile(int start, int end, int xStart, int xEnd){
+            this.start = start;
+            this.end = end;
+            this.xStart = xStart;
+            this.xEnd = xEnd;
+        }
+    }
+
+    /**
+     * Advances tiles on one thread, in scratch grids of its own.
+     */
+    private class Worker {
+
+        private final Map<Long, Grid> scratch = new HashMap<>();
+
+        /**
+         * Advances tiles by n timesteps until there are none left.
+         */
+        void advance(AtomicInteger nextTile, int n){
+            for(int i = nextTile.getAndIncrement(); i < tiles.length; i = nextTile.getAndIncrement()){
+                advance(tiles[i], n);
+            }
+        }
+
+        private void advance(Tile tile, int n){
+            Grid s = scratch.get(shapeKey(tile));
+            if(s == null){
+                s = new Grid(tile.columns, tile.rows);
+                scratch.put(shapeKey(tile), s);
+            }
+            int width = grid.getxWidth();
+            int height = grid.getyHeight();
+            int stride = grid.getStride();
+            int scratchStride = s.getStride();
+            byte[] now = grid.getNowPlane();
+            byte[] into = s.getNowPlane();
+            if(tile.columns == width && tile.firstX == 0){
+                //whole rows, in the longest runs that do not wrap around at a time
+                for(int y = 0; y < tile.rows; ){
+                    int g = Math.floorMod(tile.first + y, height);
+                    int run = Math.min(tile.rows - y, height - g);
+                    System.arraycopy(now, (g + 1) * stride, into, (y + 1) * stride, run * stride);
+                    y += run;
+                }
+            }
+            else{
+                for(int y = 0; y < tile.rows; y++){
+                    int row = (Math.floorMod(tile.first + y, height) + 1) * stride + 1;
+                    int scratchRow = (y + 1) * scratchStride + 1;
+                    for(int x = 0; x < tile.columns; ){
+                        int g = Math.floorMod(tile.firstX + x, width);
+                        int run = Math.min(tile.columns - x, width - g);
+                        System.arraycopy(now, row + g, into, scratchRow + x, run);
+                        x += run;
+                    }
+                }
+            }
+            s.setTimestep(grid.getTimestep());
+            s.setBoundaries(tile.boundaries);
+
+            //a widened side loses a correct row or column every timestep, so each timestep evaluates one fewer
+            for(int k = 1; k <= n; k++){
+                int startY = tile.widenedBelow ? k : 0;
+                int endY = tile.widenedAbove ? tile.rows - k : tile.rows;
+                int startX = tile.widenedLeft ? k : 0;
+                int endX = tile.widenedRight ? tile.columns - k : tile.columns;
+                CellEvaluator ce = new CellEvaluator(s, collider, startX, endX, startY, endY);
+                ce.setRowOffset(tile.first);
+                ce.setRowPeriod(tile.first < 0 || tile.first + tile.rows > height ? height : 0);
+                ce.setColumnOffset(tile.firstX, tile.columnPeriod);
+                ce.evaluate();
+                s.swap();
+            }
+
+            byte[] out = s.getNowPlane();
+            byte[] next = grid.getNextPlane();
+            int x0 = tile.xStart - tile.firstX;
+            for(int y = tile.start; y < tile.end; y++){
+                System.arraycopy(out, (y - tile.first + 1) * scratchStride + 1 + x0,
+                        next, (y + 1) * stride + 1 + tile.xStart, tile.xEnd - tile.xStart);
+            }
+        }
+    }
+
+    /**
+     * Compares the throughput of the engine with that of the BYTE engine on a randomly filled grid, and checks
+     * that both give the same lattice.  Arguments are the grid size (default 4096), the number of timesteps
+     * (default 32), the number of threads (default the number of processors), the depth (default
+     * DEFAULT_DEPTH), the tile columns and the tile rows (both by default sized for DEFAULT_TILE_BYTES).
+     * @param args
+     */
+    public static void main(String[] args){
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int depth = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_DEPTH;
+        int tileColumns = args.length > 4 ? Integer.parseInt(args[4]) : tileColumnsFor(size, depth, DEFAULT_TILE_BYTES);
+        int tileRows = args.length > 5 ? Integer.parseInt(args[5])
+                : tileRowsFor(size, tileColumns, depth, DEFAULT_TILE_BYTES);
+
+        Grid reference = new Grid(size, size);
+        Ensemble.random(0.2).initialize(reference, 0, 42);
+        Grid blocked = new Grid(size, size);
+        Ensemble.random(0.2).initialize(blocked, 0, 42);
+        LatticeEngine byteEngine = EngineType.BYTE.create(reference, new Collider(42), threads);
+        TemporalBlockingEngine blockedEngine = new TemporalBlockingEngine(blocked, new Collider(42), threads, depth, tileRows,
+                tileColumns);
+
+        //warm up
+        byteEngine.step(depth);
+        blockedEngine.step(depth);
+
+        long t0 = System.nanoTime();
+        byteEngine.step(steps);
+        long t1 = System.nanoTime();
+        blockedEngine.step(steps);
+        long t2 = System.nanoTime();
+        double cells = (double)size * size * steps;
+        System.out.println(String.format("%dx%d, %d steps, %d threads: BYTE %.1f Mcell/s, temporal blocking (depth %d, %dx%d tiles) %.1f Mcell/s",
+                size, size, steps, threads, cells / (t1 - t0) * 1e3, depth, blockedEngine.getTileColumns(), blockedEngine.getTileRows(),
+                cells / (t2 - t1) * 1e3));
+        System.out.println("Same lattice: " + Arrays.equals(reference.getNowPlane(), blocked.getNowPlane()));
+        byteEngine.shutdown();
+        blockedEngine.shutdown();
+    }
+
+}
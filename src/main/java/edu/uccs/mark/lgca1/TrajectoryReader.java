@@ -0,0 +1,248 @@
+package edu.uccs.mark.lgca1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static edu.uccs.mark.lgca1.TrajectoryWriter.DELTA;
+import static edu.uccs.mark.lgca1.TrajectoryWriter.FOOTER_SIZE;
+import static edu.uccs.mark.lgca1.TrajectoryWriter.FRAME_HEADER_SIZE;
+import static edu.uccs.mark.lgca1.TrajectoryWriter.HEADER_SIZE;
+import static edu.uccs.mark.lgca1.TrajectoryWriter.KEYFRAME;
+import static edu.uccs.mark.lgca1.TrajectoryWriter.MAGIC;
+import static edu.uccs.mark.lgca1.TrajectoryWriter.VERSION;
+
+/**
+ * Reads the frames of a trajectory file written by a TrajectoryWriter.
+ *
+ * The frame index at the end of the file gives the timestep and offset of every frame, so reading the frame
+ * of a timestep means decoding the keyframe at or before it and applying the deltas from there on.  The last
+ * frame read is kept, so reading the frames one after the other only decodes one delta each.
+ */
+public class TrajectoryReader implements Closeable {
+
+    private FileChannel channel;
+    private int width;
+    private int height;
+    private int keyframeInterval;
+
+    private long[] timesteps;
+    private long[] offsets;
+    private byte[] types;
+
+    /**
+     * The plane of frame current, or of no frame when current is -1.
+     */
+    private byte[] plane;
+    private int current = -1;
+    private byte[] frameBuffer = new byte[0];
+    private byte[] delta;
+
+    /**
+     * Opens the file and reads its frame index, or rebuilds it if the file has no footer.
+     * @param file
+     * @throws IOException if the file can not be read or is not a trajectory
+     */
+    public TrajectoryReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try{
+            ByteBuffer header = read(0, HEADER_SIZE);
+            if(header.getInt() != MAGIC){
+                throw new IOException(file + " is not a lattice trajectory");
+            }
+            int version = header.getInt();
+            if(version != VERSION){
+                throw new IOException(file + " has trajectory version " + version + ", expected " + VERSION);
+            }
+            width = header.getInt();
+            height = header.getInt();
+            keyframeInterval = header.getInt();
+            plane = new byte[(width + 2) * (height + 2)];
+            delta = new byte[plane.length];
+            if(!readIndex()){
+                rebuildIndex();
+            }
+        }
+        catch(IOException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while(buf.hasRemaining()){
+            if(channel.read(buf, offset + buf.position()) < 0){
+                throw new IOException("Trajectory ends early");
+            }
+        }
+        //cast for Java 8, where flip() is only declared on Buffer
+        ((Buffer)buf).flip();
+        return buf;
+    }
+
+    /**
+     * Reads the index from the end of the file.
+     * @return false if the file has no footer
+     */
+    private boolean readIndex() throws IOException {
+        long size = channel.size();
+        if(size < HEADER_SIZE + FOOTER_SIZE){
+            return false;
+        }
+        ByteBuffer footer = read(size - FOOTER_SIZE, FOOTER_SIZE);
+        long indexOffset = footer.getLong();
+        int count = footer.getInt();
+        if(footer.getInt() != MAGIC || indexOffset + 17L * count + FOOTER_SIZE != size){
+            return false;
+        }
+        ByteBuffer index = read(indexOffset, 17 * count);
+        timesteps = new long[count];
+        offsets = new long[count];
+        types = new byte[count];
+        for(int i = 0; i < count; i++){
+            timesteps[i] = index.getLong();
+            offsets[i] = index.getLong();
+            types[i] = index.get();
+        }
+        return true;
+    }
+
+    /**
+     * Walks the frames from the header on, up to the first one that is not complete.  Frames are recorded
+     * in timestep order, so the start of a partly written index, whose first timestep is that of the first
+     * frame, is not mistaken for a frame.
+     */
+    private void rebuildIndex() throws IOException {
+        List<long[]> entries = new ArrayList<>();
+        long size = channel.size();
+        long offset = HEADER_SIZE;
+        while(offset + FRAME_HEADER_SIZE <= size){
+            ByteBuffer h = read(offset, FRAME_HEADER_SIZE);
+            long timestep = h.getLong();
+            byte type = h.get();
+            int length = h.getInt();
+            if((type != KEYFRAME && type != DELTA) || length < 0 || offset + FRAME_HEADER_SIZE + length > size
+                    || (!entries.isEmpty() && timestep <= entries.get(entries.size() - 1)[0])){
+                break;
+            }
+            entries.add(new long[]{timestep, offset, type});
+            offset += FRAME_HEADER_SIZE + length;
+        }
+        timesteps = new long[entries.size()];
+        offsets = new long[entries.size()];
+        types = new byte[entries.size()];
+        for(int i = 0; i < entries.size(); i++){
+            timesteps[i] = entries.get(i)[0];
+            offsets[i] = entries.get(i)[1];
+            types[i] = (byte)entries.get(i)[2];
+        }
+    }
+
+    public int getxWidth(){
+        return width;
+    }
+
+    public int getyHeight(){
+        return height;
+    }
+
+    public int getKeyframeInterval(){
+        return keyframeInterval;
+    }
+
+    public int getFrameCount(){
+        return timesteps.length;
+    }
+
+    /**
+     * The timesteps of the recorded frames, in the order they were recorded.
+     * @return
+     */
+    public long[] getTimesteps(){
+        return timesteps.clone();
+    }
+
+    /**
+     * Returns a new grid holding the frame of the given timestep.
+     * @param timestep
+     * @return
+     * @throws IOException if no frame was recorded for the timestep, or it can not be read
+     */
+    public Grid readGrid(long timestep) throws IOException {
+        Grid g = new Grid(width, height);
+        read(timestep, g);
+        return g;
+    }
+
+    /**
+     * Copies the frame of the given timestep into the grid's now plane and sets its timestep.
+     * @param timestep
+     * @param grid a grid of the trajectory's size
+     * @throws IOException if no frame was recorded for the timestep, or it can not be read
+     * @throws IllegalArgumentException if the grid is not the trajectory's size
+     */
+    public void read(long timestep, Grid grid) throws IOException {
+        if(grid.getxWidth() != width || grid.getyHeight() != height){
+            throw new IllegalArgumentException("The trajectory has " + width + "x" + height + " frames, not "
+                    + grid.getxWidth() + "x" + grid.getyHeight());
+        }
+        int frame = Arrays.binarySearch(timesteps, timestep);
+        if(frame < 0){
+            throw new IOException("No frame was recorded for timestep " + timestep);
+        }
+        seek(frame);
+        System.arraycopy(plane, 0, grid.getNowPlane(), 0, plane.length);
+        grid.setTimestep(timestep);
+        grid.fillHalo();
+    }
+
+    /**
+     * Decodes frame number target into plane, starting from the current frame when that is on the way.
+     */
+    private void seek(int target) throws IOException {
+        int key = target;
+        while(types[key] != KEYFRAME){
+            key--;
+        }
+        int from = (current >= key && current <= target) ? current + 1 : key;
+        for(int f = from; f <= target; f++){
+            ByteBuffer h = read(offsets[f], FRAME_HEADER_SIZE);
+            h.getLong();
+            byte type = h.get();
+            int length = h.getInt();
+            if(frameBuffer.length < length){
+                frameBuffer = new byte[length];
+            }
+            ByteBuffer data = ByteBuffer.wrap(frameBuffer, 0, length);
+            while(data.hasRemaining()){
+                if(channel.read(data, offsets[f] + FRAME_HEADER_SIZE + data.position()) < 0){
+                    throw new IOException("Trajectory ends early");
+                }
+            }
+            if(type == KEYFRAME){
+                TrajectoryWriter.decode(frameBuffer, 0, length, plane);
+            }
+            else{
+                TrajectoryWriter.decode(frameBuffer, 0, length, delta);
+                for(int i = 0; i < plane.length; i++){
+                    plane[i] ^= delta[i];
+                }
+            }
+            current = f;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
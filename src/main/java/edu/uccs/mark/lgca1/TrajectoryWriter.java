@@ -0,0 +1,416 @@
+package edu.uccs.mark.lgca1;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records the history of a grid to a compressed trajectory file, one frame per recorded timestep.
+ *
+ * Every keyframeInterval-th frame is a keyframe holding the grid's now plane, halo included.  The frames in
+ * between hold the XOR of the plane with the previous frame's, which is zero wherever nothing changed.
+ * Either is then run length encoded as a list of runs: a varint count of zero bytes, a varint count of
+ * literal bytes, and the literal bytes.  Sparse flows, where most cells stay empty from one timestep to the
+ * next, shrink to a small fraction of the raw frames.
+ *
+ * Recording a frame copies the plane into a buffer from a pool and puts it on a bounded queue; a background
+ * thread does the delta, the compression and the writing.  The stepping loop only waits when the queue is
+ * full, i.e. when the disk has fallen queueCapacity frames behind.
+ *
+ * File layout (big endian):
+ *   header   int magic "LGTR", int version, int width, int height, int keyframe interval
+ *   frames   long timestep, byte type (KEYFRAME or DELTA), int length, length bytes of runs
+ *   index    for each frame: long timestep, long offset of the frame, byte type
+ *   footer   long offset of the index, int number of frames, int magic
+ * A file without its footer, from a run that did not close the writer, is still read: TrajectoryReader
+ * rebuilds the index by walking the frames.
+ */
+public class TrajectoryWriter {
+
+    public static final int MAGIC = 0x4C475452; // "LGTR"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 20;
+    public static final int FRAME_HEADER_SIZE = 13;
+    public static final int FOOTER_SIZE = 16;
+
+    public static final byte KEYFRAME = 0;
+    public static final byte DELTA = 1;
+
+    /**
+     * Fewer zero bytes than this in a row are cheaper to keep as literals than to start a new run for.
+     */
+    private static final int MIN_ZERO_RUN = 3;
+
+    private int keyframeInterval;
+    private int planeSize;
+
+    private BlockingQueue<Frame> queue;
+    private BlockingQueue<byte[]> pool;
+    private Thread writer;
+    private volatile IOException failure;
+    private long recorded = 0;
+    private long lastTimestep = Long.MIN_VALUE;
+
+    private DataOutputStream out;
+    private long position;
+    private volatile long compressedBytes = 0;
+    private List<long[]> index = new ArrayList<>();
+
+    /**
+     * A plane waiting to be written, or the end of the recording when plane is null.
+     */
+    private static class Frame {
+        final long timestep;
+        final byte[] plane;
+
+        Frame(long timestep, byte[] plane){
+            this.timestep = timestep;
+            this.plane = plane;
+        }
+    }
+
+    /**
+     * Creates the file and writes its header.
+     * @param file
+     * @param width
+     * @param height
+     * @param keyframeInterval number of frames from one keyframe to the next
+     * @param queueCapacity number of frames that can wait to be written
+     * @throws IOException
+     */
+    public TrajectoryWriter(Path file, int width, int height, int keyframeInterval, int queueCapacity)
+            throws IOException {
+        if(keyframeInterval < 1 || queueCapacity < 1){
+            throw new IllegalArgumentException("The keyframe interval and the queue capacity must be positive");
+        }
+        this.keyframeInterval = keyframeInterval;
+        this.planeSize = (width + 2) * (height + 2);
+        queue = new ArrayBlockingQueue<>(queueCapacity + 1);
+        //the queued frames, plus the frame being compressed and the one it is compared with
+        pool = new ArrayBlockingQueue<>(queueCapacity + 2);
+        for(int i = 0; i < queueCapacity + 2; i++){
+            pool.add(new byte[planeSize]);
+        }
+
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(keyframeInterval);
+        position = HEADER_SIZE;
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeFrames();
+            }
+        }, "trajectory-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records the grid's now plane as the frame for its current timestep, which must be later than that of
+     * the last frame recorded.
+     * @param grid
+     * @throws IOException if an earlier frame failed to be written, and at every call after that
+     */
+    public void record(Grid grid) throws IOException {
+        rethrowFailure();
+        byte[] plane = grid.getNowPlane();
+        if(plane.length != planeSize){
+            throw new IllegalArgumentException("The grid is not the size of the trajectory");
+        }
+        if(grid.getTimestep() <= lastTimestep){
+            throw new IllegalArgumentException("Timestep " + grid.getTimestep() + " was already recorded");
+        }
+        try{
+            byte[] buffer = pool.take();
+            System.arraycopy(plane, 0, buffer, 0, plane.length);
+            queue.put(new Frame(grid.getTimestep(), buffer));
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while recording", e);
+        }
+        lastTimestep = grid.getTimestep();
+        recorded++;
+    }
+
+    /**
+     * Steps the engine, recording a frame before the first step and after every interval timesteps.
+     * @param engine
+     * @param steps
+     * @param interval
+     * @throws IOException if a frame failed to be written
+     */
+    public void run(LatticeEngine engine, int steps, int interval) throws IOException {
+        record(engine.getGrid());
+        for(int done = 0; done < steps; done += interval){
+            engine.step(Math.min(interval, steps - done));
+            record(engine.getGrid());
+        }
+    }
+
+    public long getRecorded(){
+        return recorded;
+    }
+
+    /**
+     * Number of bytes of compressed frames written so far, without their headers.
+     * @return
+     */
+    public long getCompressedBytes(){
+        return compressedBytes;
+    }
+
+    private void writeFrames(){
+        byte[] previous = null;
+        byte[] delta = new byte[planeSize];
+        ByteArrayOutputStream runs = new ByteArrayOutputStream();
+        try{
+            while(true){
+                Frame f = queue.take();
+                if(f.plane == null){
+                    break;
+                }
+                boolean key = index.size() % keyframeInterval == 0;
+                byte[] source = f.plane;
+                if(!key){
+                    for(int i = 0; i < planeSize; i++){
+                        delta[i] = (byte)(f.plane[i] ^ previous[i]);
+                    }
+                    source = delta;
+                }
+                runs.reset();
+                encode(source, runs);
+
+                index.add(new long[]{f.timestep, position, key ? KEYFRAME : DELTA});
+                out.writeLong(f.timestep);
+                out.writeByte(key ? KEYFRAME : DELTA);
+                out.writeInt(runs.size());
+                runs.writeTo(out);
+                position += FRAME_HEADER_SIZE + runs.size();
+                compressedBytes += runs.size();
+
+                if(previous != null){
+                    pool.put(previous);
+                }
+                previous = f.plane;
+            }
+            out.flush();
+        }
+        catch(IOException e){
+            failure = e;
+            //keep taking frames so record() does not wait forever on the pool
+            drain();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain(){
+        try{
+            while(true){
+                Frame f = queue.take();
+                if(f.plane == null){
+                    return;
+                }
+                pool.put(f.plane);
+            }
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run length encodes the data as runs of zeros and literals (see the class comment).
+     * @param data
+     * @param out
+     */
+    static void encode(byte[] data, ByteArrayOutputStream out){
+        int n = data.length;
+        int i = 0;
+        while(i < n){
+            int zeros = i;
+            while(zeros < n && data[zeros] == 0){
+                zeros++;
+            }
+            //the literals end where a long enough run of zeros starts, or at the end
+            int end = zeros;
+            int zeroRun = 0;
+            while(end < n && zeroRun < MIN_ZERO_RUN){
+                zeroRun = (data[end] == 0) ? zeroRun + 1 : 0;
+                end++;
+            }
+            if(zeroRun == MIN_ZERO_RUN){
+                end -= MIN_ZERO_RUN;
+            }
+            writeVarint(zeros - i, out);
+            writeVarint(end - zeros, out);
+            out.write(data, zeros, end - zeros);
+            i = end;
+        }
+    }
+
+    /**
+     * Decodes runs written by encode() into data, which must be the size of the encoded data.
+     * @param runs
+     * @param offset
+     * @param length
+     * @param data
+     */
+    static void decode(byte[] runs, int offset, int length, byte[] data){
+        int[] at = new int[]{offset};
+        int end = offset + length;
+        int i = 0;
+        while(at[0] < end){
+            int zeros = readVarint(runs, at);
+            int literals = readVarint(runs, at);
+            Arrays.fill(data, i, i + zeros, (byte)0);
+            i += zeros;
+            System.arraycopy(runs, at[0], data, i, literals);
+            at[0] += literals;
+            i += literals;
+        }
+        Arrays.fill(data, i, data.length, (byte)0);
+    }
+
+    private static void writeVarint(int v, OutputStream out){
+        try{
+            while((v & ~0x7F) != 0){
+                out.write((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.write(v);
+        }
+        catch(IOException e){
+            //a ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int readVarint(byte[] b, int[] at){
+        int v = 0;
+        int shift = 0;
+        while(true){
+            int x = b[at[0]++];
+            v |= (x & 0x7F) << shift;
+            if((x & 0x80) == 0){
+                return v;
+            }
+            shift += 7;
+        }
+    }
+
+    /**
+     * Throws the failure of the writer thread, every time: the frames after it were thrown away, so every later
+     * record() and close() must fail too, rather than write an index and footer over a broken frame stream.
+     */
+    private void rethrowFailure() throws IOException {
+        IOException e = failure;
+        if(e != null){
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the queued frames to be written, then writes the frame index and closes the file.
+     * @throws IOException if a frame or the index failed to be written
+     */
+    public void close() throws IOException {
+        try{
+            queue.put(new Frame(0, null));
+            writer.join();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing", e);
+        }
+        try{
+            rethrowFailure();
+            long indexOffset = position;
+            for(long[] entry:index){
+                out.writeLong(entry[0]);
+                out.writeLong(entry[1]);
+                out.writeByte((int)entry[2]);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(index.size());
+            out.writeInt(MAGIC);
+        }
+        finally{
+            out.close();
+        }
+    }
+
+    /**
+     * Records a sparse flow, a few particle fronts crossing a mostly empty lattice, and reports how much the
+     * trajectory shrank against raw frames.  Then reads some frames back out of order and compares them with
+     * copies taken while recording.  Arguments are the grid size (default 1024), the number of timesteps
+     * (default 500), the keyframe interval (default 100) and the file (default a temporary file).
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int keyframes = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        Path file = args.length > 3 ? java.nio.file.Paths.get(args[3]) : Files.createTempFile("lgca", ".lgtr");
+
+        Grid g = new Grid(size, size);
+        for(int y = 0; y < size; y++){
+            g.setStateNow(size / 4, y, State.S1MASK);
+            g.setStateNow(3 * size / 4, y, State.S4MASK);
+        }
+        LatticeEngine engine = EngineType.BYTE.create(g, new Collider(42), 1);
+        long[] checked = new long[]{steps, steps / 3, 0, keyframes - 1, steps / 2 + 1};
+        byte[][] copies = new byte[checked.length][];
+
+        TrajectoryWriter writer = new TrajectoryWriter(file, size, size, keyframes, 16);
+        long start = System.nanoTime();
+        for(int t = 0; t <= steps; t++){
+            if(t > 0){
+                engine.step(1);
+            }
+            writer.record(engine.getGrid());
+            for(int k = 0; k < checked.length; k++){
+                if(checked[k] == t){
+                    copies[k] = engine.getGrid().getNowPlane().clone();
+                }
+            }
+        }
+        writer.close();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        engine.shutdown();
+
+        long raw = (long)(steps + 1) * g.getNowPlane().length;
+        long stored = Files.size(file);
+        System.out.println(String.format("%d frames in %.2f s: %d bytes raw, %d bytes stored, %.1fx smaller",
+                steps + 1, seconds, raw, stored, (double)raw / stored));
+
+        boolean same = true;
+        try(TrajectoryReader reader = new TrajectoryReader(file)){
+            for(int k = 0; k < checked.length; k++){
+                same &= Arrays.equals(copies[k], reader.readGrid(checked[k]).getNowPlane());
+            }
+        }
+        System.out.println(same ? "Frames read back match" : "Frames read back DIFFER");
+        if(args.length <= 3){
+            Files.delete(file);
+        }
+    }
+
+}
@@ -0,0 +1,301 @@
+package edu.uccs.mark.lgca1;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Checks the physics of every engine against stored golden trajectories, so that an optimization of the
+ * grid, the collider or an engine that changes what is computed does not go unnoticed.
+ *
+ * The cases are in the resource verification/golden.properties.  Each is a scenario, its keys prefixed with
+ * the case's name, plus a sample interval and the golden hash of its trajectory: the timestep and the cells
+ * of the lattice at timestep 0 and every sample interval, folded into a 64 bit hash.  Every case is run with
+ * every engine, the multithreaded ones on 1, 2 and 4 threads, stepped through a VerifyingEngine that checks
+ * the totals of closed lattices at every timestep and 256 cells' collisions at every timestep, and its hash
+ * must be the golden one.  The bit sliced engine draws its random choices its own way, so it has golden hashes
+ * of its own, <case>.hash.BIT_SLICED; every other engine must give the BYTE engine's.  An engine that does not
+ * support a case, e.g. the memoized engine with a random collider, or that falls back to the BYTE engine,
+ * skips it.
+ *
+ * The collider's random choices are also checked for bias: for every state of every preset model with
+ * several outcomes, the outcomes drawn over many cells and timesteps must pass a chi-square test for being
+ * equally likely.
+ *
+ * The checks are run by VerificationTest.  Run this with "update" to print the hash lines of the golden file
+ * as the engines compute them now, or "sampled [size] [steps] [interval]" to measure what the sampled checks
+ * that can be left on in production runs (see VerifyingEngine) cost.
+ */
+public class Verification {
+
+    public static final String GOLDEN_RESOURCE = "verification/golden.properties";
+
+    private static final int[] THREADS = {1, 2, 4};
+
+    /**
+     * The engines that step on several threads; the others ignore the number of threads, so are run once.
+     */
+    private static final EnumSet<EngineType> MULTITHREADED = EnumSet.of(EngineType.BYTE, EngineType.TEMPORAL_BLOCKING);
+
+    /**
+     * The engines whose golden hashes may differ from the BYTE engine's.
+     */
+    private static final EnumSet<EngineType> OWN_HASHES = EnumSet.of(EngineType.BIT_SLICED);
+
+    /**
+     * The cells whose collisions are checked at every timestep of a case.
+     */
+    private static final int CHECKED_CELLS = 256;
+
+    /**
+     * Draws per outcome for the bias check.
+     */
+    private static final int DRAWS_PER_OUTCOME = 2000;
+
+    /**
+     * A scenario, the interval between the samples of its trajectory and its golden hashes.
+     */
+    static class Case {
+        final String name;
+        final Scenario scenario;
+        final int sampleInterval;
+        final Properties golden;
+
+        Case(String name, Scenario scenario, int sampleInterval, Properties golden){
+            this.name = name;
+            this.scenario = scenario;
+            this.sampleInterval = sampleInterval;
+            this.golden = golden;
+        }
+
+        /**
+         * The golden hash of the engine: its own, for engines that draw their random choices differently,
+         * or else the case's.
+         */
+        String golden(EngineType type){
+            String h = OWN_HASHES.contains(type) ? golden.getProperty(name + ".hash." + type.name()) : null;
+            if(h == null){
+                h = golden.getProperty(name + ".hash");
+            }
+            return (h == null) ? null : h.trim();
+        }
+    }
+
+    /**
+     * Loads the cases listed by the "cases" key of the golden file, in order.
+     * @return
+     * @throws IOException
+     */
+    static List<Case> loadCases() throws IOException {
+        Properties golden = new Properties();
+        try(InputStream in = Verification.class.getClassLoader().getResourceAsStream(GOLDEN_RESOURCE)){
+            if(in == null){
+                throw new IOException("No golden file " + GOLDEN_RESOURCE + " on the classpath");
+            }
+            golden.load(in);
+        }
+        List<Case> cases = new ArrayList<>();
+        for(String name:golden.getProperty("cases", "").split("[,\\s]+")){
+            if(name.isEmpty()){
+                continue;
+            }
+            String prefix = name + ".";
+            Properties p = new Properties();
+            for(String key:golden.stringPropertyNames()){
+                if(key.startsWith(prefix) && !key.equals(prefix + "sample") && !key.startsWith(prefix + "hash")){
+                    p.setProperty(key.substring(prefix.length()), golden.getProperty(key));
+                }
+            }
+            int sample = Integer.parseInt(golden.getProperty(prefix + "sample", "1").trim());
+            cases.add(new Case(name, new Scenario(p), sample, golden));
+        }
+        return cases;
+    }
+
+    /**
+     * Folds the grid's timestep and the cells of its now plane, without the halo, into the hash.
+     * @param grid
+     * @param h
+     * @return
+     */
+    public static long hash(Grid grid, long h){
+        byte[] now = grid.getNowPlane();
+        int width = grid.getxWidth();
+        h = Collider.mix(h ^ grid.getTimestep());
+        for(int y = 0; y < grid.getyHeight(); y++){
+            int row = grid.index(0, y);
+            for(int x = 0; x < width; x += 8){
+                long word = 0;
+                for(int k = x; k < Math.min(width, x + 8); k++){
+                    word = (word << 8) | (now[row + k] & 0xFF);
+                }
+                h = Collider.mix(h ^ word);
+            }
+        }
+        return h;
+    }
+
+    /**
+     * The numbers of threads to run an engine on.
+     * @param type
+     * @return
+     */
+    static int[] threads(EngineType type){
+        return MULTITHREADED.contains(type) ? THREADS : new int[]{1};
+    }
+
+    /**
+     * Runs a case with an engine, checking conservation at every timestep.
+     * @param c
+     * @param type
+     * @param threads
+     * @return the hash of the trajectory, as 16 hex digits
+     * @throws IOException
+     * @throws UnsupportedOperationException if the engine does not support the case, or fell back to the BYTE
+     * engine
+     * @throws IllegalStateException if a conservation check fails
+     */
+    static String run(Case c, EngineType type, int threads) throws IOException {
+        Scenario s = c.scenario;
+        Grid grid = s.createGrid();
+        LatticeEngine engine = type.create(grid, s.createCollider(), threads);
+        if(type != EngineType.BYTE && engine instanceof SimulationEngine){
+            //the vector engine when it is not available or the model has rest particles
+            engine.shutdown();
+            throw new UnsupportedOperationException("fell back to BYTE");
+        }
+        VerifyingEngine verifying = new VerifyingEngine(engine, 1, CHECKED_CELLS, c.name.hashCode());
+        verifying.setTotalsInterval(1);
+        try{
+            long h = hash(verifying.getGrid(), 0);
+            for(int done = 0; done < s.getSteps(); done += c.sampleInterval){
+                verifying.step(Math.min(c.sampleInterval, s.getSteps() - done));
+                h = hash(verifying.getGrid(), h);
+            }
+            return String.format("%016x", h);
+        }
+        finally{
+            verifying.shutdown();
+        }
+    }
+
+    /**
+     * Checks that the random collisions of the model pick every outcome as often as the others.
+     * @param model
+     * @return a description of the first biased state, or null
+     */
+    static String checkChoices(CollisionModel model){
+        Collider collider = new Collider(42, model);
+        for(int s = 0; s < 1 << (6 + model.getRestParticles()); s++){
+            byte[] outcomes = collider.getCollisionPosibilities((byte)s);
+            int k = outcomes.length;
+            if(k < 2){
+                continue;
+            }
+            int[] counts = new int[k];
+            int draws = DRAWS_PER_OUTCOME * k;
+            for(int i = 0; i < draws; i++){
+                byte out = collider.collide((byte)s, i / 64, (i % 64) * 7, i % 61);
+                for(int o = 0; o < k; o++){
+                    if(outcomes[o] == out){
+                        counts[o]++;
+                        break;
+                    }
+                }
+            }
+            //chi-square with k - 1 degrees of freedom, failing beyond about 5 standard deviations
+            double chi2 = 0;
+            for(int count:counts){
+                double d = count - DRAWS_PER_OUTCOME;
+                chi2 += d * d / DRAWS_PER_OUTCOME;
+            }
+            int dof = k - 1;
+            if(chi2 > dof + 5 * Math.sqrt(2.0 * dof)){
+                return String.format("state %d of %s: chi-square %.1f over %d outcomes, counts %s", s, model.getName(),
+                        chi2, k, Arrays.toString(counts));
+            }
+        }
+        return null;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String mode = args.length > 0 ? args[0] : "update";
+        if(mode.equals("sampled")){
+            sampledOverhead(args);
+            return;
+        }
+        if(!mode.equals("update")){
+            System.err.println("Usage: Verification update | sampled [size] [steps] [interval]");
+            System.exit(2);
+        }
+        int failures = 0;
+        for(Case c:loadCases()){
+            String h = run(c, EngineType.BYTE, 1);
+            System.out.println(c.name + ".hash = " + h);
+            for(EngineType type:EnumSet.allOf(EngineType.class)){
+                if(type == EngineType.BYTE){
+                    continue;
+                }
+                String other;
+                try{
+                    other = run(c, type, 1);
+                }
+                catch(UnsupportedOperationException e){
+                    //not run with this engine
+                    continue;
+                }
+                if(OWN_HASHES.contains(type)){
+                    if(!other.equals(h)){
+                        System.out.println(c.name + ".hash." + type + " = " + other);
+                    }
+                }
+                else if(!other.equals(h)){
+                    System.err.println(c.name + ": " + type + " gives " + other + ", which is not the BYTE engine's");
+                    failures++;
+                }
+            }
+        }
+        if(failures > 0){
+            System.err.println(failures + " engines do not match the BYTE engine; the golden file can not be updated");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Steps a periodic lattice with and without sampled checks and prints what they cost.
+     */
+    private static void sampledOverhead(String[] args){
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int steps = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int interval = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Collider c = new Collider(42, CollisionModel.FHP_I);
+        long[] nanos = {Long.MAX_VALUE, Long.MAX_VALUE};
+        VerifyingEngine verifying = null;
+        for(int round = 0; round < 5; round++){
+            for(int v = 0; v < 2; v++){
+                Grid grid = new Grid(size, size);
+                Ensemble.random(0.3).initialize(grid, 0, 42);
+                grid.fillHalo();
+                LatticeEngine engine = EngineType.BYTE.create(grid, c, threads);
+                if(v == 1){
+                    verifying = new VerifyingEngine(engine, interval, 64, 42);
+                    engine = verifying;
+                }
+                long t0 = System.nanoTime();
+                engine.step(steps);
+                //the best of the rounds, to leave out the noise of the machine
+                nanos[v] = Math.min(nanos[v], System.nanoTime() - t0);
+                engine.shutdown();
+            }
+        }
+        System.out.println(String.format("%dx%d, %d steps: %.2f ms/step unchecked, %.2f ms/step checking 64 cells every %d steps (%+.1f%%), %d cells checked",
+                size, size, steps, nanos[0] / 1e6 / steps, nanos[1] / 1e6 / steps, interval,
+                100.0 * (nanos[1] - nanos[0]) / nanos[0], verifying.getCellsChecked()));
+    }
+
+}
@@ -0,0 +1,219 @@
+package edu.uccs.mark.lgca1;
+
+import java.util.Arrays;
+
+/**
+ * Wraps an engine to check, while it runs, that its collisions conserve mass and momentum, cheaply enough
+ * to be left on in production runs.
+ *
+ * Every interval timesteps, the inbound states of a few cells drawn at random are worked out from the lattice
+ * before the step, and after the step every one of those cells must have the mass and momentum of its
+ * inbound state.  This checks streaming and collision together, cell by cell, whatever the engine, at the
+ * cost of a few hundred reads per check.  The cells are drawn from the inside of the lattice, away from the
+ * halo and from obstacles, since bounce-back at the sides and at solids does not conserve momentum.
+ *
+ * With a totals interval, the totals of the whole lattice are also compared with those before the first step
+ * every that many timesteps: the mass when no side lets particles in or out, and the momentum as well when
+ * every side is periodic and there are no obstacles.  That is a pass over the lattice, so the interval should
+ * be much longer.
+ *
+ * A failed check throws an IllegalStateException from step().
+ */
+public class VerifyingEngine implements LatticeEngine {
+
+    private final LatticeEngine engine;
+    private final int interval;
+    private final int[] cells;
+    private final byte[] inbound;
+    private final long seed;
+
+    private int totalsInterval = 0;
+    private LatticeTotals firstTotals;
+
+    /**
+     * The number of timesteps left before the next checked one.
+     */
+    private int countdown = 0;
+
+    private long checks = 0;
+    private long cellsChecked = 0;
+    private long totalsChecks = 0;
+
+    /**
+     * @param engine
+     * @param interval the number of timesteps from one checked timestep to the next
+     * @param cells the number of cells checked per checked timestep
+     * @param seed for drawing the cells
+     */
+    public VerifyingEngine(LatticeEngine engine, int interval, int cells, long seed){
+        if(interval < 1 || cells < 0){
+            throw new IllegalArgumentException("The check interval must be positive and the number of cells not negative");
+        }
+        this.engine = engine;
+        this.interval = interval;
+        this.cells = new int[cells];
+        this.inbound = new byte[cells];
+        this.seed = seed;
+    }
+
+    /**
+     * The number of timesteps between checks of the lattice's totals, or 0, the default, for none.
+     * @param totalsInterval
+     */
+    public void setTotalsInterval(int totalsInterval){
+        if(totalsInterval < 0){
+            throw new IllegalArgumentException("The totals interval can not be negative");
+        }
+        this.totalsInterval = totalsInterval;
+    }
+
+    @Override
+    public Grid getGrid(){
+        return engine.getGrid();
+    }
+
+    @Override
+    public void step(int steps){
+        if(totalsInterval > 0 && firstTotals == null){
+            checkTotals();
+        }
+        int left = steps;
+        while(left > 0){
+            if(countdown > 0){
+                int n = Math.min(left, countdown);
+                if(totalsInterval > 0){
+                    //stop at the next timestep whose totals are checked
+                    n = (int)Math.min(n, totalsInterval - engine.getGrid().getTimestep() % totalsInterval);
+                }
+                engine.step(n);
+                left -= n;
+                countdown -= n;
+            }
+            else{
+                int drawn = drawCells();
+                engine.step(1);
+                checkCells(drawn);
+                left--;
+                countdown = interval - 1;
+            }
+            if(totalsInterval > 0 && engine.getGrid().getTimestep() % totalsInterval == 0){
+                checkTotals();
+            }
+        }
+    }
+
+    /**
+     * Draws the cells to check and works out their inbound states.
+     * @return the number of cells drawn
+     */
+    private int drawCells(){
+        Grid grid = engine.getGrid();
+        int width = grid.getxWidth();
+        int height = grid.getyHeight();
+        if(width < 3 || height < 3){
+            return 0;
+        }
+        int[] solids = grid.getBoundaries().getSolidCells();
+        long t = grid.getTimestep();
+        int drawn = 0;
+        for(int c = 0; c < cells.length; c++){
+            long h = Collider.mix(seed ^ Collider.mix(t * cells.length + c));
+            int x = 1 + (int)((h >>> 32) % (width - 2));
+            int y = 1 + (int)((h & 0xFFFFFFFFL) % (height - 2));
+            int i = grid.index(x, y);
+            int[] offsets = grid.neighborOffsets(y);
+            if(solids.length > 0 && nearSolid(solids, i, offsets)){
+                continue;
+            }
+            cells[drawn] = i;
+            inbound[drawn] = grid.inboundState(i, offsets);
+            drawn++;
+        }
+        return drawn;
+    }
+
+    private static boolean nearSolid(int[] solids, int i, int[] offsets){
+        if(Arrays.binarySearch(solids, i) >= 0){
+            return true;
+        }
+        for(int o:offsets){
+            if(Arrays.binarySearch(solids, i + o) >= 0){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkCells(int drawn){
+        Grid grid = engine.getGrid();
+        byte[] now = grid.getNowPlane();
+        for(int c = 0; c < drawn; c++){
+            int in = inbound[c] & 0xFF;
+            int out = now[cells[c]] & 0xFF;
+            if(ObservableAccumulator.MASS[in] != ObservableAccumulator.MASS[out]
+                    || ObservableAccumulator.MOMENTUM_X[in] != ObservableAccumulator.MOMENTUM_X[out]
+                    || ObservableAccumulator.MOMENTUM_Y[in] != ObservableAccumulator.MOMENTUM_Y[out]){
+                int x = cells[c] % grid.getStride() - 1;
+                int y = cells[c] / grid.getStride() - 1;
+                throw new IllegalStateException("The cell at (" + x + "," + y + ") went from inbound state " + in
+                        + " to " + out + " at timestep " + grid.getTimestep() + ", which does not conserve mass and momentum");
+            }
+        }
+        checks++;
+        cellsChecked += drawn;
+    }
+
+    private void checkTotals(){
+        Grid grid = engine.getGrid();
+        Boundaries b = grid.getBoundaries();
+        boolean mass = true;
+        boolean momentum = !b.hasObstacles();
+        for(int side = Boundaries.LEFT; side <= Boundaries.TOP; side++){
+            BoundaryType type = b.getSide(side);
+            mass &= type == BoundaryType.PERIODIC || type == BoundaryType.BOUNCE_BACK;
+            momentum &= type == BoundaryType.PERIODIC;
+        }
+        if(!mass){
+            return;
+        }
+        LatticeTotals t = LatticeTotals.of(grid);
+        if(firstTotals == null){
+            firstTotals = t;
+        }
+        else if(t.getMass() != firstTotals.getMass() || (momentum && !t.equals(firstTotals))){
+            throw new IllegalStateException("The lattice's totals went from " + firstTotals + " to " + t
+                    + " by timestep " + grid.getTimestep());
+        }
+        totalsChecks++;
+    }
+
+    /**
+     * The number of checked timesteps.
+     * @return
+     */
+    public long getChecks(){
+        return checks;
+    }
+
+    /**
+     * The number of cells checked over all of the checked timesteps.
+     * @return
+     */
+    public long getCellsChecked(){
+        return cellsChecked;
+    }
+
+    /**
+     * The number of times the lattice's totals were checked.
+     * @return
+     */
+    public long getTotalsChecks(){
+        return totalsChecks;
+    }
+
+    @Override
+    public void shutdown(){
+        engine.shutdown();
+    }
+
+}
@@ -0,0 +1,131 @@
+package edu.uccs.mark.lgca1;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+
+/**
+ * Checks that MemoizedEngine gives exactly the lattice the BYTE engine does with the same deterministic
+ * collider, for every preset model and alternating ones, several lattice shapes and densities, and a cache
+ * small enough to be evicted from and flushed as well as the default one.
+ */
+public class MemoizedEngineTest extends TestCase {
+
+    /**
+     * Width and height, powers of two.
+     */
+    private static final int[][] SIZES = {{16, 16}, {32, 16}, {16, 64}, {8, 32}, {64, 64}, {128, 32}, {4, 16}};
+
+    private static final int[] CACHE_SIZES = {16, MemoizedEngine.DEFAULT_CACHE_SIZE};
+
+    private static final double[] DENSITIES = {0.05, 0.5};
+
+    /**
+     * The numbers of timesteps of the successive step() calls, which cross jumps of every size.
+     */
+    private static final int[] STEPS = {1, 3, 37, 100, 64, 5};
+
+    public void testSameAsByteEngine(){
+        CollisionModel alternating = new CollisionModel("FHP-I alternating", CollisionModel.RuleSet.FHP_I, 0,
+                EnumSet.of(CollisionModel.Quantity.MASS, CollisionModel.Quantity.MOMENTUM, CollisionModel.Quantity.ENERGY),
+                CollisionModel.Chirality.ALTERNATING);
+        CollisionModel saturated = new CollisionModel("saturated alternating", CollisionModel.RuleSet.SATURATED, 2,
+                EnumSet.of(CollisionModel.Quantity.MASS, CollisionModel.Quantity.MOMENTUM),
+                CollisionModel.Chirality.ALTERNATING);
+        Random random = new Random(1);
+        int checks = 0;
+        for(CollisionModel model:new CollisionModel[]{CollisionModel.ORIGINAL, CollisionModel.FHP_I,
+                CollisionModel.FHP_II, CollisionModel.FHP_III, alternating, saturated}){
+            Collider collider = new Collider(7, model).deterministic();
+            for(int[] size:SIZES){
+                for(int cacheSize:CACHE_SIZES){
+                    for(double density:DENSITIES){
+                        String label = model.getName() + ", " + size[0] + "x" + size[1] + ", cache " + cacheSize
+                                + ", density " + density;
+                        Grid expected = periodicGrid(size[0], size[1]);
+                        Grid memoized = periodicGrid(size[0], size[1]);
+                        fill(random, density, model, expected, memoized);
+                        LatticeEngine byteEngine = EngineType.BYTE.create(expected, collider, 1);
+                        LatticeEngine memoizedEngine = new MemoizedEngine(memoized, collider, cacheSize);
+                        try{
+                            for(int steps:STEPS){
+                                byteEngine.step(steps);
+                                memoizedEngine.step(steps);
+                                assertEquals(label, expected.getTimestep(), memoized.getTimestep());
+                                assertTrue(label + ", timestep " + expected.getTimestep(),
+                                        Arrays.equals(expected.getNowPlane(), memoized.getNowPlane()));
+                                checks++;
+                            }
+                        }
+                        finally{
+                            byteEngine.shutdown();
+                            memoizedEngine.shutdown();
+                        }
+                    }
+                }
+            }
+        }
+        assertEquals(1008, checks);
+    }
+
+    /**
+     * A small cache is evicted from and flushed, and still hit.
+     */
+    public void testSmallCache(){
+        Grid grid = periodicGrid(64, 64);
+        fill(new Random(2), 0.3, CollisionModel.FHP_I, grid);
+        MemoizedEngine engine = new MemoizedEngine(grid, new Collider(7, CollisionModel.FHP_I).deterministic(), 16);
+        engine.step(200);
+        assertTrue(engine.getEvictions() > 0);
+        assertTrue(engine.getFlushes() > 0);
+        assertTrue(engine.getHits() > 0);
+        assertTrue(engine.getCachedFutures() <= 16);
+    }
+
+    public void testRandomColliderRejected(){
+        Grid grid = periodicGrid(16, 16);
+        try{
+            new MemoizedEngine(grid, new Collider(1, CollisionModel.FHP_I));
+            fail("A random collider was accepted");
+        }
+        catch(UnsupportedOperationException e){
+            //expected
+        }
+    }
+
+    private static Grid periodicGrid(int width, int height){
+        Grid grid = new Grid(width, height);
+        grid.setBoundaries(new Boundaries(grid, BoundaryType.PERIODIC, BoundaryType.PERIODIC,
+                BoundaryType.PERIODIC, BoundaryType.PERIODIC));
+        return grid;
+    }
+
+    /**
+     * Fills the grids with the same random states of the model, each bit set with the given density, at
+     * timestep 3, so that the timestep is not a multiple of any jump.
+     */
+    private static void fill(Random random, double density, CollisionModel model, Grid... grids){
+        int mask = (1 << (6 + model.getRestParticles())) - 1;
+        Grid first = grids[0];
+        for(int y = 0; y < first.getyHeight(); y++){
+            for(int x = 0; x < first.getxWidth(); x++){
+                int s = 0;
+                for(int b = 0; b < 8; b++){
+                    if(random.nextDouble() < density){
+                        s |= 1 << b;
+                    }
+                }
+                for(Grid g:grids){
+                    g.setStateNow(x, y, (byte)(s & mask));
+                }
+            }
+        }
+        for(Grid g:grids){
+            g.setTimestep(3);
+            g.fillHalo();
+        }
+    }
+
+}
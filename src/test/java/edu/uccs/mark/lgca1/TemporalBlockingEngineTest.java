@@ -0,0 +1,161 @@
+package edu.uccs.mark.lgca1;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that TemporalBlockingEngine gives exactly the lattice the BYTE engine does, for every kind of
+ * boundary, with and without obstacles, for models with and without rest particles, for odd sizes, depths
+ * larger than the tiles, steps that are not a multiple of the depth, tiles the whole width of the grid and
+ * narrower ones, and on one and several threads.
+ */
+public class TemporalBlockingEngineTest extends TestCase {
+
+    private static final BoundaryType OPEN = BoundaryType.OPEN;
+    private static final BoundaryType PERIODIC = BoundaryType.PERIODIC;
+    private static final BoundaryType INFLOW = BoundaryType.INFLOW;
+    private static final BoundaryType OUTFLOW = BoundaryType.OUTFLOW;
+    private static final BoundaryType BOUNCE_BACK = BoundaryType.BOUNCE_BACK;
+
+    /**
+     * Left, right, bottom and top sides.
+     */
+    private static final BoundaryType[][] SIDES = {
+            {OPEN, OPEN, OPEN, OPEN},
+            {PERIODIC, PERIODIC, PERIODIC, PERIODIC},
+            {INFLOW, OUTFLOW, PERIODIC, PERIODIC},
+            {INFLOW, OUTFLOW, BOUNCE_BACK, BOUNCE_BACK},
+            {BOUNCE_BACK, BOUNCE_BACK, PERIODIC, PERIODIC},
+            {BOUNCE_BACK, BOUNCE_BACK, OUTFLOW, INFLOW},
+            {PERIODIC, PERIODIC, BOUNCE_BACK, OUTFLOW},
+    };
+
+    /**
+     * Width and height.
+     */
+    private static final int[][] SIZES = {{37, 40}, {64, 30}, {20, 6}, {33, 2}};
+
+    /**
+     * Depth and tile rows.
+     */
+    private static final int[][] TILINGS = {{2, 2}, {4, 6}, {8, 16}, {6, 4}};
+
+    /**
+     * Tile columns, the first the whole width of every size.
+     */
+    private static final int[] TILE_COLUMNS = {1000, 7, 16};
+
+    private static final int[] THREADS = {1, 3};
+
+    public void testSameAsByteEngine(){
+        int runs = 0;
+        for(CollisionModel model:new CollisionModel[]{CollisionModel.ORIGINAL, CollisionModel.FHP_II, CollisionModel.FHP_III}){
+            for(BoundaryType[] sides:SIDES){
+                for(boolean obstacles:new boolean[]{false, true}){
+                    for(int[] size:SIZES){
+                        if(sides[Boundaries.BOTTOM] == PERIODIC && (size[1] & 1) != 0){
+                            continue;
+                        }
+                        for(int[] tiling:TILINGS){
+                            for(int columns:TILE_COLUMNS){
+                                for(int threads:THREADS){
+                                    compare(model, sides, obstacles, size[0], size[1], tiling[0], tiling[1], columns,
+                                            threads);
+                                    runs++;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        assertEquals(4032, runs);
+    }
+
+    /**
+     * Steps the same grid with the BYTE engine and with the temporal blocking one, by numbers of steps that
+     * are not multiples of the depth, and checks that both give the same lattice.
+     */
+    private static void compare(CollisionModel model, BoundaryType[] sides, boolean obstacles, int width, int height,
+                                int depth, int tileRows, int tileColumns, int threads){
+        String label = model.getName() + " " + Arrays.toString(sides) + (obstacles ? " with obstacles, " : ", ")
+                + width + "x" + height + ", depth " + depth + ", " + tileColumns + "x" + tileRows + " tiles, "
+                + threads + " threads";
+        Grid expected = grid(width, height, sides, obstacles, model);
+        Grid blocked = grid(width, height, sides, obstacles, model);
+        LatticeEngine byteEngine = EngineType.BYTE.create(expected, new Collider(99, model), 1);
+        LatticeEngine blockedEngine = new TemporalBlockingEngine(blocked, new Collider(99, model), threads, depth,
+                tileRows, tileColumns);
+        try{
+            for(int steps:new int[]{5, 13}){
+                byteEngine.step(steps);
+                blockedEngine.step(steps);
+                assertEquals(label, expected.getTimestep(), blocked.getTimestep());
+                assertTrue(label, Arrays.equals(expected.getNowPlane(), blocked.getNowPlane()));
+            }
+        }
+        finally{
+            byteEngine.shutdown();
+            blockedEngine.shutdown();
+        }
+    }
+
+    /**
+     * Wide lattices are split in x, so that the scratch grids stay within the budget and the recomputed
+     * widened cells a small part of the work.
+     */
+    public void testDefaultTilesFitTheBudget(){
+        int depth = TemporalBlockingEngine.DEFAULT_DEPTH;
+        int budget = TemporalBlockingEngine.DEFAULT_TILE_BYTES;
+        for(int width:new int[]{64, 1000, 4096, 65536}){
+            int columns = TemporalBlockingEngine.tileColumnsFor(width, depth, budget);
+            int rows = TemporalBlockingEngine.tileRowsFor(width, columns, depth, budget);
+            int scratchWidth = (columns == width) ? width : columns + 2 * depth;
+            long scratchBytes = 2L * (scratchWidth + 2) * (rows + 2 * depth + 2);
+            assertTrue(width + " wide: " + scratchBytes + " bytes", scratchBytes <= budget);
+            double recomputed = 2.0 * depth / rows + ((columns == width) ? 0 : 2.0 * depth / columns);
+            assertTrue(width + " wide: " + recomputed + " recomputed", recomputed < 0.05);
+        }
+    }
+
+    /**
+     * Periodic left and right sides with random bottom and top ones can not be split in x.
+     */
+    public void testWholeWidthTilesForPeriodicColumnsWithRandomRows(){
+        Grid grid = grid(64, 30, new BoundaryType[]{PERIODIC, PERIODIC, OUTFLOW, INFLOW}, false, CollisionModel.FHP_I);
+        TemporalBlockingEngine engine = new TemporalBlockingEngine(grid, new Collider(1), 1, 4, 8, 16);
+        assertEquals(64, engine.getTileColumns());
+        grid.setBoundaries(new Boundaries(grid, PERIODIC, PERIODIC, PERIODIC, PERIODIC));
+        assertEquals(16, engine.getTileColumns());
+        engine.shutdown();
+    }
+
+    /**
+     * A grid filled at random, with the given sides, an inflow and, if asked for, a disk and a few solid
+     * cells in the corners and against the top.
+     */
+    private static Grid grid(int width, int height, BoundaryType[] sides, boolean obstacles, CollisionModel model){
+        Grid grid = new Grid(width, height);
+        Random random = new Random(7);
+        int mask = (1 << (6 + model.getRestParticles())) - 1;
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++){
+                grid.setStateNow(x, y, (byte)(random.nextInt(256) & random.nextInt(256) & mask));
+            }
+        }
+        Boundaries b = new Boundaries(grid, sides[Boundaries.LEFT], sides[Boundaries.RIGHT],
+                sides[Boundaries.BOTTOM], sides[Boundaries.TOP]);
+        b.setInflow(0.3, 11);
+        if(obstacles){
+            b.addDisk(width / 3.0, height / 2.0, Math.min(width, height) / 6.0);
+            b.addSolid(0, 0);
+            b.addSolid(width - 1, height - 1);
+            b.addSolid(5, height - 1);
+        }
+        grid.setBoundaries(b);
+        return grid;
+    }
+
+}
@@ -0,0 +1,157 @@
+package edu.uccs.mark.lgca1;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the checks of Verification: the golden trajectories of every case with every engine, the bias of the
+ * collider's random choices, and the VerifyingEngine's conservation checks themselves.
+ */
+public class VerificationTest extends TestCase {
+
+    /**
+     * Every engine that supports a case must give its golden hash.  An engine that turned every case down
+     * would pass that trivially, so the cases each engine was run on are kept, and checked against the ones
+     * it is known to support.
+     */
+    public void testGoldenHashes() throws IOException {
+        List<Verification.Case> cases = Verification.loadCases();
+        assertFalse("No cases in " + Verification.GOLDEN_RESOURCE, cases.isEmpty());
+        Map<EngineType, Set<String>> ran = new EnumMap<>(EngineType.class);
+        for(EngineType type:EnumSet.allOf(EngineType.class)){
+            ran.put(type, new HashSet<String>());
+        }
+        for(Verification.Case c:cases){
+            for(EngineType type:EnumSet.allOf(EngineType.class)){
+                String golden = c.golden(type);
+                assertNotNull("No golden hash for " + c.name, golden);
+                for(int threads:Verification.threads(type)){
+                    String label = c.name + " with " + type + " on " + threads + " threads";
+                    try{
+                        assertEquals(label, golden, Verification.run(c, type, threads));
+                        ran.get(type).add(c.name);
+                    }
+                    catch(UnsupportedOperationException e){
+                        //the engine does not support the case, or is not available here
+                        assertTrue(label + " was skipped", type != EngineType.BYTE);
+                    }
+                }
+            }
+        }
+        assertEquals(cases.size(), ran.get(EngineType.BYTE).size());
+        assertTrue(ran.get(EngineType.SPARSE).contains("fhp1-open"));
+        assertTrue(ran.get(EngineType.TEMPORAL_BLOCKING).contains("fhp1-open"));
+        assertTrue(ran.get(EngineType.BIT_SLICED).contains("fhp1-open"));
+        assertTrue(ran.get(EngineType.MEMOIZED).contains("fhp1-deterministic"));
+    }
+
+    public void testChoicesUnbiased(){
+        for(String name:new String[]{"ORIGINAL", "FHP_I", "FHP_II", "FHP_III"}){
+            assertNull(name, Verification.checkChoices(CollisionModel.preset(name)));
+        }
+    }
+
+    /**
+     * Flipping a particle of every cell after each step breaks the mass and momentum of every checked cell.
+     */
+    public void testVerifyingEngineCatchesCorruptedCells(){
+        VerifyingEngine verifying = new VerifyingEngine(new CorruptingEngine(periodicEngine(), true), 1, 16, 3);
+        try{
+            verifying.step(10);
+            fail("The corrupted cells were not caught");
+        }
+        catch(IllegalStateException e){
+            //expected
+        }
+        finally{
+            verifying.shutdown();
+        }
+    }
+
+    /**
+     * Flipping a particle of one cell after each step changes the mass of the lattice.
+     */
+    public void testVerifyingEngineCatchesChangedTotals(){
+        VerifyingEngine verifying = new VerifyingEngine(new CorruptingEngine(periodicEngine(), false), 1, 0, 3);
+        verifying.setTotalsInterval(5);
+        try{
+            verifying.step(20);
+            fail("The changed totals were not caught");
+        }
+        catch(IllegalStateException e){
+            //expected
+        }
+        finally{
+            verifying.shutdown();
+        }
+    }
+
+    public void testVerifyingEnginePassesCorrectEngine(){
+        VerifyingEngine verifying = new VerifyingEngine(periodicEngine(), 1, 64, 3);
+        verifying.setTotalsInterval(5);
+        try{
+            verifying.step(50);
+            assertEquals(50, verifying.getChecks());
+            assertTrue(verifying.getCellsChecked() > 0);
+            assertEquals(11, verifying.getTotalsChecks());
+        }
+        finally{
+            verifying.shutdown();
+        }
+    }
+
+    private static LatticeEngine periodicEngine(){
+        Grid grid = new Grid(64, 64);
+        grid.setBoundaries(new Boundaries(grid, BoundaryType.PERIODIC, BoundaryType.PERIODIC,
+                BoundaryType.PERIODIC, BoundaryType.PERIODIC));
+        Ensemble.random(0.3).initialize(grid, 0, 1);
+        grid.fillHalo();
+        return EngineType.BYTE.create(grid, new Collider(1, CollisionModel.FHP_I), 1);
+    }
+
+    /**
+     * Flips direction 1 of every cell, or of one cell, after every step.
+     */
+    private static class CorruptingEngine implements LatticeEngine {
+
+        private final LatticeEngine engine;
+        private final boolean everyCell;
+
+        CorruptingEngine(LatticeEngine engine, boolean everyCell){
+            this.engine = engine;
+            this.everyCell = everyCell;
+        }
+
+        @Override
+        public void step(int steps){
+            engine.step(steps);
+            Grid grid = engine.getGrid();
+            byte[] now = grid.getNowPlane();
+            for(int y = 0; y < grid.getyHeight(); y++){
+                for(int x = 0; x < grid.getxWidth(); x++){
+                    if(everyCell || (x == 30 && y == 30)){
+                        now[grid.index(x, y)] ^= 1;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public Grid getGrid(){
+            return engine.getGrid();
+        }
+
+        @Override
+        public void shutdown(){
+            engine.shutdown();
+        }
+    }
+
+}